@@ -0,0 +1,683 @@
+package org.feldspaten.hyperion.embedded;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsExchange;
+
+/**
+ * {@link HttpServletRequest} on top of a {@link HttpExchange}. Parameters are
+ * parsed on first access from the query string and from url-encoded form
+ * bodies. Container features like HTTP sessions, authentication, dispatching
+ * and asynchronous processing are not supported
+ * 
+ */
+class EmbeddedRequest implements HttpServletRequest {
+
+	/** Default charset of url-encoded parameters */
+	private static final String DEFAULT_ENCODING = "UTF-8";
+	/** Maximum size of url-encoded form bodies in bytes */
+	private static final int MAX_FORM_SIZE = 2 * 1024 * 1024;
+	/** Content type of url-encoded form bodies */
+	private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	/** Formats of date headers, see RFC 7231 */
+	private static final String[] DATE_FORMATS = new String[] {
+			"EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz",
+			"EEE MMM d HH:mm:ss yyyy" };
+
+	private final HttpExchange exchange;
+	private final ServletContext context;
+	private final String contextPath;
+	private final String servletPath;
+	private final String pathInfo;
+
+	/** Request attributes, created on first use */
+	private Map<String, Object> attributes = null;
+	/** Parameters, parsed on first access */
+	private Map<String, String[]> parameters = null;
+	/** Cookies, parsed on first access */
+	private Cookie[] cookies = null;
+	private String characterEncoding = null;
+	/** If the body has been consumed by the parameters */
+	private boolean bodyRead = false;
+	private ServletInputStream inputStream = null;
+	private BufferedReader reader = null;
+
+	/**
+	 * @param exchange
+	 *            Exchange of the request
+	 * @param context
+	 *            Context of the servlet
+	 * @param servletPath
+	 *            Path the servlet is mapped to
+	 */
+	EmbeddedRequest(final HttpExchange exchange, final ServletContext context,
+			final String servletPath) {
+		this.exchange = exchange;
+		this.context = context;
+		this.contextPath = "";
+		final String path = exchange.getRequestURI().getPath();
+		if (servletPath.isEmpty() || servletPath.equals("/")) {
+			this.servletPath = "";
+			this.pathInfo = path;
+		} else {
+			this.servletPath = servletPath;
+			final String rest = path.length() > servletPath.length() ? path
+					.substring(servletPath.length()) : "";
+			this.pathInfo = rest.isEmpty() ? null : rest;
+		}
+	}
+
+	HttpExchange getExchange() {
+		return exchange;
+	}
+
+	@Override
+	public Object getAttribute(final String name) {
+		return attributes == null ? null : attributes.get(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		if (attributes == null)
+			return Collections.emptyEnumeration();
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	@Override
+	public void setAttribute(final String name, final Object value) {
+		if (value == null) {
+			removeAttribute(name);
+			return;
+		}
+		if (attributes == null)
+			attributes = new HashMap<String, Object>();
+		attributes.put(name, value);
+	}
+
+	@Override
+	public void removeAttribute(final String name) {
+		if (attributes != null)
+			attributes.remove(name);
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		if (characterEncoding != null)
+			return characterEncoding;
+		final String contentType = getContentType();
+		if (contentType != null) {
+			final int index = contentType.toLowerCase(Locale.ENGLISH).indexOf(
+					"charset=");
+			if (index >= 0) {
+				String charset = contentType.substring(index + 8).trim();
+				final int end = charset.indexOf(';');
+				if (end >= 0)
+					charset = charset.substring(0, end).trim();
+				if (charset.length() > 1 && charset.startsWith("\"")
+						&& charset.endsWith("\""))
+					charset = charset.substring(1, charset.length() - 1);
+				return charset;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void setCharacterEncoding(final String env)
+			throws UnsupportedEncodingException {
+		if (!Charset.isSupported(env))
+			throw new UnsupportedEncodingException(env);
+		this.characterEncoding = env;
+	}
+
+	@Override
+	public int getContentLength() {
+		return getIntHeader("Content-Length");
+	}
+
+	@Override
+	public String getContentType() {
+		return getHeader("Content-Type");
+	}
+
+	@Override
+	public synchronized ServletInputStream getInputStream() {
+		if (reader != null)
+			throw new IllegalStateException("getReader() has been called");
+		if (inputStream == null) {
+			final InputStream body = bodyRead ? new ByteArrayInputStream(
+					new byte[0]) : exchange.getRequestBody();
+			inputStream = new ServletInputStream() {
+				@Override
+				public int read() throws IOException {
+					return body.read();
+				}
+
+				@Override
+				public int read(final byte[] b, final int off, final int len)
+						throws IOException {
+					return body.read(b, off, len);
+				}
+			};
+		}
+		return inputStream;
+	}
+
+	@Override
+	public synchronized BufferedReader getReader() throws IOException {
+		if (reader == null) {
+			if (inputStream != null)
+				throw new IllegalStateException(
+						"getInputStream() has been called");
+			final String encoding = getCharacterEncoding();
+			final InputStream body = bodyRead ? new ByteArrayInputStream(
+					new byte[0]) : exchange.getRequestBody();
+			reader = new BufferedReader(new InputStreamReader(body,
+					encoding == null ? "ISO-8859-1" : encoding));
+		}
+		return reader;
+	}
+
+	@Override
+	public String getParameter(final String name) {
+		final String[] values = getParameterMap().get(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(getParameterMap().keySet());
+	}
+
+	@Override
+	public String[] getParameterValues(final String name) {
+		return getParameterMap().get(name);
+	}
+
+	@Override
+	public synchronized Map<String, String[]> getParameterMap() {
+		if (parameters == null)
+			parameters = parseParameters();
+		return parameters;
+	}
+
+	private Map<String, String[]> parseParameters() {
+		final String encoding = getCharacterEncoding() == null ? DEFAULT_ENCODING
+				: getCharacterEncoding();
+		final Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+		try {
+			parseParameters(exchange.getRequestURI().getRawQuery(), encoding,
+					values);
+			final String contentType = getContentType();
+			if (inputStream == null
+					&& reader == null
+					&& contentType != null
+					&& contentType.toLowerCase(Locale.ENGLISH).startsWith(
+							FORM_CONTENT_TYPE)) {
+				bodyRead = true;
+				parseParameters(readBody(), encoding, values);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read request parameters",
+					e);
+		}
+
+		final Map<String, String[]> result = new LinkedHashMap<String, String[]>(
+				values.size() * 2);
+		for (final Map.Entry<String, List<String>> entry : values.entrySet())
+			result.put(entry.getKey(),
+					entry.getValue().toArray(new String[entry.getValue().size()]));
+		return Collections.unmodifiableMap(result);
+	}
+
+	private String readBody() throws IOException {
+		final InputStream in = exchange.getRequestBody();
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				Math.min(Math.max(getContentLength(), 256), MAX_FORM_SIZE));
+		final byte[] bytes = new byte[4096];
+		int len;
+		while ((len = in.read(bytes)) > 0) {
+			if (buffer.size() + len > MAX_FORM_SIZE)
+				throw new IllegalArgumentException("Form body too large");
+			buffer.write(bytes, 0, len);
+		}
+		return buffer.toString("ISO-8859-1");
+	}
+
+	private static void parseParameters(final String query,
+			final String encoding, final Map<String, List<String>> values)
+			throws UnsupportedEncodingException {
+		if (query == null || query.isEmpty())
+			return;
+		for (final String pair : query.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			final int index = pair.indexOf('=');
+			final String name;
+			final String value;
+			try {
+				if (index < 0) {
+					name = URLDecoder.decode(pair, encoding);
+					value = "";
+				} else {
+					name = URLDecoder.decode(pair.substring(0, index), encoding);
+					value = URLDecoder.decode(pair.substring(index + 1),
+							encoding);
+				}
+			} catch (IllegalArgumentException e) {
+				// Malformed escape sequence, skip parameter
+				continue;
+			}
+			List<String> list = values.get(name);
+			if (list == null) {
+				list = new ArrayList<String>(1);
+				values.put(name, list);
+			}
+			list.add(value);
+		}
+	}
+
+	@Override
+	public String getProtocol() {
+		return exchange.getProtocol();
+	}
+
+	@Override
+	public String getScheme() {
+		return isSecure() ? "https" : "http";
+	}
+
+	@Override
+	public String getServerName() {
+		final String host = getHeader("Host");
+		if (host != null && !host.isEmpty()) {
+			if (host.startsWith("[")) {
+				final int end = host.indexOf(']');
+				if (end > 0)
+					return host.substring(0, end + 1);
+			}
+			final int index = host.indexOf(':');
+			return index < 0 ? host : host.substring(0, index);
+		}
+		return getLocalName();
+	}
+
+	@Override
+	public int getServerPort() {
+		final String host = getHeader("Host");
+		if (host != null && !host.isEmpty()) {
+			final int index = host.lastIndexOf(':');
+			if (index > host.lastIndexOf(']')) {
+				try {
+					return Integer.parseInt(host.substring(index + 1));
+				} catch (NumberFormatException e) {
+					// Invalid port, use the default port
+				}
+			}
+			return isSecure() ? 443 : 80;
+		}
+		return getLocalPort();
+	}
+
+	@Override
+	public String getRemoteAddr() {
+		final InetSocketAddress address = exchange.getRemoteAddress();
+		return address.getAddress() == null ? address.getHostString()
+				: address.getAddress().getHostAddress();
+	}
+
+	@Override
+	public String getRemoteHost() {
+		// Like containers, don't resolve by default
+		return getRemoteAddr();
+	}
+
+	@Override
+	public int getRemotePort() {
+		return exchange.getRemoteAddress().getPort();
+	}
+
+	@Override
+	public String getLocalName() {
+		return exchange.getLocalAddress().getHostString();
+	}
+
+	@Override
+	public String getLocalAddr() {
+		final InetSocketAddress address = exchange.getLocalAddress();
+		return address.getAddress() == null ? address.getHostString()
+				: address.getAddress().getHostAddress();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return exchange.getLocalAddress().getPort();
+	}
+
+	@Override
+	public Locale getLocale() {
+		final Enumeration<Locale> locales = getLocales();
+		return locales.nextElement();
+	}
+
+	@Override
+	public Enumeration<Locale> getLocales() {
+		final String header = getHeader("Accept-Language");
+		final List<Locale> locales = new ArrayList<Locale>(4);
+		if (header != null) {
+			// Ordered as sent, quality values are ignored
+			for (final String part : header.split(",")) {
+				final int index = part.indexOf(';');
+				final String tag = (index < 0 ? part : part.substring(0,
+						index)).trim();
+				if (!tag.isEmpty() && !tag.equals("*"))
+					locales.add(Locale.forLanguageTag(tag));
+			}
+		}
+		if (locales.isEmpty())
+			locales.add(Locale.getDefault());
+		return Collections.enumeration(locales);
+	}
+
+	@Override
+	public boolean isSecure() {
+		return exchange instanceof HttpsExchange;
+	}
+
+	@Override
+	public RequestDispatcher getRequestDispatcher(final String path) {
+		return null;
+	}
+
+	@Override
+	@Deprecated
+	public String getRealPath(final String path) {
+		return context.getRealPath(path);
+	}
+
+	@Override
+	public ServletContext getServletContext() {
+		return context;
+	}
+
+	@Override
+	public AsyncContext startAsync() {
+		throw new IllegalStateException("Asynchronous processing not supported");
+	}
+
+	@Override
+	public AsyncContext startAsync(final ServletRequest servletRequest,
+			final ServletResponse servletResponse) {
+		throw new IllegalStateException("Asynchronous processing not supported");
+	}
+
+	@Override
+	public boolean isAsyncStarted() {
+		return false;
+	}
+
+	@Override
+	public boolean isAsyncSupported() {
+		return false;
+	}
+
+	@Override
+	public AsyncContext getAsyncContext() {
+		throw new IllegalStateException("Asynchronous processing not supported");
+	}
+
+	@Override
+	public DispatcherType getDispatcherType() {
+		return DispatcherType.REQUEST;
+	}
+
+	@Override
+	public String getAuthType() {
+		return null;
+	}
+
+	@Override
+	public synchronized Cookie[] getCookies() {
+		if (cookies == null)
+			cookies = parseCookies();
+		return cookies.length == 0 ? null : cookies;
+	}
+
+	private Cookie[] parseCookies() {
+		final List<String> headers = exchange.getRequestHeaders()
+				.get("Cookie");
+		if (headers == null)
+			return new Cookie[0];
+		final List<Cookie> result = new ArrayList<Cookie>();
+		for (final String header : headers) {
+			for (final String pair : header.split(";")) {
+				final int index = pair.indexOf('=');
+				if (index <= 0)
+					continue;
+				final String name = pair.substring(0, index).trim();
+				String value = pair.substring(index + 1).trim();
+				if (value.length() > 1 && value.startsWith("\"")
+						&& value.endsWith("\""))
+					value = value.substring(1, value.length() - 1);
+				if (name.isEmpty() || name.startsWith("$"))
+					continue;
+				try {
+					result.add(new Cookie(name, value));
+				} catch (IllegalArgumentException e) {
+					// Reserved or invalid cookie name
+				}
+			}
+		}
+		return result.toArray(new Cookie[result.size()]);
+	}
+
+	@Override
+	public long getDateHeader(final String name) {
+		final String value = getHeader(name);
+		if (value == null)
+			return -1L;
+		for (final String format : DATE_FORMATS) {
+			final SimpleDateFormat parser = new SimpleDateFormat(format,
+					Locale.US);
+			parser.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return parser.parse(value).getTime();
+			} catch (ParseException e) {
+				continue;
+			}
+		}
+		throw new IllegalArgumentException("Invalid date header " + name
+				+ ": " + value);
+	}
+
+	@Override
+	public String getHeader(final String name) {
+		return exchange.getRequestHeaders().getFirst(name);
+	}
+
+	@Override
+	public Enumeration<String> getHeaders(final String name) {
+		final List<String> values = exchange.getRequestHeaders().get(name);
+		if (values == null)
+			return Collections.emptyEnumeration();
+		return Collections.enumeration(values);
+	}
+
+	@Override
+	public Enumeration<String> getHeaderNames() {
+		final Headers headers = exchange.getRequestHeaders();
+		return Collections.enumeration(headers.keySet());
+	}
+
+	@Override
+	public int getIntHeader(final String name) {
+		final String value = getHeader(name);
+		if (value == null)
+			return -1;
+		return Integer.parseInt(value.trim());
+	}
+
+	@Override
+	public String getMethod() {
+		return exchange.getRequestMethod();
+	}
+
+	@Override
+	public String getPathInfo() {
+		return pathInfo;
+	}
+
+	@Override
+	public String getPathTranslated() {
+		return pathInfo == null ? null : context.getRealPath(pathInfo);
+	}
+
+	@Override
+	public String getContextPath() {
+		return contextPath;
+	}
+
+	@Override
+	public String getQueryString() {
+		return exchange.getRequestURI().getRawQuery();
+	}
+
+	@Override
+	public String getRemoteUser() {
+		return null;
+	}
+
+	@Override
+	public boolean isUserInRole(final String role) {
+		return false;
+	}
+
+	@Override
+	public Principal getUserPrincipal() {
+		return null;
+	}
+
+	@Override
+	public String getRequestedSessionId() {
+		return null;
+	}
+
+	@Override
+	public String getRequestURI() {
+		return exchange.getRequestURI().getRawPath();
+	}
+
+	@Override
+	public StringBuffer getRequestURL() {
+		final StringBuffer url = new StringBuffer(64);
+		final int port = getServerPort();
+		url.append(getScheme()).append("://").append(getServerName());
+		if (isSecure() ? port != 443 : port != 80)
+			url.append(':').append(port);
+		url.append(getRequestURI());
+		return url;
+	}
+
+	@Override
+	public String getServletPath() {
+		return servletPath;
+	}
+
+	@Override
+	public HttpSession getSession(final boolean create) {
+		if (create)
+			throw new UnsupportedOperationException(
+					"HTTP sessions are not supported by the embedded server");
+		return null;
+	}
+
+	@Override
+	public HttpSession getSession() {
+		return getSession(true);
+	}
+
+	@Override
+	public boolean isRequestedSessionIdValid() {
+		return false;
+	}
+
+	@Override
+	public boolean isRequestedSessionIdFromCookie() {
+		return false;
+	}
+
+	@Override
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+
+	@Override
+	@Deprecated
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+
+	@Override
+	public boolean authenticate(final HttpServletResponse response)
+			throws ServletException {
+		throw new ServletException("Authentication not supported");
+	}
+
+	@Override
+	public void login(final String username, final String password)
+			throws ServletException {
+		throw new ServletException("Authentication not supported");
+	}
+
+	@Override
+	public void logout() throws ServletException {
+	}
+
+	@Override
+	public Collection<Part> getParts() throws ServletException {
+		throw new ServletException("Multipart requests not supported");
+	}
+
+	@Override
+	public Part getPart(final String name) throws ServletException {
+		throw new ServletException("Multipart requests not supported");
+	}
+}
@@ -0,0 +1,425 @@
+package org.feldspaten.hyperion.embedded;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * {@link HttpServletResponse} on top of a {@link HttpExchange}. The body is
+ * buffered and sent with a fixed Content-Length when the servlet returns, so
+ * the connection can be kept alive and the response goes out in a single
+ * write instead of chunks
+ * 
+ */
+class EmbeddedResponse implements HttpServletResponse {
+
+	/** Default charset of the writer, see the servlet specification */
+	private static final String DEFAULT_ENCODING = "ISO-8859-1";
+	/** Initial size of the body buffer */
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	/** Buffer that writes its content without copying it */
+	private static class Body extends ByteArrayOutputStream {
+		Body(final int size) {
+			super(size);
+		}
+
+		void sendTo(final OutputStream out) throws IOException {
+			out.write(buf, 0, count);
+		}
+	}
+
+	private final HttpExchange exchange;
+	private final EmbeddedRequest request;
+	private final Headers headers;
+	private final Body body = new Body(INITIAL_BUFFER_SIZE);
+
+	private int status = SC_OK;
+	private String contentType = null;
+	private String characterEncoding = null;
+	private Locale locale = Locale.getDefault();
+	/** Declared content length, only used for HEAD requests */
+	private long contentLength = -1L;
+	private boolean committed = false;
+	private ServletOutputStream outputStream = null;
+	private PrintWriter writer = null;
+
+	EmbeddedResponse(final HttpExchange exchange, final EmbeddedRequest request) {
+		this.exchange = exchange;
+		this.request = request;
+		this.headers = exchange.getResponseHeaders();
+	}
+
+	/**
+	 * Send the status, the headers and the buffered body. Called once the
+	 * servlet returns
+	 */
+	void finish() throws IOException {
+		if (committed)
+			return;
+		committed = true;
+		if (writer != null)
+			writer.flush();
+		if (contentType != null)
+			headers.set("Content-Type", getContentType());
+
+		final boolean noBody = "HEAD".equalsIgnoreCase(request.getMethod())
+				|| status == SC_NO_CONTENT || status == SC_NOT_MODIFIED
+				|| status < 200;
+		if (noBody) {
+			// The server doesn't send a body, but keeps the declared length
+			if (contentLength >= 0L && status >= 200)
+				headers.set("Content-Length", Long.toString(contentLength));
+			exchange.sendResponseHeaders(status, -1L);
+		} else if (body.size() == 0) {
+			exchange.sendResponseHeaders(status, -1L);
+		} else {
+			exchange.sendResponseHeaders(status, body.size());
+			final OutputStream out = exchange.getResponseBody();
+			body.sendTo(out);
+			out.flush();
+		}
+		exchange.close();
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return characterEncoding == null ? DEFAULT_ENCODING
+				: characterEncoding;
+	}
+
+	@Override
+	public String getContentType() {
+		if (contentType == null)
+			return null;
+		if (characterEncoding == null || contentType.contains("charset="))
+			return contentType;
+		return contentType + ";charset=" + characterEncoding;
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream() {
+		if (writer != null)
+			throw new IllegalStateException("getWriter() has been called");
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write(final int b) {
+					body.write(b);
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) {
+					body.write(b, off, len);
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	@Override
+	public synchronized PrintWriter getWriter()
+			throws UnsupportedEncodingException {
+		if (outputStream != null)
+			throw new IllegalStateException(
+					"getOutputStream() has been called");
+		if (writer == null) {
+			// Fix the encoding, like containers do
+			if (characterEncoding == null)
+				characterEncoding = DEFAULT_ENCODING;
+			writer = new PrintWriter(new OutputStreamWriter(body,
+					getCharacterEncoding()), false);
+		}
+		return writer;
+	}
+
+	@Override
+	public void setCharacterEncoding(final String charset) {
+		if (writer != null || committed)
+			return;
+		if (charset != null && !Charset.isSupported(charset))
+			return;
+		this.characterEncoding = charset;
+	}
+
+	@Override
+	public void setContentLength(final int len) {
+		this.contentLength = len;
+	}
+
+	@Override
+	public void setContentType(final String type) {
+		if (committed)
+			return;
+		if (type == null) {
+			this.contentType = null;
+			return;
+		}
+		final int index = type.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+		if (index < 0) {
+			this.contentType = type;
+			return;
+		}
+		String charset = type.substring(index + 8).trim();
+		final int end = charset.indexOf(';');
+		if (end >= 0)
+			charset = charset.substring(0, end).trim();
+		setCharacterEncoding(charset);
+		// Strip the charset, it is appended by getContentType()
+		String base = type.substring(0, index).trim();
+		if (base.endsWith(";"))
+			base = base.substring(0, base.length() - 1).trim();
+		this.contentType = base;
+	}
+
+	@Override
+	public void setBufferSize(final int size) {
+		if (body.size() > 0 || committed)
+			throw new IllegalStateException("Content has been written");
+	}
+
+	@Override
+	public int getBufferSize() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void flushBuffer() {
+		// The body is sent once the servlet returns
+		if (writer != null)
+			writer.flush();
+	}
+
+	@Override
+	public void resetBuffer() {
+		if (committed)
+			throw new IllegalStateException("Response is committed");
+		if (writer != null)
+			writer.flush();
+		body.reset();
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	@Override
+	public void reset() {
+		resetBuffer();
+		headers.clear();
+		status = SC_OK;
+		contentType = null;
+		contentLength = -1L;
+	}
+
+	@Override
+	public void setLocale(final Locale loc) {
+		if (loc != null && !committed)
+			this.locale = loc;
+	}
+
+	@Override
+	public Locale getLocale() {
+		return locale;
+	}
+
+	@Override
+	public void addCookie(final Cookie cookie) {
+		final StringBuilder header = new StringBuilder(64);
+		header.append(cookie.getName()).append('=');
+		if (cookie.getValue() != null)
+			header.append(cookie.getValue());
+		if (cookie.getMaxAge() >= 0) {
+			header.append("; Max-Age=").append(cookie.getMaxAge());
+			header.append("; Expires=").append(
+					formatDate(System.currentTimeMillis() + cookie.getMaxAge()
+							* 1000L));
+		}
+		if (cookie.getDomain() != null)
+			header.append("; Domain=").append(cookie.getDomain());
+		if (cookie.getPath() != null)
+			header.append("; Path=").append(cookie.getPath());
+		if (cookie.getSecure())
+			header.append("; Secure");
+		if (cookie.isHttpOnly())
+			header.append("; HttpOnly");
+		headers.add("Set-Cookie", header.toString());
+	}
+
+	@Override
+	public boolean containsHeader(final String name) {
+		return headers.containsKey(name);
+	}
+
+	@Override
+	public String encodeURL(final String url) {
+		return url;
+	}
+
+	@Override
+	public String encodeRedirectURL(final String url) {
+		return url;
+	}
+
+	@Override
+	@Deprecated
+	public String encodeUrl(final String url) {
+		return url;
+	}
+
+	@Override
+	@Deprecated
+	public String encodeRedirectUrl(final String url) {
+		return url;
+	}
+
+	@Override
+	public void sendError(final int sc, final String msg) throws IOException {
+		if (committed)
+			throw new IllegalStateException("Response is committed");
+		resetBuffer();
+		this.status = sc;
+		setContentType("text/html");
+		final String message = msg == null ? "Error " + sc : escape(msg);
+		final PrintWriter out = writer != null ? writer
+				: outputStream == null ? getWriter() : null;
+		if (out != null)
+			out.print("<html><body><h1>" + message + "</h1></body></html>");
+		else
+			outputStream.write(("<html><body><h1>" + message
+					+ "</h1></body></html>").getBytes(getCharacterEncoding()));
+		finish();
+	}
+
+	@Override
+	public void sendError(final int sc) throws IOException {
+		sendError(sc, null);
+	}
+
+	@Override
+	public void sendRedirect(final String location) throws IOException {
+		if (committed)
+			throw new IllegalStateException("Response is committed");
+		resetBuffer();
+		String url = location;
+		if (location.startsWith("/") && !location.startsWith("//")) {
+			final StringBuffer requestURL = request.getRequestURL();
+			url = requestURL.substring(0, requestURL.length()
+					- request.getRequestURI().length())
+					+ location;
+		}
+		status = SC_FOUND;
+		headers.set("Location", url);
+		finish();
+	}
+
+	@Override
+	public void setDateHeader(final String name, final long date) {
+		headers.set(name, formatDate(date));
+	}
+
+	@Override
+	public void addDateHeader(final String name, final long date) {
+		headers.add(name, formatDate(date));
+	}
+
+	@Override
+	public void setHeader(final String name, final String value) {
+		if (value == null)
+			headers.remove(name);
+		else if (name.equalsIgnoreCase("Content-Type"))
+			setContentType(value);
+		else if (name.equalsIgnoreCase("Content-Length"))
+			contentLength = Long.parseLong(value);
+		else
+			headers.set(name, value);
+	}
+
+	@Override
+	public void addHeader(final String name, final String value) {
+		if (name.equalsIgnoreCase("Content-Type")
+				|| name.equalsIgnoreCase("Content-Length"))
+			setHeader(name, value);
+		else if (value != null)
+			headers.add(name, value);
+	}
+
+	@Override
+	public void setIntHeader(final String name, final int value) {
+		setHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void addIntHeader(final String name, final int value) {
+		addHeader(name, Integer.toString(value));
+	}
+
+	@Override
+	public void setStatus(final int sc) {
+		if (!committed)
+			this.status = sc;
+	}
+
+	@Override
+	@Deprecated
+	public void setStatus(final int sc, final String sm) {
+		setStatus(sc);
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public String getHeader(final String name) {
+		if (name.equalsIgnoreCase("Content-Type"))
+			return getContentType();
+		return headers.getFirst(name);
+	}
+
+	@Override
+	public Collection<String> getHeaders(final String name) {
+		final List<String> values = headers.get(name);
+		if (values == null)
+			return Collections.emptyList();
+		return new ArrayList<String>(values);
+	}
+
+	@Override
+	public Collection<String> getHeaderNames() {
+		return new ArrayList<String>(headers.keySet());
+	}
+
+	private static String formatDate(final long date) {
+		final SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(date));
+	}
+
+	private static String escape(final String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,491 @@
+package org.feldspaten.hyperion.embedded;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs servlets, usually {@link org.feldspaten.hyperion.server.HttpSessionServlet}
+ * subclasses, on the HTTP server of the JDK instead of a servlet container.
+ * Startup takes milliseconds, which suits small services and benchmarks.
+ * 
+ * Requests are processed by a configurable worker pool. Connections are kept
+ * alive and responses are buffered and sent with a fixed length in a single
+ * write. HTTP sessions, asynchronous processing and request dispatching are
+ * not supported, {@link org.feldspaten.hyperion.server.HttpSessionServlet}
+ * doesn't need them.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * EmbeddedServer server = new EmbeddedServer(8080);
+ * server.addServlet(&quot;/app&quot;, new MyServlet());
+ * server.start();
+ * </pre>
+ * 
+ * On JDK 21 and later, virtual threads can be used by
+ * <code>setExecutor(Executors.newVirtualThreadPerTaskExecutor())</code>
+ * 
+ */
+public class EmbeddedServer {
+
+	/** Default number of worker threads per processor */
+	private static final int THREADS_PER_PROCESSOR = 8;
+	/** Default backlog of the server socket */
+	private static final int DEFAULT_BACKLOG = 1024;
+
+	/** Servlet mapped to a path */
+	private static class Mapping {
+		final String path;
+		final HttpServlet servlet;
+		final Map<String, String> initParameters;
+
+		Mapping(final String path, final HttpServlet servlet,
+				final Map<String, String> initParameters) {
+			this.path = path;
+			this.servlet = servlet;
+			this.initParameters = initParameters;
+		}
+	}
+
+	/** Configuration of a mapped servlet */
+	private static class EmbeddedConfig implements ServletConfig {
+		private final String name;
+		private final ServletContext context;
+		private final Map<String, String> parameters;
+
+		EmbeddedConfig(final String name, final ServletContext context,
+				final Map<String, String> parameters) {
+			this.name = name;
+			this.context = context;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public String getServletName() {
+			return name;
+		}
+
+		@Override
+		public ServletContext getServletContext() {
+			return context;
+		}
+
+		@Override
+		public String getInitParameter(final String name) {
+			return parameters.get(name);
+		}
+
+		@Override
+		public Enumeration<String> getInitParameterNames() {
+			return Collections.enumeration(parameters.keySet());
+		}
+	}
+
+	/** Dispatches the exchanges of a context to its servlet */
+	private class ServletHandler implements HttpHandler {
+		private final Mapping mapping;
+
+		ServletHandler(final Mapping mapping) {
+			this.mapping = mapping;
+		}
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				// Contexts match by string prefix, /app must not serve /apple
+				final String path = exchange.getRequestURI().getPath();
+				if (path.length() > mapping.path.length()
+						&& !mapping.path.endsWith("/")
+						&& path.charAt(mapping.path.length()) != '/') {
+					exchange.sendResponseHeaders(
+							HttpServletResponse.SC_NOT_FOUND, -1L);
+					return;
+				}
+
+				final EmbeddedRequest request = new EmbeddedRequest(exchange,
+						context, mapping.path);
+				final EmbeddedResponse response = new EmbeddedResponse(
+						exchange, request);
+				try {
+					mapping.servlet.service(request, response);
+					response.finish();
+				} catch (ServletException | RuntimeException e) {
+					System.err.println("Error processing "
+							+ exchange.getRequestURI() + ": " + e);
+					e.printStackTrace(System.err);
+					if (!response.isCommitted())
+						response.sendError(
+								HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+								"Internal error");
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final List<Mapping> mappings = new ArrayList<Mapping>();
+	/** Attributes of the servlet context */
+	private final Map<String, Object> contextAttributes = new ConcurrentHashMap<String, Object>();
+	/** Init parameters of the servlet context */
+	private final Map<String, String> contextParameters = new ConcurrentHashMap<String, String>();
+	/** Context shared by all servlets */
+	private final ServletContext context;
+	/** Directory of the web resources or null, if none */
+	private volatile File resourceBase = null;
+	private ExecutorService executor = null;
+	/** If the executor has been created by the server */
+	private boolean ownExecutor = false;
+	private int backlog = DEFAULT_BACKLOG;
+	private HttpServer server = null;
+
+	/**
+	 * Create a server listening on all interfaces
+	 * 
+	 * @param port
+	 *            Port to listen on, 0 for an ephemeral port
+	 */
+	public EmbeddedServer(final int port) {
+		this(new InetSocketAddress(port));
+	}
+
+	/**
+	 * @param address
+	 *            Address to listen on
+	 */
+	public EmbeddedServer(final InetSocketAddress address) {
+		this.address = address;
+		this.context = createContext();
+	}
+
+	/**
+	 * Map a servlet to a path. The servlet is initialized when the server
+	 * starts
+	 * 
+	 * @param path
+	 *            Servlet path, e.g. <code>/app</code>, or <code>/</code> for
+	 *            all requests
+	 * @param servlet
+	 *            Servlet to be mapped
+	 * @return this server
+	 */
+	public EmbeddedServer addServlet(final String path,
+			final HttpServlet servlet) {
+		return addServlet(path, servlet, new HashMap<String, String>());
+	}
+
+	/**
+	 * Map a servlet with init parameters to a path
+	 * 
+	 * @param path
+	 *            Servlet path, e.g. <code>/app</code>, or <code>/</code> for
+	 *            all requests
+	 * @param servlet
+	 *            Servlet to be mapped
+	 * @param initParameters
+	 *            Init parameters of the servlet
+	 * @return this server
+	 */
+	public synchronized EmbeddedServer addServlet(final String path,
+			final HttpServlet servlet, final Map<String, String> initParameters) {
+		if (server != null)
+			throw new IllegalStateException("Server already started");
+		if (path == null || !path.startsWith("/"))
+			throw new IllegalArgumentException("Path must start with /");
+		if (servlet == null)
+			throw new IllegalArgumentException("Servlet cannot be null");
+		String normalized = path;
+		while (normalized.length() > 1 && normalized.endsWith("/"))
+			normalized = normalized.substring(0, normalized.length() - 1);
+		for (final Mapping mapping : mappings)
+			if (mapping.path.equals(normalized))
+				throw new IllegalArgumentException("Path already mapped: "
+						+ path);
+		mappings.add(new Mapping(normalized, servlet,
+				new HashMap<String, String>(initParameters)));
+		return this;
+	}
+
+	/**
+	 * Set an init parameter of the servlet context
+	 */
+	public EmbeddedServer setContextParameter(final String name,
+			final String value) {
+		contextParameters.put(name, value);
+		return this;
+	}
+
+	/**
+	 * @param resourceBase
+	 *            Directory of the resources returned by
+	 *            {@link ServletContext#getResourceAsStream(String)}
+	 */
+	public EmbeddedServer setResourceBase(final File resourceBase) {
+		this.resourceBase = resourceBase;
+		return this;
+	}
+
+	/**
+	 * Set the executor of the requests. Must be called before the server
+	 * starts. The executor is not shut down by the server. By default, a fixed
+	 * pool of daemon threads is used
+	 * 
+	 * @param executor
+	 *            Executor of the requests
+	 */
+	public synchronized EmbeddedServer setExecutor(
+			final ExecutorService executor) {
+		if (server != null)
+			throw new IllegalStateException("Server already started");
+		this.executor = executor;
+		this.ownExecutor = false;
+		return this;
+	}
+
+	/**
+	 * @param backlog
+	 *            Maximum number of pending connections
+	 */
+	public synchronized EmbeddedServer setBacklog(final int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * Initialize the servlets and start listening
+	 * 
+	 * @throws IOException
+	 *             Thrown if the server socket cannot be opened
+	 * @throws ServletException
+	 *             Thrown if a servlet fails to initialize
+	 */
+	public synchronized void start() throws IOException, ServletException {
+		if (server != null)
+			throw new IllegalStateException("Server already started");
+		for (final Mapping mapping : mappings)
+			mapping.servlet.init(new EmbeddedConfig(mapping.servlet.getClass()
+					.getSimpleName(), context, mapping.initParameters));
+
+		final HttpServer server = HttpServer.create(address, backlog);
+		for (final Mapping mapping : mappings)
+			server.createContext(mapping.path, new ServletHandler(mapping));
+		if (executor == null) {
+			executor = createExecutor(Runtime.getRuntime()
+					.availableProcessors() * THREADS_PER_PROCESSOR);
+			ownExecutor = true;
+		}
+		server.setExecutor(executor);
+		server.start();
+		this.server = server;
+	}
+
+	/**
+	 * Stop the server and destroy the servlets
+	 * 
+	 * @param delay
+	 *            Maximum time in seconds to wait for running requests
+	 */
+	public synchronized void stop(final int delay) {
+		if (server == null)
+			return;
+		server.stop(delay);
+		server = null;
+		for (final Mapping mapping : mappings)
+			mapping.servlet.destroy();
+		if (ownExecutor) {
+			executor.shutdown();
+			executor = null;
+			ownExecutor = false;
+		}
+	}
+
+	/**
+	 * @return port the server is listening on or -1, if not started
+	 */
+	public synchronized int getPort() {
+		if (server == null)
+			return -1;
+		return server.getAddress().getPort();
+	}
+
+	public ServletContext getServletContext() {
+		return context;
+	}
+
+	private static ExecutorService createExecutor(final int threads) {
+		final AtomicInteger counter = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "Hyperion http "
+						+ counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create the servlet context. Only the methods needed by plain servlets
+	 * are implemented, all others throw an
+	 * {@link UnsupportedOperationException}
+	 */
+	private ServletContext createContext() {
+		final InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method,
+					final Object[] args) throws Throwable {
+				final String name = method.getName();
+				switch (name) {
+				case "getAttribute":
+					return contextAttributes.get(args[0]);
+				case "getAttributeNames":
+					return Collections.enumeration(contextAttributes.keySet());
+				case "setAttribute":
+					if (args[1] == null)
+						contextAttributes.remove(args[0]);
+					else
+						contextAttributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					contextAttributes.remove(args[0]);
+					return null;
+				case "getInitParameter":
+					return contextParameters.get(args[0]);
+				case "getInitParameterNames":
+					return Collections.enumeration(contextParameters.keySet());
+				case "setInitParameter":
+					if (contextParameters.containsKey(args[0]))
+						return false;
+					contextParameters.put((String) args[0], (String) args[1]);
+					return true;
+				case "getContextPath":
+				case "getServletContextName":
+					return "";
+				case "getServerInfo":
+					return "Hyperion embedded server";
+				case "getMajorVersion":
+				case "getEffectiveMajorVersion":
+					return 3;
+				case "getMinorVersion":
+				case "getEffectiveMinorVersion":
+					return 0;
+				case "getContext":
+					return proxy;
+				case "getClassLoader":
+					return Thread.currentThread().getContextClassLoader();
+				case "getMimeType":
+					return URLConnection.guessContentTypeFromName((String) args[0]);
+				case "getRealPath": {
+					final File file = getResourceFile((String) args[0]);
+					return file == null ? null : file.getAbsolutePath();
+				}
+				case "getResource": {
+					final File file = getResourceFile((String) args[0]);
+					return file == null || !file.exists() ? null : file.toURI()
+							.toURL();
+				}
+				case "getResourceAsStream":
+					return openResource((String) args[0]);
+				case "log":
+					System.err.println(args[0]);
+					if (args.length > 1 && args[1] instanceof Throwable)
+						((Throwable) args[1]).printStackTrace(System.err);
+					return null;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "EmbeddedServletContext";
+				default:
+					throw new UnsupportedOperationException(name
+							+ " is not supported by the embedded server");
+				}
+			}
+		};
+		return (ServletContext) Proxy.newProxyInstance(
+				ServletContext.class.getClassLoader(),
+				new Class<?>[] { ServletContext.class }, handler);
+	}
+
+	/**
+	 * @return file of the given resource path or null, if there is no
+	 *         resource base or the path leaves it
+	 */
+	private File getResourceFile(final String path) throws IOException {
+		final File base = resourceBase;
+		if (base == null || path == null)
+			return null;
+		final File file = new File(base, path).getCanonicalFile();
+		// Compare whole path segments, /srv/www-private is not in /srv/www
+		if (!file.toPath().startsWith(base.getCanonicalFile().toPath()))
+			return null;
+		return file;
+	}
+
+	private InputStream openResource(final String path) throws IOException {
+		final File file = getResourceFile(path);
+		if (file != null && file.isFile())
+			return new FileInputStream(file);
+		// Fall back to the class path, like resources in WEB-INF/classes
+		final String name = path.startsWith("/") ? path.substring(1) : path;
+		return Thread.currentThread().getContextClassLoader()
+				.getResourceAsStream(name);
+	}
+
+	/**
+	 * Start servlets from the command line:
+	 * <code>EmbeddedServer port [path=]servlet-class ...</code>. Servlets
+	 * without a path are mapped to <code>/</code>
+	 */
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: EmbeddedServer PORT [PATH=]SERVLET_CLASS ...");
+			System.exit(1);
+		}
+		final EmbeddedServer server = new EmbeddedServer(
+				Integer.parseInt(args[0]));
+		for (int i = 1; i < args.length; i++) {
+			final int index = args[i].indexOf('=');
+			final String path = index < 0 ? "/" : args[i].substring(0, index);
+			final String className = args[i].substring(index + 1);
+			final HttpServlet servlet = (HttpServlet) Class.forName(className)
+					.newInstance();
+			server.addServlet(path, servlet);
+		}
+		final long start = System.currentTimeMillis();
+		server.start();
+		System.out.println("Listening on port " + server.getPort() + " ("
+				+ (System.currentTimeMillis() - start) + " ms)");
+	}
+}
@@ -0,0 +1,6 @@
+/**
+ * Embedded HTTP server, that runs {@link javax.servlet.http.HttpServlet}s
+ * without a servlet container
+ * 
+ */
+package org.feldspaten.hyperion.embedded;
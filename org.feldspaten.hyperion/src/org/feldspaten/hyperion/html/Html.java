@@ -28,12 +28,25 @@ public abstract class Html {
 		buffer.append(generateHeader());
 		for (final Html html : subcomponents) {
 			if (html.isEnabled())
-				buffer.append(html.generate());
+				buffer.append(render(html));
 		}
 		buffer.append(generateFooter());
 		return buffer.toString();
 	}
 
+	/**
+	 * Generate the HTML contents of a subcomponent. Containers use this
+	 * instead of {@link #generate()}, so the component is recorded by an
+	 * attached {@link RenderProfile}
+	 * 
+	 * @param component
+	 *            to be generated
+	 * @return HTML code of the component
+	 */
+	protected static String render(final Html component) {
+		return RenderProfile.render(component);
+	}
+
 	/**
 	 * Generate header of the component. The header is usually the HTML part
 	 * before the subcomponents
@@ -194,11 +207,11 @@ public abstract class Html {
 	}
 
 	public void print(final PrintWriter writer) {
-		writer.print(generate());
+		writer.print(render(this));
 	}
 
 	public void println(final PrintWriter writer) {
-		writer.println(generate());
+		writer.println(render(this));
 	}
 
 	public boolean isEnabled() {
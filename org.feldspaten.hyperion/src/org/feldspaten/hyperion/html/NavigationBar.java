@@ -119,7 +119,7 @@ public class NavigationBar extends Html implements
 			hyperlink.setText("[" + elem.getText() + "]");
 			if (elem.getTarget() != null)
 				hyperlink.setTarget(elem.getTarget());
-			result.append(hyperlink.generate());
+			result.append(render(hyperlink));
 		}
 
 		result.append("</p>");
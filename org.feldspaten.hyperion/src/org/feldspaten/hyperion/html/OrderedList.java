@@ -18,7 +18,7 @@ public class OrderedList extends Html {
 		buffer.append("<ol>");
 
 		for (final Html html : listItems)
-			buffer.append("<li>" + html.generate() + "</li>");
+			buffer.append("<li>" + render(html) + "</li>");
 
 		return buffer.toString();
 	}
@@ -0,0 +1,235 @@
+package org.feldspaten.hyperion.html;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Render time, invocations and output size per component class and per
+ * component ID.
+ * 
+ * A profile records the components rendered by the thread it is attached to.
+ * Components are measured when rendered by {@link Html#print(java.io.PrintWriter)}
+ * or as subcomponent of a container of this package. Components that a
+ * custom component renders by calling {@link Html#generate()} directly are
+ * part of the time of that component. While no profile is attached to any
+ * thread, rendering costs a single volatile read per component
+ * 
+ */
+public class RenderProfile {
+
+	/** Statistics of a component class or ID */
+	public static class Entry {
+		private final String name;
+		private long count = 0L;
+		private long nanos = 0L;
+		private long selfNanos = 0L;
+		private long chars = 0L;
+
+		Entry(final String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return simple name of the class or ID of the component
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return number of rendered components
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return render time including the subcomponents in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return render time without the subcomponents in nanoseconds
+		 */
+		public long getSelfNanos() {
+			return selfNanos;
+		}
+
+		/**
+		 * @return number of generated characters, including the
+		 *         subcomponents
+		 */
+		public long getChars() {
+			return chars;
+		}
+	}
+
+	/** Profile of the current thread */
+	private static final ThreadLocal<RenderProfile> current = new ThreadLocal<>();
+	/** Number of attached profiles, the thread local is skipped if 0 */
+	private static final AtomicInteger attached = new AtomicInteger();
+
+	private final Map<String, Entry> classes = new HashMap<>();
+	private final Map<String, Entry> ids = new HashMap<>();
+	/** Time of the subcomponents per nesting level */
+	private long[] childNanos = new long[16];
+	private int depth = 0;
+	/** Time of the outermost components */
+	private long totalNanos = 0L;
+
+	/**
+	 * Attach the profile to the current thread
+	 * 
+	 * @throws IllegalStateException
+	 *             Thrown if the thread has a profile already
+	 */
+	public void attach() {
+		if (current.get() != null)
+			throw new IllegalStateException("Thread has a profile already");
+		current.set(this);
+		attached.incrementAndGet();
+	}
+
+	/**
+	 * Detach the profile from the current thread, if attached
+	 */
+	public void detach() {
+		if (current.get() != this)
+			return;
+		current.remove();
+		attached.decrementAndGet();
+	}
+
+	/**
+	 * Generate the given component and record it in the profile of the
+	 * current thread, if any
+	 */
+	static String render(final Html component) {
+		if (attached.get() == 0)
+			return component.generate();
+		final RenderProfile profile = current.get();
+		if (profile == null)
+			return component.generate();
+		return profile.record(component);
+	}
+
+	private String record(final Html component) {
+		if (depth == childNanos.length)
+			childNanos = Arrays.copyOf(childNanos, depth * 2);
+		childNanos[depth++] = 0L;
+		final long start = System.nanoTime();
+		final String html;
+		try {
+			html = component.generate();
+		} finally {
+			depth--;
+		}
+		final long nanos = System.nanoTime() - start;
+		final long self = nanos - childNanos[depth];
+		if (depth > 0)
+			childNanos[depth - 1] += nanos;
+		else
+			totalNanos += nanos;
+
+		final Class<?> type = component.getClass();
+		final String name = type.getSimpleName().isEmpty() ? type.getName()
+				: type.getSimpleName();
+		add(classes, name, nanos, self, html.length());
+		final String id = component.getId();
+		if (id != null)
+			add(ids, id, nanos, self, html.length());
+		return html;
+	}
+
+	private static void add(final Map<String, Entry> entries,
+			final String name, final long nanos, final long self,
+			final int chars) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			entry = new Entry(name);
+			entries.put(name, entry);
+		}
+		entry.count++;
+		entry.nanos += nanos;
+		entry.selfNanos += self;
+		entry.chars += chars;
+	}
+
+	/**
+	 * @return statistics per component class, slowest first by time without
+	 *         subcomponents
+	 */
+	public List<Entry> getClasses() {
+		return sorted(classes);
+	}
+
+	/**
+	 * @return statistics per component ID, slowest first by time without
+	 *         subcomponents
+	 */
+	public List<Entry> getIds() {
+		return sorted(ids);
+	}
+
+	/**
+	 * @return render time of all recorded components in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	private static List<Entry> sorted(final Map<String, Entry> entries) {
+		final List<Entry> result = new ArrayList<>(entries.values());
+		Collections.sort(result, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry e1, final Entry e2) {
+				return Long.compare(e2.selfNanos, e1.selfNanos);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @param limit
+	 *            Maximum number of classes and of IDs
+	 * @return multi-line report of the slowest classes and IDs
+	 */
+	public String format(final int limit) {
+		final StringBuilder buffer = new StringBuilder(256);
+		buffer.append("Render ").append(millis(totalNanos)).append(" ms");
+		format(buffer, "class", getClasses(), limit);
+		format(buffer, "id", getIds(), limit);
+		return buffer.toString();
+	}
+
+	private static void format(final StringBuilder buffer, final String kind,
+			final List<Entry> entries, final int limit) {
+		for (int i = 0; i < entries.size() && i < limit; i++) {
+			final Entry entry = entries.get(i);
+			buffer.append("\n  ").append(kind).append(' ')
+					.append(entry.name).append(": ")
+					.append(millis(entry.selfNanos)).append(" ms self, ")
+					.append(millis(entry.nanos)).append(" ms total, ")
+					.append(entry.count).append("x, ").append(entry.chars)
+					.append(" chars");
+		}
+	}
+
+	private static String millis(final long nanos) {
+		return String.format(Locale.ENGLISH, "%.2f", nanos / 1000000.0);
+	}
+
+	@Override
+	public String toString() {
+		return format(Integer.MAX_VALUE);
+	}
+}
@@ -95,7 +95,7 @@ public class Table extends Html {
 			buffer.append("<tr>");
 			for (final Html html : elements) {
 				buffer.append("<td>");
-				buffer.append(html.generate());
+				buffer.append(render(html));
 				buffer.append("</td>");
 			}
 			buffer.append("</tr>");
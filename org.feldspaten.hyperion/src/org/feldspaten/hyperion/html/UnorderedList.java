@@ -18,7 +18,7 @@ public class UnorderedList extends Html {
 		buffer.append("<ul>");
 
 		for (final Html html : listItems)
-			buffer.append("<li>" + html.generate() + "</li>");
+			buffer.append("<li>" + render(html) + "</li>");
 
 		return buffer.toString();
 	}
@@ -0,0 +1,61 @@
+package org.feldspaten.hyperion.management;
+
+import org.feldspaten.hyperion.persistence.MySQL;
+
+/**
+ * Implementation of {@link DatabaseControlMBean}
+ * 
+ */
+class DatabaseControl implements DatabaseControlMBean {
+
+	private final MySQL database;
+
+	DatabaseControl(final MySQL database) {
+		this.database = database;
+	}
+
+	@Override
+	public String getHostname() {
+		return database.getHostname();
+	}
+
+	@Override
+	public int getPort() {
+		return database.getPort();
+	}
+
+	@Override
+	public String getDatabase() {
+		return database.getDatabase();
+	}
+
+	@Override
+	public String getUsername() {
+		return database.getUsername();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return database.isConnected();
+	}
+
+	@Override
+	public String getDefaultEncoding() {
+		return database.getDefaultEncoding();
+	}
+
+	@Override
+	public String getTimezone() {
+		return database.getTimezone();
+	}
+
+	@Override
+	public boolean checkConnection() {
+		return database.checkConnection();
+	}
+
+	@Override
+	public void reconnect() {
+		database.connect();
+	}
+}
@@ -0,0 +1,43 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Connection of a {@link org.feldspaten.hyperion.persistence.MySQL} instance
+ * 
+ */
+public interface DatabaseControlMBean {
+
+	public String getHostname();
+
+	public int getPort();
+
+	public String getDatabase();
+
+	public String getUsername();
+
+	/**
+	 * @return true if a connection is open. The database is not contacted
+	 */
+	public boolean isConnected();
+
+	/**
+	 * @return names encoding set for each statement
+	 */
+	public String getDefaultEncoding();
+
+	/**
+	 * @return timezone set for each statement
+	 */
+	public String getTimezone();
+
+	/**
+	 * Check the connection and reconnect if it is broken
+	 * 
+	 * @return true if the connection is alive
+	 */
+	public boolean checkConnection();
+
+	/**
+	 * Close the connection and connect again
+	 */
+	public void reconnect();
+}
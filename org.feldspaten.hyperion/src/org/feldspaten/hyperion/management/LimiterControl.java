@@ -0,0 +1,107 @@
+package org.feldspaten.hyperion.management;
+
+import org.feldspaten.hyperion.server.ConcurrencyLimiter;
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+
+/**
+ * Implementation of {@link LimiterControlMBean}. Follows the limiter that is
+ * currently assigned
+ * 
+ */
+class LimiterControl implements LimiterControlMBean {
+
+	/** Servlet of the bulkhead or null, for the limit of all servlets */
+	private final HttpSessionServlet servlet;
+
+	/**
+	 * @param servlet
+	 *            Servlet of the bulkhead or null, for the limit of all
+	 *            servlets
+	 */
+	LimiterControl(final HttpSessionServlet servlet) {
+		this.servlet = servlet;
+	}
+
+	private ConcurrencyLimiter getLimiter() {
+		if (servlet == null)
+			return HttpSessionServlet.getConcurrencyLimiter();
+		return servlet.getBulkhead();
+	}
+
+	private ConcurrencyLimiter getRequiredLimiter() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		if (limiter == null)
+			throw new IllegalStateException("No limiter assigned");
+		return limiter;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return getLimiter() != null;
+	}
+
+	@Override
+	public boolean isAdaptive() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter != null && limiter.isAdaptive();
+	}
+
+	@Override
+	public int getLimit() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1 : limiter.getLimit();
+	}
+
+	@Override
+	public int getMinLimit() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1 : limiter.getMinLimit();
+	}
+
+	@Override
+	public void setMinLimit(final int limit) {
+		final ConcurrencyLimiter limiter = getRequiredLimiter();
+		if (limiter.isAdaptive())
+			limiter.setLimits(limit, limiter.getMaxLimit());
+		else
+			limiter.setLimits(limit, limit);
+	}
+
+	@Override
+	public int getMaxLimit() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1 : limiter.getMaxLimit();
+	}
+
+	@Override
+	public void setMaxLimit(final int limit) {
+		final ConcurrencyLimiter limiter = getRequiredLimiter();
+		if (limiter.isAdaptive())
+			limiter.setLimits(limiter.getMinLimit(), limit);
+		else
+			limiter.setLimits(limit, limit);
+	}
+
+	@Override
+	public int getInFlight() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1 : limiter.getInFlight();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1L : limiter.getRejectedCount();
+	}
+
+	@Override
+	public int getRetryAfter() {
+		final ConcurrencyLimiter limiter = getLimiter();
+		return limiter == null ? -1 : limiter.getRetryAfter();
+	}
+
+	@Override
+	public void setRetryAfter(final int retryAfter) {
+		getRequiredLimiter().setRetryAfter(retryAfter);
+	}
+}
@@ -0,0 +1,61 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Concurrency limit of all servlets or the bulkhead of a servlet. The
+ * attributes are -1 while no limiter is assigned
+ * 
+ */
+public interface LimiterControlMBean {
+
+	/**
+	 * @return true if a limiter is assigned
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * @return true if the limit adapts to the latency
+	 */
+	public boolean isAdaptive();
+
+	/**
+	 * @return current limit of concurrent requests
+	 */
+	public int getLimit();
+
+	/**
+	 * @return lower bound of the limit
+	 */
+	public int getMinLimit();
+
+	/**
+	 * Set the lower bound of the limit. Sets both bounds of a fixed limiter
+	 */
+	public void setMinLimit(int limit);
+
+	/**
+	 * @return upper bound of the limit
+	 */
+	public int getMaxLimit();
+
+	/**
+	 * Set the upper bound of the limit. Sets both bounds of a fixed limiter
+	 */
+	public void setMaxLimit(int limit);
+
+	/**
+	 * @return number of currently admitted requests
+	 */
+	public int getInFlight();
+
+	/**
+	 * @return number of rejected requests
+	 */
+	public long getRejectedCount();
+
+	/**
+	 * @return suggested delay in seconds before rejected clients retry
+	 */
+	public int getRetryAfter();
+
+	public void setRetryAfter(int retryAfter);
+}
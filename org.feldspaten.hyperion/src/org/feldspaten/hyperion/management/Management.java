@@ -0,0 +1,152 @@
+package org.feldspaten.hyperion.management;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.feldspaten.hyperion.persistence.MySQL;
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+
+/**
+ * Registers the MBeans with the platform MBean server, in the domain
+ * {@link #DOMAIN}.
+ * 
+ * Registration is explicit, because a container may run several applications
+ * with Hyperion. Register the beans in
+ * {@link javax.servlet.GenericServlet#init()} and unregister them in
+ * {@link javax.servlet.GenericServlet#destroy()}, so they don't keep the
+ * application after a redeploy:
+ * 
+ * <pre>
+ * Management.register();
+ * Management.register(this);
+ * ...
+ * Management.unregister();
+ * </pre>
+ * 
+ */
+public final class Management {
+
+	/** Domain of the object names */
+	public static final String DOMAIN = "org.feldspaten.hyperion";
+
+	/** Registered beans by name */
+	private static final Map<ObjectName, Object> registered = new LinkedHashMap<ObjectName, Object>();
+
+	private Management() {
+	}
+
+	/**
+	 * Register the beans of the sessions, the request processing, the
+	 * concurrency limit and the admission scheduler, if not registered yet
+	 */
+	public static synchronized void register() {
+		if (!registered.containsKey(name("type=Sessions"))) {
+			register(name("type=Sessions"), new SessionControl(),
+					SessionControlMBean.class);
+			register(name("type=Server"), new ServerControl(),
+					ServerControlMBean.class);
+			register(name("type=ConcurrencyLimiter"), new LimiterControl(
+					null), LimiterControlMBean.class);
+			register(name("type=AdmissionScheduler"), new SchedulerControl(),
+					SchedulerControlMBean.class);
+		}
+	}
+
+	/**
+	 * Register the beans of the caches and the bulkhead of a servlet. The
+	 * beans are named after the servlet
+	 * 
+	 * @param servlet
+	 *            Initialised servlet
+	 * @return name of the servlet bean
+	 */
+	public static synchronized ObjectName register(
+			final HttpSessionServlet servlet) {
+		final String servletName = servlet.getServletConfig() == null ? servlet
+				.getClass().getName() : servlet.getServletName();
+		final ObjectName name = name("type=Servlet,name="
+				+ ObjectName.quote(servletName));
+		register(name, new ServletControl(servlet), ServletControlMBean.class);
+		register(
+				name("type=Bulkhead,name=" + ObjectName.quote(servletName)),
+				new LimiterControl(servlet), LimiterControlMBean.class);
+		return name;
+	}
+
+	/**
+	 * Register the bean of a database connection
+	 * 
+	 * @param database
+	 *            Database connection
+	 * @param name
+	 *            Name of the connection, unique within the application
+	 * @return name of the bean
+	 */
+	public static synchronized ObjectName register(final MySQL database,
+			final String name) {
+		final ObjectName objectName = name("type=Database,name="
+				+ ObjectName.quote(name));
+		register(objectName, new DatabaseControl(database),
+				DatabaseControlMBean.class);
+		return objectName;
+	}
+
+	/**
+	 * Unregister all beans registered by this class
+	 */
+	public static synchronized void unregister() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final Map.Entry<ObjectName, Object> bean : registered.entrySet()) {
+			try {
+				server.unregisterMBean(bean.getKey());
+			} catch (JMException e) {
+				System.err.println("Cannot unregister MBean " + bean.getKey()
+						+ ": " + e);
+			}
+			if (bean.getValue() instanceof Closeable) {
+				try {
+					((Closeable) bean.getValue()).close();
+				} catch (IOException e) {
+					// Beans don't throw on close
+				}
+			}
+		}
+		registered.clear();
+	}
+
+	private static <T> void register(final ObjectName name, final T bean,
+			final Class<T> type) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(bean, type), name);
+		} catch (JMException e) {
+			if (bean instanceof Closeable) {
+				try {
+					((Closeable) bean).close();
+				} catch (IOException e1) {
+					// Beans don't throw on close
+				}
+			}
+			throw new IllegalStateException("Cannot register MBean " + name,
+					e);
+		}
+		registered.put(name, bean);
+	}
+
+	private static ObjectName name(final String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Illegal MBean name: "
+					+ properties, e);
+		}
+	}
+}
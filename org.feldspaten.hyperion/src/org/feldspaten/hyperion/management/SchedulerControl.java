@@ -0,0 +1,127 @@
+package org.feldspaten.hyperion.management;
+
+import org.feldspaten.hyperion.server.AdmissionScheduler;
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+
+/**
+ * Implementation of {@link SchedulerControlMBean}. Follows the scheduler that
+ * is currently assigned
+ * 
+ */
+class SchedulerControl implements SchedulerControlMBean {
+
+	private static AdmissionScheduler getScheduler() {
+		return HttpSessionServlet.getAdmissionScheduler();
+	}
+
+	private static AdmissionScheduler getRequiredScheduler() {
+		final AdmissionScheduler scheduler = getScheduler();
+		if (scheduler == null)
+			throw new IllegalStateException("No admission scheduler assigned");
+		return scheduler;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return getScheduler() != null;
+	}
+
+	@Override
+	public int getSlots() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1 : scheduler.getSlots();
+	}
+
+	@Override
+	public void setSlots(final int slots) {
+		getRequiredScheduler().setSlots(slots);
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1 : scheduler.getQueueCapacity();
+	}
+
+	@Override
+	public void setQueueCapacity(final int capacity) {
+		getRequiredScheduler().setQueueCapacity(capacity);
+	}
+
+	@Override
+	public long getMaxWait() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1L : scheduler.getMaxWait();
+	}
+
+	@Override
+	public void setMaxWait(final long maxWait) {
+		getRequiredScheduler().setMaxWait(maxWait);
+	}
+
+	@Override
+	public long getLatencyTarget() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1L : scheduler.getLatencyTarget();
+	}
+
+	@Override
+	public void setLatencyTarget(final long latencyTarget) {
+		getRequiredScheduler().setLatencyTarget(latencyTarget);
+	}
+
+	@Override
+	public int getRetryAfter() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1 : scheduler.getRetryAfter();
+	}
+
+	@Override
+	public void setRetryAfter(final int retryAfter) {
+		getRequiredScheduler().setRetryAfter(retryAfter);
+	}
+
+	@Override
+	public int getBusy() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1 : scheduler.getBusy();
+	}
+
+	@Override
+	public int getQueuedGuests() {
+		return getQueued(AdmissionScheduler.PRIORITY_GUEST);
+	}
+
+	@Override
+	public int getQueuedUsers() {
+		return getQueued(AdmissionScheduler.PRIORITY_USER);
+	}
+
+	@Override
+	public int getQueuedHigh() {
+		return getQueued(AdmissionScheduler.PRIORITY_HIGH);
+	}
+
+	private static int getQueued(final int priority) {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1 : scheduler.getQueued(priority);
+	}
+
+	@Override
+	public double getGuestShare() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1.0 : scheduler.getGuestShare();
+	}
+
+	@Override
+	public double getLatency() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1.0 : scheduler.getLatency();
+	}
+
+	@Override
+	public long getShedCount() {
+		final AdmissionScheduler scheduler = getScheduler();
+		return scheduler == null ? -1L : scheduler.getShedCount();
+	}
+}
@@ -0,0 +1,84 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Priority admission of all servlets. The attributes are -1 while no
+ * scheduler is assigned
+ * 
+ */
+public interface SchedulerControlMBean {
+
+	/**
+	 * @return true if a scheduler is assigned
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * @return number of concurrently processed requests
+	 */
+	public int getSlots();
+
+	public void setSlots(int slots);
+
+	/**
+	 * @return maximum number of waiting requests per priority
+	 */
+	public int getQueueCapacity();
+
+	public void setQueueCapacity(int capacity);
+
+	/**
+	 * @return maximum time in milliseconds a request waits for a slot
+	 */
+	public long getMaxWait();
+
+	public void setMaxWait(long maxWait);
+
+	/**
+	 * @return target latency in milliseconds of non-guest requests
+	 */
+	public long getLatencyTarget();
+
+	public void setLatencyTarget(long latencyTarget);
+
+	/**
+	 * @return suggested delay in seconds before shed clients retry
+	 */
+	public int getRetryAfter();
+
+	public void setRetryAfter(int retryAfter);
+
+	/**
+	 * @return number of requests in a slot
+	 */
+	public int getBusy();
+
+	/**
+	 * @return number of waiting guest requests
+	 */
+	public int getQueuedGuests();
+
+	/**
+	 * @return number of waiting requests of logged-in users
+	 */
+	public int getQueuedUsers();
+
+	/**
+	 * @return number of waiting high priority requests
+	 */
+	public int getQueuedHigh();
+
+	/**
+	 * @return current share of the slots available to guest requests
+	 */
+	public double getGuestShare();
+
+	/**
+	 * @return average latency of non-guest requests in milliseconds
+	 */
+	public double getLatency();
+
+	/**
+	 * @return number of shed requests
+	 */
+	public long getShedCount();
+}
@@ -0,0 +1,129 @@
+package org.feldspaten.hyperion.management;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.feldspaten.hyperion.persistence.QueryMonitor;
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+
+/**
+ * Implementation of {@link ServerControlMBean}. Counts the executed
+ * statements while registered
+ * 
+ */
+class ServerControl implements ServerControlMBean, QueryMonitor.Listener,
+		Closeable {
+
+	private final AtomicLong statements = new AtomicLong();
+	private final AtomicLong statementNanos = new AtomicLong();
+
+	ServerControl() {
+		QueryMonitor.addListener(this);
+	}
+
+	@Override
+	public void close() {
+		QueryMonitor.removeListener(this);
+	}
+
+	@Override
+	public void queryExecuted(final String sql, final int rows,
+			final long nanos) {
+		statements.incrementAndGet();
+		statementNanos.addAndGet(nanos);
+	}
+
+	@Override
+	public long getSlowRequestThreshold() {
+		return HttpSessionServlet.getSlowRequestThreshold();
+	}
+
+	@Override
+	public void setSlowRequestThreshold(final long threshold) {
+		HttpSessionServlet.setSlowRequestThreshold(threshold);
+	}
+
+	@Override
+	public int getAllocationSampling() {
+		return HttpSessionServlet.getAllocationSampling();
+	}
+
+	@Override
+	public void setAllocationSampling(final int sampling) {
+		HttpSessionServlet.setAllocationSampling(sampling);
+	}
+
+	@Override
+	public int getRenderProfiling() {
+		return HttpSessionServlet.getRenderProfiling();
+	}
+
+	@Override
+	public void setRenderProfiling(final int sampling) {
+		HttpSessionServlet.setRenderProfiling(sampling);
+	}
+
+	@Override
+	public int getAsyncPoolSize() {
+		final ThreadPoolExecutor pool = getAsyncPool(false);
+		return pool == null ? -1 : pool.getMaximumPoolSize();
+	}
+
+	@Override
+	public void setAsyncPoolSize(final int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("Size must be positive");
+		final ThreadPoolExecutor pool = getAsyncPool(true);
+		// The core size must never exceed the maximum size
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+
+	@Override
+	public int getAsyncActiveCount() {
+		final ThreadPoolExecutor pool = getAsyncPool(false);
+		return pool == null ? -1 : pool.getActiveCount();
+	}
+
+	@Override
+	public int getAsyncQueueSize() {
+		final ThreadPoolExecutor pool = getAsyncPool(false);
+		return pool == null ? -1 : pool.getQueue().size();
+	}
+
+	@Override
+	public long getStatementCount() {
+		return statements.get();
+	}
+
+	@Override
+	public double getAverageStatementMillis() {
+		final long count = statements.get();
+		if (count == 0L)
+			return 0.0;
+		return statementNanos.get() / (count * 1000.0 * 1000.0);
+	}
+
+	/**
+	 * @param required
+	 *            Throw an exception if the executor is not a thread pool
+	 * @return executor for asynchronous requests if a thread pool, otherwise
+	 *         null
+	 */
+	private static ThreadPoolExecutor getAsyncPool(final boolean required) {
+		final ExecutorService executor = HttpSessionServlet.getAsyncExecutor();
+		if (executor instanceof ThreadPoolExecutor)
+			return (ThreadPoolExecutor) executor;
+		if (required)
+			throw new IllegalStateException("Async executor "
+					+ executor.getClass().getName() + " is not a thread pool");
+		return null;
+	}
+}
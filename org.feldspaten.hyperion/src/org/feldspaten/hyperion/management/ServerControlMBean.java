@@ -0,0 +1,61 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Request processing settings of all servlets
+ * 
+ */
+public interface ServerControlMBean {
+
+	/**
+	 * @return threshold in milliseconds of the slow request log, -1 if
+	 *         disabled
+	 */
+	public long getSlowRequestThreshold();
+
+	public void setSlowRequestThreshold(long threshold);
+
+	/**
+	 * @return one in how many requests records its allocations, 0 if
+	 *         disabled
+	 */
+	public int getAllocationSampling();
+
+	public void setAllocationSampling(int sampling);
+
+	/**
+	 * @return one in how many pages is profiled, 0 if disabled
+	 */
+	public int getRenderProfiling();
+
+	public void setRenderProfiling(int sampling);
+
+	/**
+	 * @return threads of the executor for asynchronous requests, -1 if the
+	 *         executor is not a thread pool
+	 */
+	public int getAsyncPoolSize();
+
+	public void setAsyncPoolSize(int size);
+
+	/**
+	 * @return threads currently running asynchronous requests, -1 if the
+	 *         executor is not a thread pool
+	 */
+	public int getAsyncActiveCount();
+
+	/**
+	 * @return tasks waiting for an async thread, -1 if the executor is not a
+	 *         thread pool
+	 */
+	public int getAsyncQueueSize();
+
+	/**
+	 * @return number of SQL statements executed since registration
+	 */
+	public long getStatementCount();
+
+	/**
+	 * @return average execution time of the SQL statements in milliseconds
+	 */
+	public double getAverageStatementMillis();
+}
@@ -0,0 +1,120 @@
+package org.feldspaten.hyperion.management;
+
+import org.feldspaten.hyperion.server.HeadCache;
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+import org.feldspaten.hyperion.server.UserCache;
+
+/**
+ * Implementation of {@link ServletControlMBean}
+ * 
+ */
+class ServletControl implements ServletControlMBean {
+
+	private final HttpSessionServlet servlet;
+
+	ServletControl(final HttpSessionServlet servlet) {
+		this.servlet = servlet;
+	}
+
+	private UserCache getUserCache() {
+		final UserCache cache = servlet.getUserCache();
+		if (cache == null)
+			throw new IllegalStateException("No user cache assigned");
+		return cache;
+	}
+
+	private HeadCache getHeadCache() {
+		final HeadCache cache = servlet.getHeadCache();
+		if (cache == null)
+			throw new IllegalStateException("No HEAD cache assigned");
+		return cache;
+	}
+
+	@Override
+	public long getAsyncTimeout() {
+		return servlet.getAsyncTimeout();
+	}
+
+	@Override
+	public void setAsyncTimeout(final long timeout) {
+		servlet.setAsyncTimeout(timeout);
+	}
+
+	@Override
+	public int getUserCacheSize() {
+		final UserCache cache = servlet.getUserCache();
+		return cache == null ? -1 : cache.size();
+	}
+
+	@Override
+	public long getUserCacheHits() {
+		final UserCache cache = servlet.getUserCache();
+		return cache == null ? -1L : cache.getHits();
+	}
+
+	@Override
+	public long getUserCacheLoads() {
+		final UserCache cache = servlet.getUserCache();
+		return cache == null ? -1L : cache.getLoads();
+	}
+
+	@Override
+	public long getUserCacheTtl() {
+		final UserCache cache = servlet.getUserCache();
+		return cache == null ? -1L : cache.getTtl();
+	}
+
+	@Override
+	public void setUserCacheTtl(final long ttl) {
+		getUserCache().setTtl(ttl);
+	}
+
+	@Override
+	public int getUserCacheMaxSize() {
+		final UserCache cache = servlet.getUserCache();
+		return cache == null ? -1 : cache.getMaxSize();
+	}
+
+	@Override
+	public void setUserCacheMaxSize(final int maxSize) {
+		getUserCache().setMaxSize(maxSize);
+	}
+
+	@Override
+	public void invalidateUserCache() {
+		getUserCache().invalidateAll();
+	}
+
+	@Override
+	public int getHeadCacheSize() {
+		final HeadCache cache = servlet.getHeadCache();
+		return cache == null ? -1 : cache.size();
+	}
+
+	@Override
+	public int getHeadCacheCapacity() {
+		final HeadCache cache = servlet.getHeadCache();
+		return cache == null ? -1 : cache.getCapacity();
+	}
+
+	@Override
+	public void setHeadCacheCapacity(final int capacity) {
+		getHeadCache().setCapacity(capacity);
+	}
+
+	@Override
+	public long getHeadCacheTimeToLive() {
+		final HeadCache cache = servlet.getHeadCache();
+		return cache == null ? -1L : cache.getTimeToLive();
+	}
+
+	@Override
+	public void setHeadCacheTimeToLive(final long timeToLive) {
+		getHeadCache().setTimeToLive(timeToLive);
+	}
+
+	@Override
+	public void clearHeadCache() {
+		getHeadCache().clear();
+	}
+}
@@ -0,0 +1,74 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Caches and timeouts of a servlet. The cache attributes are -1 while the
+ * cache is not assigned
+ * 
+ */
+public interface ServletControlMBean {
+
+	/**
+	 * @return timeout in milliseconds of asynchronous requests
+	 */
+	public long getAsyncTimeout();
+
+	public void setAsyncTimeout(long timeout);
+
+	/**
+	 * @return number of cached users
+	 */
+	public int getUserCacheSize();
+
+	/**
+	 * @return number of users returned from the cache
+	 */
+	public long getUserCacheHits();
+
+	/**
+	 * @return number of users loaded by the servlet
+	 */
+	public long getUserCacheLoads();
+
+	/**
+	 * @return time in milliseconds users are cached
+	 */
+	public long getUserCacheTtl();
+
+	public void setUserCacheTtl(long ttl);
+
+	/**
+	 * @return maximum number of cached users
+	 */
+	public int getUserCacheMaxSize();
+
+	public void setUserCacheMaxSize(int maxSize);
+
+	/**
+	 * Remove all users from the cache
+	 */
+	public void invalidateUserCache();
+
+	/**
+	 * @return number of cached HEAD responses
+	 */
+	public int getHeadCacheSize();
+
+	/**
+	 * @return maximum number of cached HEAD responses
+	 */
+	public int getHeadCacheCapacity();
+
+	public void setHeadCacheCapacity(int capacity);
+
+	/**
+	 * @return time in milliseconds HEAD responses are cached
+	 */
+	public long getHeadCacheTimeToLive();
+
+	public void setHeadCacheTimeToLive(long timeToLive);
+
+	/**
+	 * Remove all HEAD responses from the cache
+	 */
+	public void clearHeadCache();
+}
@@ -0,0 +1,129 @@
+package org.feldspaten.hyperion.management;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.feldspaten.hyperion.server.HttpSessionServlet;
+import org.feldspaten.hyperion.server.MemorySessionStore;
+import org.feldspaten.hyperion.server.Session;
+import org.feldspaten.hyperion.server.SessionListener;
+import org.feldspaten.hyperion.server.SessionStore;
+
+/**
+ * Implementation of {@link SessionControlMBean}. Counts the created and
+ * destroyed sessions while registered
+ * 
+ */
+class SessionControl implements SessionControlMBean, SessionListener,
+		Closeable {
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong removed = new AtomicLong();
+
+	SessionControl() {
+		HttpSessionServlet.addSessionListener(this);
+	}
+
+	@Override
+	public void close() {
+		HttpSessionServlet.removeSessionListener(this);
+	}
+
+	@Override
+	public void sessionCreated(final Session session) {
+		created.incrementAndGet();
+	}
+
+	@Override
+	public void sessionDestroyed(final String sid, final boolean isExpired) {
+		if (isExpired)
+			expired.incrementAndGet();
+		else
+			removed.incrementAndGet();
+	}
+
+	@Override
+	public int getSessionCount() {
+		return HttpSessionServlet.getStoredSessionCount();
+	}
+
+	@Override
+	public long getTotalSessionSize() {
+		final MemorySessionStore store = getMemoryStore(false);
+		return store == null ? -1L : store.getTotalBytes();
+	}
+
+	@Override
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	@Override
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	@Override
+	public long getRemovedCount() {
+		return removed.get();
+	}
+
+	@Override
+	public long getEvictionCount() {
+		final MemorySessionStore store = getMemoryStore(false);
+		return store == null ? -1L : store.getEvictions();
+	}
+
+	@Override
+	public String getStoreType() {
+		return HttpSessionServlet.getSessionStore().getClass().getName();
+	}
+
+	@Override
+	public long getInactiveDelay() {
+		return Session.getInactiveDelay();
+	}
+
+	@Override
+	public void setInactiveDelay(final long delay) {
+		Session.setInactiveDelay(delay);
+	}
+
+	@Override
+	public int getMaxSessions() {
+		final MemorySessionStore store = getMemoryStore(false);
+		return store == null ? -1 : store.getMaxSessions();
+	}
+
+	@Override
+	public void setMaxSessions(final int maxSessions) {
+		getMemoryStore(true).setMaxSessions(maxSessions);
+	}
+
+	@Override
+	public long getMaxBytes() {
+		final MemorySessionStore store = getMemoryStore(false);
+		return store == null ? -1L : store.getMaxBytes();
+	}
+
+	@Override
+	public void setMaxBytes(final long maxBytes) {
+		getMemoryStore(true).setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * @param required
+	 *            Throw an exception if the store is not bounded
+	 * @return current store if bounded, otherwise null
+	 */
+	private static MemorySessionStore getMemoryStore(final boolean required) {
+		final SessionStore store = HttpSessionServlet.getSessionStore();
+		if (store instanceof MemorySessionStore)
+			return (MemorySessionStore) store;
+		if (required)
+			throw new IllegalStateException("Session store "
+					+ store.getClass().getName() + " is not bounded");
+		return null;
+	}
+}
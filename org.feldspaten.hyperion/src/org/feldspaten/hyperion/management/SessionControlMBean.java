@@ -0,0 +1,70 @@
+package org.feldspaten.hyperion.management;
+
+/**
+ * Sessions of all servlets
+ * 
+ */
+public interface SessionControlMBean {
+
+	/**
+	 * @return number of stored sessions, as counted by the servlets without
+	 *         querying the store
+	 */
+	public int getSessionCount();
+
+	/**
+	 * @return approximate memory of all stored sessions in bytes, -1 if the
+	 *         store doesn't keep all sessions on the heap
+	 */
+	public long getTotalSessionSize();
+
+	/**
+	 * @return number of sessions created since registration
+	 */
+	public long getCreatedCount();
+
+	/**
+	 * @return number of sessions expired since registration
+	 */
+	public long getExpiredCount();
+
+	/**
+	 * @return number of sessions removed before expiry, e.g. on logout,
+	 *         since registration
+	 */
+	public long getRemovedCount();
+
+	/**
+	 * @return number of sessions evicted by a bounded store, -1 if the store
+	 *         doesn't evict
+	 */
+	public long getEvictionCount();
+
+	/**
+	 * @return class of the session store
+	 */
+	public String getStoreType();
+
+	/**
+	 * @return delay in milliseconds after which inactive sessions expire
+	 */
+	public long getInactiveDelay();
+
+	public void setInactiveDelay(long delay);
+
+	/**
+	 * @return maximum number of sessions of a bounded store, 0 if unlimited
+	 *         and -1 if the store is not bounded
+	 */
+	public int getMaxSessions();
+
+	public void setMaxSessions(int maxSessions);
+
+	/**
+	 * @return maximum memory of the sessions of a bounded store in bytes, 0
+	 *         if unlimited and -1 if the store is not bounded
+	 */
+	public long getMaxBytes();
+
+	public void setMaxBytes(long maxBytes);
+}
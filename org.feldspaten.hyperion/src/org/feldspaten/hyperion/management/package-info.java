@@ -0,0 +1,8 @@
+/**
+ * JMX management interface. The MBeans expose the state of the sessions, the
+ * servlets, the request limits and the database connections, and allow to
+ * tune them at runtime. The MBeans are registered with
+ * {@link org.feldspaten.hyperion.management.Management}
+ * 
+ */
+package org.feldspaten.hyperion.management;
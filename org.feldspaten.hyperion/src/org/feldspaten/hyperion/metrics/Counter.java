@@ -0,0 +1,69 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter. The count is striped over several cells, that are
+ * selected by the current thread, so concurrent increments rarely contend on
+ * the same cache line
+ * 
+ */
+public class Counter extends Metric {
+
+	/** Number of cells, power of two */
+	private static final int CELLS = Integer.highestOneBit(Math.max(1,
+			Math.min(64, Runtime.getRuntime().availableProcessors() * 2))) * 2;
+	/** Distance of the cells in longs, keeps them on separate cache lines */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * PADDING);
+
+	Counter(final String name, final String help, final String[] labels) {
+		super(name, help, labels);
+	}
+
+	public void inc() {
+		add(1L);
+	}
+
+	/**
+	 * @param delta
+	 *            Amount to add, must not be negative
+	 */
+	public void add(final long delta) {
+		cells.addAndGet(cell(), delta);
+	}
+
+	/**
+	 * @return current count
+	 */
+	public long get() {
+		long sum = 0L;
+		for (int i = 0; i < CELLS; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	static int cell() {
+		// Mix the thread ID, consecutive IDs are common
+		long id = Thread.currentThread().getId();
+		id *= 0x9E3779B97F4A7C15L;
+		return ((int) (id >>> 57) & (CELLS - 1)) * PADDING;
+	}
+
+	@Override
+	public String getType() {
+		return "counter";
+	}
+
+	@Override
+	public String getDisplayValue() {
+		return Long.toString(get());
+	}
+
+	@Override
+	void writeSamples(final PrintWriter out) {
+		writeSample(out, "", null, null, get());
+	}
+}
@@ -0,0 +1,238 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom event type of the Java Flight Recorder.
+ * 
+ * The event type is defined at runtime with <code>jdk.jfr.EventFactory</code>,
+ * which is accessed by reflection, so the framework still runs on Java
+ * versions without the flight recorder. On those, {@link #register()} returns
+ * false and the event is never enabled. Committing an event costs a check of
+ * {@link #isEnabled()} while no recording is running.
+ * 
+ * Events are committed when the measured operation is done, so the start time
+ * of an event is the end of the operation and its duration is recorded in a
+ * timespan field
+ * 
+ */
+public final class FlightRecorderEvent {
+
+	/** Category of all events of the framework */
+	public static final String CATEGORY = "Hyperion";
+
+	/** Field of the event */
+	private static class Field {
+		final Class<?> type;
+		final String name;
+		final String label;
+		final boolean timespan;
+
+		Field(final Class<?> type, final String name, final String label,
+				final boolean timespan) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.timespan = timespan;
+		}
+	}
+
+	private final String name;
+	private final String label;
+	private final String description;
+	private final List<Field> fields = new ArrayList<Field>();
+
+	/** Creates a new event with the type ()Object, null if not registered */
+	private volatile MethodHandle newEvent = null;
+	/** Sets a field with the type (Object, int, Object)void */
+	private MethodHandle set = null;
+	/** Commits an event with the type (Object)void */
+	private MethodHandle commit = null;
+	/** Checks if the event type is enabled with the type ()boolean */
+	private MethodHandle enabled = null;
+
+	/**
+	 * Create a new event type. Fields are added before the type is registered
+	 * 
+	 * @param name
+	 *            Unique name of the event type, e.g.
+	 *            <code>org.feldspaten.hyperion.Request</code>
+	 * @param label
+	 *            Human readable name
+	 * @param description
+	 *            Description of the event
+	 */
+	public FlightRecorderEvent(final String name, final String label,
+			final String description) {
+		if (name == null || name.isEmpty())
+			throw new IllegalArgumentException("Name required");
+		this.name = name;
+		this.label = label;
+		this.description = description;
+	}
+
+	/**
+	 * Add a field
+	 * 
+	 * @param type
+	 *            Type of the field. Primitive types, String, Thread or Class
+	 * @param name
+	 *            Name of the field
+	 * @param label
+	 *            Human readable name of the field
+	 * @return this event type
+	 */
+	public synchronized FlightRecorderEvent addField(final Class<?> type,
+			final String name, final String label) {
+		return add(new Field(type, name, label, false));
+	}
+
+	/**
+	 * Add a long field that holds a duration in nanoseconds
+	 * 
+	 * @param name
+	 *            Name of the field
+	 * @param label
+	 *            Human readable name of the field
+	 * @return this event type
+	 */
+	public synchronized FlightRecorderEvent addTimespan(final String name,
+			final String label) {
+		return add(new Field(long.class, name, label, true));
+	}
+
+	private FlightRecorderEvent add(final Field field) {
+		if (newEvent != null)
+			throw new IllegalStateException("Event " + name
+					+ " is already registered");
+		fields.add(field);
+		return this;
+	}
+
+	/**
+	 * Register the event type with the flight recorder
+	 * 
+	 * @return true if registered, false if the flight recorder is not
+	 *         available
+	 */
+	public synchronized boolean register() {
+		if (newEvent != null)
+			return true;
+		try {
+			final Class<?> annotationElement = Class
+					.forName("jdk.jfr.AnnotationElement");
+			final Constructor<?> newAnnotation = annotationElement
+					.getConstructor(Class.class, Object.class);
+			final Constructor<?> newValue = Class.forName(
+					"jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+					String.class, List.class);
+
+			final List<Object> annotations = new ArrayList<Object>(4);
+			annotations.add(annotation(newAnnotation, "Name", name));
+			if (label != null)
+				annotations.add(annotation(newAnnotation, "Label", label));
+			if (description != null)
+				annotations.add(annotation(newAnnotation, "Description",
+						description));
+			annotations.add(annotation(newAnnotation, "Category",
+					new String[] { CATEGORY }));
+
+			final List<Object> values = new ArrayList<Object>(fields.size());
+			for (final Field field : fields) {
+				final List<Object> fieldAnnotations = new ArrayList<Object>(2);
+				if (field.label != null)
+					fieldAnnotations.add(annotation(newAnnotation, "Label",
+							field.label));
+				if (field.timespan)
+					fieldAnnotations.add(annotation(newAnnotation, "Timespan",
+							"NANOSECONDS"));
+				values.add(newValue.newInstance(field.type, field.name,
+						fieldAnnotations));
+			}
+
+			final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> event = Class.forName("jdk.jfr.Event");
+			final Class<?> eventType = Class.forName("jdk.jfr.EventType");
+			final Object factory = eventFactory.getMethod("create", List.class,
+					List.class).invoke(null, annotations, values);
+			final Object type = eventFactory.getMethod("getEventType").invoke(
+					factory);
+
+			final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			set = lookup.unreflect(
+					event.getMethod("set", int.class, Object.class)).asType(
+					MethodType.methodType(void.class, Object.class, int.class,
+							Object.class));
+			commit = lookup.unreflect(event.getMethod("commit")).asType(
+					MethodType.methodType(void.class, Object.class));
+			enabled = lookup.unreflect(eventType.getMethod("isEnabled"))
+					.bindTo(type).asType(MethodType.methodType(boolean.class));
+			eventFactory.getMethod("register").invoke(factory);
+			newEvent = lookup.unreflect(eventFactory.getMethod("newEvent"))
+					.bindTo(factory).asType(MethodType.methodType(Object.class));
+			return true;
+		} catch (ClassNotFoundException e) {
+			// No flight recorder in this runtime
+			return false;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.err.println("Cannot register flight recorder event " + name
+					+ ": " + e);
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object annotation(final Constructor<?> newAnnotation,
+			final String type, final Object value)
+			throws ReflectiveOperationException {
+		final Class<? extends Annotation> annotation = (Class<? extends Annotation>) Class
+				.forName("jdk.jfr." + type);
+		return newAnnotation.newInstance(annotation, value);
+	}
+
+	/**
+	 * @return true if the event type is registered and a running recording
+	 *         records it
+	 */
+	public boolean isEnabled() {
+		if (newEvent == null)
+			return false;
+		try {
+			return (boolean) enabled.invokeExact();
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Commit an event, if the event type is enabled
+	 * 
+	 * @param values
+	 *            Values of the fields in the order they were added. Primitive
+	 *            values are boxed
+	 */
+	public void commit(final Object... values) {
+		final MethodHandle newEvent = this.newEvent;
+		if (newEvent == null || !isEnabled())
+			return;
+		try {
+			final Object event = (Object) newEvent.invokeExact();
+			for (int i = 0; i < values.length; i++)
+				set.invokeExact(event, i, values[i]);
+			commit.invokeExact(event);
+		} catch (Throwable e) {
+			System.err.println("Cannot commit flight recorder event " + name
+					+ ": " + e);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,75 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value that can go up and down. Either set explicitly or read from a
+ * {@link Source} on each exposition
+ * 
+ */
+public class Gauge extends Metric {
+
+	/** Source of a gauge, that is read on demand */
+	public interface Source {
+		public long get();
+	}
+
+	private final AtomicLong value = new AtomicLong();
+	private final Source source;
+
+	Gauge(final String name, final String help, final Source source,
+			final String[] labels) {
+		super(name, help, labels);
+		this.source = source;
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             Thrown if the gauge reads a {@link Source}
+	 */
+	public void set(final long value) {
+		checkSettable();
+		this.value.set(value);
+	}
+
+	public void inc() {
+		add(1L);
+	}
+
+	public void dec() {
+		add(-1L);
+	}
+
+	public void add(final long delta) {
+		checkSettable();
+		value.addAndGet(delta);
+	}
+
+	public long get() {
+		if (source != null)
+			return source.get();
+		return value.get();
+	}
+
+	private void checkSettable() {
+		if (source != null)
+			throw new IllegalStateException("Gauge " + getName()
+					+ " is read from a source");
+	}
+
+	@Override
+	public String getType() {
+		return "gauge";
+	}
+
+	@Override
+	public String getDisplayValue() {
+		return Long.toString(get());
+	}
+
+	@Override
+	void writeSamples(final PrintWriter out) {
+		writeSample(out, "", null, null, get());
+	}
+}
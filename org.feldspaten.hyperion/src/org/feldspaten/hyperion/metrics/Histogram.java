@@ -0,0 +1,177 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values with log-linear buckets: Each power of
+ * two is divided into 16 linear sub-buckets, so quantiles are accurate to
+ * about 6% over the whole range of long. Recording is lock-free and doesn't
+ * allocate.
+ * 
+ * Exposed as Prometheus summary with the quantiles 0.5, 0.9, 0.99 and 0.999.
+ * Values are recorded in an integer unit, e.g. nanoseconds, and multiplied by
+ * the scale on exposition, e.g. 1e-9 for seconds
+ * 
+ */
+public class Histogram extends Metric {
+
+	/** Bits of the sub-buckets per power of two */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Number of buckets, covers all non-negative longs */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+	/** Exposed quantiles */
+	private static final double[] QUANTILES = new double[] { 0.5, 0.9, 0.99,
+			0.999 };
+
+	private final double scale;
+	private final String unit;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final Counter count;
+	private final Counter sum;
+	private final AtomicLong max = new AtomicLong();
+
+	Histogram(final String name, final String help, final double scale,
+			final String unit, final String[] labels) {
+		super(name, help, labels);
+		this.scale = scale;
+		this.unit = unit;
+		this.count = new Counter(name, help, labels);
+		this.sum = new Counter(name, help, labels);
+	}
+
+	/**
+	 * Record a value. Negative values are recorded as 0
+	 */
+	public void record(final long value) {
+		final long v = Math.max(0L, value);
+		buckets.incrementAndGet(index(v));
+		count.inc();
+		sum.add(v);
+		long current;
+		while (v > (current = max.get()))
+			if (max.compareAndSet(current, v))
+				break;
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return sum of the recorded values, unscaled
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return largest recorded value, unscaled
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return mean of the recorded values, unscaled
+	 */
+	public double getMean() {
+		final long n = count.get();
+		return n == 0L ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Estimate a quantile. The result is the midpoint of the bucket
+	 * containing the quantile
+	 * 
+	 * @param quantile
+	 *            between 0 and 1
+	 * @return estimated value, unscaled. 0 if nothing has been recorded
+	 */
+	public long getQuantile(final double quantile) {
+		final long[] snapshot = new long[BUCKETS];
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		return quantile(snapshot, total, quantile);
+	}
+
+	private long quantile(final long[] snapshot, final long total,
+			final double quantile) {
+		if (total == 0L)
+			return 0L;
+		final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(max.get(), lowerBound(i)
+						+ (upperBound(i) - lowerBound(i)) / 2);
+		}
+		return max.get();
+	}
+
+	static int index(final long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		// Position of the highest bit, at least SUB_BITS
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - SUB_BITS;
+		final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(final int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		final int shift = index / SUB_BUCKETS - 1;
+		final long sub = index % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << shift;
+	}
+
+	static long upperBound(final int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		final int shift = index / SUB_BUCKETS - 1;
+		return lowerBound(index) + (1L << shift) - 1L;
+	}
+
+	@Override
+	public String getType() {
+		return "summary";
+	}
+
+	@Override
+	public String getDisplayValue() {
+		final long n = getCount();
+		if (n == 0L)
+			return "-";
+		return String.format(Locale.ENGLISH,
+				"n=%d mean=%.3f p50=%.3f p99=%.3f max=%.3f %s", n, getMean()
+						* scale, getQuantile(0.5) * scale, getQuantile(0.99)
+						* scale, getMax() * scale, unit);
+	}
+
+	@Override
+	void writeSamples(final PrintWriter out) {
+		final long[] snapshot = new long[BUCKETS];
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		for (final double q : QUANTILES)
+			writeSample(out, "", "quantile", Double.toString(q),
+					quantile(snapshot, total, q) * scale);
+		writeSample(out, "_sum", null, null, sum.get() * scale);
+		writeSample(out, "_count", null, null, total);
+	}
+}
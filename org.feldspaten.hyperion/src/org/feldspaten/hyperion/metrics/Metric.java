@@ -0,0 +1,142 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Base of all metrics. A metric is identified by its name and its labels,
+ * metrics with the same name form a family in the exposition
+ * 
+ */
+public abstract class Metric {
+
+	/** Significant digits of exposed values */
+	private static final MathContext PRECISION = new MathContext(9);
+
+	private final String name;
+	private final String help;
+	/** Label names and values, alternating */
+	private final String[] labels;
+
+	protected Metric(final String name, final String help,
+			final String[] labels) {
+		if (name == null || !name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*"))
+			throw new IllegalArgumentException("Illegal metric name: " + name);
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException(
+					"Labels must be pairs of name and value");
+		this.name = name;
+		this.help = help;
+		this.labels = labels.clone();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getHelp() {
+		return help;
+	}
+
+	/**
+	 * @return label names and values, alternating
+	 */
+	public String[] getLabels() {
+		return labels.clone();
+	}
+
+	/**
+	 * @return Prometheus type of the metric
+	 */
+	public abstract String getType();
+
+	/**
+	 * @return current value in a human readable form
+	 */
+	public abstract String getDisplayValue();
+
+	/**
+	 * Write the samples of the metric in the Prometheus text format
+	 * 
+	 * @param out
+	 *            Destination
+	 */
+	abstract void writeSamples(final PrintWriter out);
+
+	/**
+	 * Write a single sample
+	 * 
+	 * @param suffix
+	 *            Suffix of the metric name, e.g. _sum
+	 * @param extraName
+	 *            Name of an additional label or null
+	 * @param extraValue
+	 *            Value of the additional label
+	 */
+	void writeSample(final PrintWriter out, final String suffix,
+			final String extraName, final String extraValue, final double value) {
+		out.print(name);
+		out.print(suffix);
+		if (labels.length > 0 || extraName != null) {
+			out.print('{');
+			boolean first = true;
+			for (int i = 0; i < labels.length; i += 2) {
+				if (!first)
+					out.print(',');
+				writeLabel(out, labels[i], labels[i + 1]);
+				first = false;
+			}
+			if (extraName != null) {
+				if (!first)
+					out.print(',');
+				writeLabel(out, extraName, extraValue);
+			}
+			out.print('}');
+		}
+		out.print(' ');
+		out.println(formatValue(value));
+	}
+
+	/**
+	 * @return key of the metric in the registry
+	 */
+	static String key(final String name, final String[] labels) {
+		if (labels.length == 0)
+			return name;
+		final StringBuilder key = new StringBuilder(name);
+		for (final String label : labels)
+			key.append('\u0000').append(label);
+		return key.toString();
+	}
+
+	private static void writeLabel(final PrintWriter out, final String name,
+			final String value) {
+		out.print(name);
+		out.print("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '\\')
+				out.print("\\\\");
+			else if (c == '"')
+				out.print("\\\"");
+			else if (c == '\n')
+				out.print("\\n");
+			else
+				out.print(c);
+		}
+		out.print('"');
+	}
+
+	static String formatValue(final double value) {
+		if (Double.isNaN(value))
+			return "NaN";
+		if (Double.isInfinite(value))
+			return value > 0 ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		// Scaled values carry rounding noise in the last digits
+		return new BigDecimal(value).round(PRECISION).stripTrailingZeros()
+				.toString();
+	}
+}
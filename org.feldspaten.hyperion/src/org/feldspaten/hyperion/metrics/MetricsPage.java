@@ -0,0 +1,63 @@
+package org.feldspaten.hyperion.metrics;
+
+import org.feldspaten.hyperion.html.Page;
+import org.feldspaten.hyperion.html.Table;
+
+/**
+ * Admin page showing the current values of a {@link MetricsRegistry}, one
+ * table per metric type
+ * 
+ */
+public class MetricsPage extends Page {
+
+	/**
+	 * Create a page for the default registry
+	 */
+	public MetricsPage() {
+		this(MetricsRegistry.getDefault());
+	}
+
+	public MetricsPage(final MetricsRegistry registry) {
+		super();
+		setTitle("Metrics");
+		addHeadline("Metrics", 1);
+		addTable(registry, "counter", "Counters");
+		addTable(registry, "gauge", "Gauges");
+		addTable(registry, "summary", "Distributions");
+	}
+
+	private void addTable(final MetricsRegistry registry, final String type,
+			final String title) {
+		Table table = null;
+		for (final Metric metric : registry.getMetrics()) {
+			if (!metric.getType().equals(type))
+				continue;
+			if (table == null) {
+				addHeadline(title, 2);
+				table = addTable();
+				table.setBorderWidth(1);
+				table.setCellPadding(2);
+				table.addRow().put("<b>Name</b>").put("<b>Labels</b>")
+						.put("<b>Value</b>");
+			}
+			table.addRow().put(escape(metric.getName()))
+					.put(escape(formatLabels(metric.getLabels())))
+					.put(escape(metric.getDisplayValue()));
+		}
+	}
+
+	private static String formatLabels(final String[] labels) {
+		final StringBuilder buffer = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0)
+				buffer.append(", ");
+			buffer.append(labels[i]).append('=').append(labels[i + 1]);
+		}
+		return buffer.toString();
+	}
+
+	private static String escape(final String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
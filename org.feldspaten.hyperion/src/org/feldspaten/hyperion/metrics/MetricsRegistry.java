@@ -0,0 +1,171 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of metrics. Metrics are created on first request and returned from
+ * the registry afterwards, so callers should keep references to metrics on
+ * hot paths instead of looking them up on each use.
+ * 
+ * Labels are given as alternating names and values, e.g.
+ * <code>counter("requests_total", "Requests", "method", "GET")</code>
+ * 
+ */
+public class MetricsRegistry {
+
+	/** Registry used by Hyperion itself */
+	private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+	private final ConcurrentHashMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	/**
+	 * @return registry used by Hyperion itself
+	 */
+	public static MetricsRegistry getDefault() {
+		return defaultRegistry;
+	}
+
+	/**
+	 * Get or create a counter
+	 * 
+	 * @param name
+	 *            Name of the metric
+	 * @param help
+	 *            Description of the metric
+	 * @param labels
+	 *            Label names and values, alternating
+	 * @return counter
+	 */
+	public Counter counter(final String name, final String help,
+			final String... labels) {
+		final String key = Metric.key(name, labels);
+		final Metric metric = metrics.get(key);
+		if (metric != null)
+			return cast(metric, Counter.class);
+		return cast(register(key, new Counter(name, help, labels)),
+				Counter.class);
+	}
+
+	/**
+	 * Get or create a gauge, that is set explicitly
+	 */
+	public Gauge gauge(final String name, final String help,
+			final String... labels) {
+		return gauge(name, help, null, labels);
+	}
+
+	/**
+	 * Get or create a gauge
+	 * 
+	 * @param source
+	 *            Source of the value or null, if set explicitly. Ignored if
+	 *            the gauge exists already
+	 */
+	public Gauge gauge(final String name, final String help,
+			final Gauge.Source source, final String... labels) {
+		final String key = Metric.key(name, labels);
+		final Metric metric = metrics.get(key);
+		if (metric != null)
+			return cast(metric, Gauge.class);
+		return cast(register(key, new Gauge(name, help, source, labels)),
+				Gauge.class);
+	}
+
+	/**
+	 * Get or create a histogram
+	 * 
+	 * @param scale
+	 *            Factor from the recorded unit to the exposed unit, e.g. 1e-9
+	 *            for nanoseconds exposed as seconds
+	 * @param unit
+	 *            Exposed unit for the HTML page, e.g. s
+	 */
+	public Histogram histogram(final String name, final String help,
+			final double scale, final String unit, final String... labels) {
+		final String key = Metric.key(name, labels);
+		final Metric metric = metrics.get(key);
+		if (metric != null)
+			return cast(metric, Histogram.class);
+		return cast(register(key, new Histogram(name, help, scale, unit,
+				labels)), Histogram.class);
+	}
+
+	/**
+	 * Remove a metric
+	 * 
+	 * @return true if removed
+	 */
+	public boolean remove(final Metric metric) {
+		return metrics.remove(Metric.key(metric.getName(), metric.getLabels()),
+				metric);
+	}
+
+	/**
+	 * @return all metrics, sorted by name
+	 */
+	public List<Metric> getMetrics() {
+		final List<Metric> result = new ArrayList<Metric>(metrics.values());
+		Collections.sort(result, new Comparator<Metric>() {
+			@Override
+			public int compare(final Metric m1, final Metric m2) {
+				final int result = m1.getName().compareTo(m2.getName());
+				if (result != 0)
+					return result;
+				return Metric.key("", m1.getLabels()).compareTo(
+						Metric.key("", m2.getLabels()));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text format, version 0.0.4
+	 * 
+	 * @param out
+	 *            Destination
+	 */
+	public void writePrometheus(final PrintWriter out) {
+		String family = null;
+		for (final Metric metric : getMetrics()) {
+			if (!metric.getName().equals(family)) {
+				family = metric.getName();
+				if (metric.getHelp() != null) {
+					out.print("# HELP ");
+					out.print(family);
+					out.print(' ');
+					out.println(metric.getHelp().replace("\\", "\\\\")
+							.replace("\n", "\\n"));
+				}
+				out.print("# TYPE ");
+				out.print(family);
+				out.print(' ');
+				out.println(metric.getType());
+			}
+			metric.writeSamples(out);
+		}
+		out.flush();
+	}
+
+	private Metric register(final String key, final Metric metric) {
+		for (final Metric existing : metrics.values())
+			if (existing.getName().equals(metric.getName())
+					&& !existing.getType().equals(metric.getType()))
+				throw new IllegalArgumentException("Metric "
+						+ metric.getName() + " is a " + existing.getType());
+		final Metric existing = metrics.putIfAbsent(key, metric);
+		return existing == null ? metric : existing;
+	}
+
+	private static <T extends Metric> T cast(final Metric metric,
+			final Class<T> type) {
+		if (!type.isInstance(metric))
+			throw new IllegalArgumentException("Metric " + metric.getName()
+					+ " is a " + metric.getType());
+		return type.cast(metric);
+	}
+}
@@ -0,0 +1,160 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant lock that publishes its contention as metrics, to find the
+ * critical sections that limit the throughput.
+ * 
+ * An uncontended acquisition only increments a counter. If the lock is held
+ * by another thread, the time until it is acquired and the number of threads
+ * already waiting are recorded. Locks with the same name share their metrics
+ * 
+ */
+public class MonitoredLock implements Lock {
+
+	private final String name;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Counter acquisitions;
+	private final Counter contended;
+	/** Wait time of contended acquisitions in nanoseconds */
+	private final Histogram waitTime;
+	/** Queue length seen by contended acquisitions, including themselves */
+	private final Histogram queueDepth;
+	/** Threads currently waiting */
+	private final Gauge waiting;
+
+	/**
+	 * Create a new lock with metrics in the default registry
+	 * 
+	 * @param name
+	 *            Name of the lock, used as label of the metrics
+	 */
+	public MonitoredLock(final String name) {
+		this(name, MetricsRegistry.getDefault());
+	}
+
+	/**
+	 * Create a new lock
+	 * 
+	 * @param name
+	 *            Name of the lock, used as label of the metrics
+	 * @param registry
+	 *            Registry of the metrics
+	 */
+	public MonitoredLock(final String name, final MetricsRegistry registry) {
+		this.name = name;
+		acquisitions = registry.counter("hyperion_lock_acquisitions_total",
+				"Lock acquisitions", "lock", name);
+		contended = registry.counter("hyperion_lock_contended_total",
+				"Lock acquisitions that had to wait", "lock", name);
+		waitTime = registry.histogram("hyperion_lock_wait_seconds",
+				"Wait time of contended lock acquisitions", 1e-9, "s", "lock",
+				name);
+		queueDepth = registry.histogram("hyperion_lock_queue_depth",
+				"Waiting threads seen by contended lock acquisitions", 1.0,
+				"threads", "lock", name);
+		waiting = registry.gauge("hyperion_lock_waiting_threads",
+				"Threads currently waiting for the lock", "lock", name);
+	}
+
+	@Override
+	public void lock() {
+		acquisitions.inc();
+		if (lock.tryLock())
+			return;
+		final long start = contention();
+		try {
+			lock.lock();
+		} finally {
+			waited(start);
+		}
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		acquisitions.inc();
+		if (lock.tryLock())
+			return;
+		final long start = contention();
+		try {
+			lock.lockInterruptibly();
+		} finally {
+			waited(start);
+		}
+	}
+
+	@Override
+	public boolean tryLock() {
+		if (!lock.tryLock())
+			return false;
+		acquisitions.inc();
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(final long time, final TimeUnit unit)
+			throws InterruptedException {
+		if (lock.tryLock()) {
+			acquisitions.inc();
+			return true;
+		}
+		final long start = contention();
+		final boolean locked;
+		try {
+			locked = lock.tryLock(time, unit);
+		} finally {
+			waited(start);
+		}
+		if (locked)
+			acquisitions.inc();
+		return locked;
+	}
+
+	@Override
+	public void unlock() {
+		lock.unlock();
+	}
+
+	@Override
+	public Condition newCondition() {
+		return lock.newCondition();
+	}
+
+	/**
+	 * Record the start of a contended acquisition
+	 * 
+	 * @return start timestamp
+	 */
+	private long contention() {
+		contended.inc();
+		queueDepth.record(lock.getQueueLength() + 1);
+		waiting.inc();
+		return System.nanoTime();
+	}
+
+	private void waited(final long start) {
+		waitTime.record(System.nanoTime() - start);
+		waiting.dec();
+	}
+
+	/**
+	 * @return true if the current thread holds the lock
+	 */
+	public boolean isHeldByCurrentThread() {
+		return lock.isHeldByCurrentThread();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return "MonitoredLock[" + name + ", " + lock + "]";
+	}
+}
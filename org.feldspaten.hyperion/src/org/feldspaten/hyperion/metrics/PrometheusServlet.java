@@ -0,0 +1,45 @@
+package org.feldspaten.hyperion.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exposes a {@link MetricsRegistry} in the Prometheus text format. Map it to
+ * e.g. <code>/metrics</code> and restrict access to it in the container, the
+ * metrics contain servlet names and request statistics
+ * 
+ */
+public class PrometheusServlet extends HttpServlet {
+
+	/** Serialisation ID */
+	private static final long serialVersionUID = 1L;
+
+	private final transient MetricsRegistry registry;
+
+	/**
+	 * Expose the default registry
+	 */
+	public PrometheusServlet() {
+		this(MetricsRegistry.getDefault());
+	}
+
+	public PrometheusServlet(final MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest req,
+			final HttpServletResponse resp) throws ServletException,
+			IOException {
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		final PrintWriter out = resp.getWriter();
+		registry.writePrometheus(out);
+	}
+}
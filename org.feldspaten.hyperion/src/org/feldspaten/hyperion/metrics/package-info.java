@@ -0,0 +1,6 @@
+/**
+ * Lock-free metrics with exposition in the Prometheus text format and as
+ * HTML page
+ * 
+ */
+package org.feldspaten.hyperion.metrics;
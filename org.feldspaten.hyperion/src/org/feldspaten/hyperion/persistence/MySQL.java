@@ -14,6 +14,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.feldspaten.hyperion.metrics.MonitoredLock;
+
 public class MySQL {
 
 	/* Connection parameters */
@@ -39,8 +41,11 @@ public class MySQL {
 	/** Offset in seconds for the timezone in seconds */
 	private long timezoneOffset = 60L * 60L;
 
-	/** JDBC connection */
-	private java.sql.Connection conn = null;
+	/** JDBC connection, replaced only while holding the connection lock */
+	private volatile java.sql.Connection conn = null;
+	/** Guards the connection while it is checked and statements are created */
+	private final MonitoredLock connectionLock = new MonitoredLock(
+			"MySQL.connection");
 
 	/** {@link SimpleDateFormat} for formatting dates to MySQL date instances */
 	static final SimpleDateFormat sqlDateTimeFormatter = new SimpleDateFormat(
@@ -269,7 +274,12 @@ public class MySQL {
 				throws SQLException {
 			cleanup();
 			this.query = sql;
-			this.rs = stmt.executeQuery(sql);
+			final long start = QueryMonitor.start();
+			try {
+				this.rs = stmt.executeQuery(sql);
+			} finally {
+				QueryMonitor.executed(sql, start);
+			}
 			return this.rs;
 		}
 
@@ -341,13 +351,25 @@ public class MySQL {
 		public synchronized boolean execute(String sql) throws SQLException {
 			cleanup();
 			this.query = sql;
-			return stmt.execute(sql);
+			final long start = QueryMonitor.start();
+			try {
+				return stmt.execute(sql);
+			} finally {
+				QueryMonitor.executed(sql, start);
+			}
 		}
 
 		public synchronized int executeUpdate(String sql) throws SQLException {
 			cleanup();
 			this.query = sql;
-			return stmt.executeUpdate(sql);
+			final long start = QueryMonitor.start();
+			int rows = -1;
+			try {
+				rows = stmt.executeUpdate(sql);
+				return rows;
+			} finally {
+				QueryMonitor.executed(sql, start, rows);
+			}
 		}
 
 		public synchronized ResultSetMetaData getResultSetMetaData()
@@ -603,6 +625,37 @@ public class MySQL {
 		this(hostname, DEFAULT_PORT, database, username, password);
 	}
 
+	public String getHostname() {
+		return db_hostname;
+	}
+
+	public int getPort() {
+		return db_port;
+	}
+
+	public String getDatabase() {
+		return db_database;
+	}
+
+	public String getUsername() {
+		return db_username;
+	}
+
+	/**
+	 * Checks if a connection is open, without contacting the database and
+	 * without waiting for a connection check in progress
+	 * 
+	 * @return true if a connection is open
+	 */
+	public boolean isConnected() {
+		final java.sql.Connection conn = this.conn;
+		try {
+			return conn != null && !conn.isClosed();
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
 	public String getDefaultEncoding() {
 		return defaultEncoding;
 	}
@@ -640,7 +693,7 @@ public class MySQL {
 	public void execSql(final String sql) throws SQLException {
 		final Statement stmt = createStatement();
 		try {
-			stmt.execute(sql);
+			execute(stmt, sql);
 		} finally {
 			stmt.close();
 		}
@@ -675,26 +728,42 @@ public class MySQL {
 		final Statement stmt = createStatement();
 		try {
 			if (transaction)
-				stmt.execute("START TRANSACTION;");
+				execute(stmt, "START TRANSACTION;");
 
 			for (String sql : sqls)
-				stmt.execute(sql);
+				execute(stmt, sql);
 		} finally {
 			if (transaction)
-				stmt.execute("COMMIT;");
+				execute(stmt, "COMMIT;");
 			stmt.close();
 		}
 	}
 
+	/**
+	 * Execute a statement and report it to the {@link QueryMonitor}
+	 */
+	private static boolean execute(final Statement stmt, final String sql)
+			throws SQLException {
+		final long start = QueryMonitor.start();
+		try {
+			return stmt.execute(sql);
+		} finally {
+			QueryMonitor.executed(sql, start);
+		}
+	}
+
 	public void executeSql(final String sql) throws SQLException {
 		execSql(sql);
 	}
 
 	public void executeUpdate(final String sql) throws SQLException {
 		final Statement stmt = createStatement();
+		final long start = QueryMonitor.start();
+		int rows = -1;
 		try {
-			stmt.executeUpdate(sql);
+			rows = stmt.executeUpdate(sql);
 		} finally {
+			QueryMonitor.executed(sql, start, rows);
 			stmt.close();
 		}
 	}
@@ -704,13 +773,18 @@ public class MySQL {
 	 * connection parameters, i.e. hostname, port, database, username and
 	 * password
 	 */
-	public synchronized void connect() {
+	public void connect() {
+		connectionLock.lock();
 		try {
-			if (conn != null)
-				conn.close();
-			checkConnection();
-		} catch (SQLException e) {
-			// Ignore
+			try {
+				if (conn != null)
+					conn.close();
+				checkConnection();
+			} catch (SQLException e) {
+				// Ignore
+			}
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -719,41 +793,46 @@ public class MySQL {
 	 * 
 	 * @return true if the connection is alive after the call
 	 */
-	public synchronized boolean checkConnection() {
-		if (closed)
-			return false;
-		final int timeout = 5000;
+	public boolean checkConnection() {
+		connectionLock.lock();
 		try {
-			if (conn != null && conn.isValid(timeout))
-				return true;
-		} catch (SQLException e) {
-			// Consider as a broken connection.
-		}
-
-		final String url = createJDBCAddress();
+			if (closed)
+				return false;
+			final int timeout = 5000;
+			try {
+				if (conn != null && conn.isValid(timeout))
+					return true;
+			} catch (SQLException e) {
+				// Consider as a broken connection.
+			}
 
-		java.sql.Connection con = conn;
-		try {
-			con = DriverManager.getConnection(url);
+			final String url = createJDBCAddress();
 
+			java.sql.Connection con = conn;
 			try {
-				if (conn != null)
-					conn.close();
+				con = DriverManager.getConnection(url);
+
+				try {
+					if (conn != null)
+						conn.close();
+				} catch (SQLException e) {
+					System.err.println("Error closing existing JDBC: "
+							+ e.getLocalizedMessage());
+					con.close();
+					return false;
+				}
+
+				// Set new connection
+				conn = con;
+				return true;
+
 			} catch (SQLException e) {
-				System.err.println("Error closing existing JDBC: "
+				System.err.println("New JDBC Connection failed: "
 						+ e.getLocalizedMessage());
-				con.close();
 				return false;
 			}
-
-			// Set new connection
-			conn = con;
-			return true;
-
-		} catch (SQLException e) {
-			System.err.println("New JDBC Connection failed: "
-					+ e.getLocalizedMessage());
-			return false;
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -772,32 +851,37 @@ public class MySQL {
 	/**
 	 * (Re)connects the database and throws an {@link SQLException} if failed
 	 */
-	protected synchronized void reconnectThrowsException() throws SQLException {
+	protected void reconnectThrowsException() throws SQLException {
+		connectionLock.lock();
 		try {
-			if (conn != null)
-				conn.close();
-		} catch (SQLException e) {
-			// Ignore
-		}
+			try {
+				if (conn != null)
+					conn.close();
+			} catch (SQLException e) {
+				// Ignore
+			}
 
-		final String url;
-		{
-			String url_ = "jdbc:mysql://" + db_hostname + ":" + db_port + "/"
-					+ db_database + "?user=" + db_username;
-			if (db_password != null && db_password.length() > 0)
-				url_ += "&password=" + db_password;
-			url = url_;
-		}
+			final String url;
+			{
+				String url_ = "jdbc:mysql://" + db_hostname + ":" + db_port + "/"
+						+ db_database + "?user=" + db_username;
+				if (db_password != null && db_password.length() > 0)
+					url_ += "&password=" + db_password;
+				url = url_;
+			}
 
-		java.sql.Connection con = conn;
-		try {
-			con = DriverManager.getConnection(url);
+			java.sql.Connection con = conn;
+			try {
+				con = DriverManager.getConnection(url);
 
-			// Set new connection
-			conn = con;
+				// Set new connection
+				conn = con;
 
-		} catch (SQLException e) {
-			throw e;
+			} catch (SQLException e) {
+				throw e;
+			}
+		} finally {
+			connectionLock.unlock();
 		}
 	}
 
@@ -860,15 +944,19 @@ public class MySQL {
 	 * @throws SQLException
 	 *             Packet {@link SQLException} if occurring
 	 */
-	public synchronized Statement createStatement() throws SQLException {
-		checkConnection();
-		if (conn == null)
-			throw new SQLException("Error setting up SQL connection");
-		final Statement statement = conn.createStatement();
-		statement.execute("SET NAMES " + defaultEncoding + ";");
-		statement.execute("SET time_zone = '" + timezone + "';");
-		return statement;
-
+	public Statement createStatement() throws SQLException {
+		connectionLock.lock();
+		try {
+			checkConnection();
+			if (conn == null)
+				throw new SQLException("Error setting up SQL connection");
+			final Statement statement = conn.createStatement();
+			execute(statement, "SET NAMES " + defaultEncoding + ";");
+			execute(statement, "SET time_zone = '" + timezone + "';");
+			return statement;
+		} finally {
+			connectionLock.unlock();
+		}
 	}
 
 	/**
@@ -878,15 +966,25 @@ public class MySQL {
 	 * @throws SQLException
 	 *             Packet {@link SQLException} if occurring
 	 */
-	public PreparedStatement createPreparedStatement(final String sql)
-			throws SQLException {
-		checkConnection();
-		if (conn == null)
-			throw new SQLException("Error setting up SQL connection");
-		final PreparedStatement statement = conn.prepareStatement(sql);
-		statement.execute("SET NAMES " + defaultEncoding + ";");
-		statement.execute("SET time_zone = '" + timezone + "';");
-		return statement;
+	public PreparedStatement createPreparedStatement(
+			final String sql) throws SQLException {
+		connectionLock.lock();
+		try {
+			checkConnection();
+			if (conn == null)
+				throw new SQLException("Error setting up SQL connection");
+			// execute(String) is not allowed on a PreparedStatement
+			final Statement setup = conn.createStatement();
+			try {
+				execute(setup, "SET NAMES " + defaultEncoding + ";");
+				execute(setup, "SET time_zone = '" + timezone + "';");
+			} finally {
+				setup.close();
+			}
+			return conn.prepareStatement(sql);
+		} finally {
+			connectionLock.unlock();
+		}
 	}
 
 	/**
@@ -916,7 +1014,7 @@ public class MySQL {
 		final java.sql.Statement stmt = createStatement();
 		try {
 
-			stmt.executeQuery("SELECT version();");
+			execute(stmt, "SELECT version();");
 
 			ResultSet rs = stmt.getResultSet();
 			try {
@@ -0,0 +1,172 @@
+package org.feldspaten.hyperion.persistence;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notifies listeners about the statements executed by {@link MySQL}, e.g. to
+ * attribute database time to requests. Statements executed directly on a
+ * {@link java.sql.PreparedStatement} from
+ * {@link MySQL#createPreparedStatement(String)} are not reported
+ * 
+ */
+public final class QueryMonitor {
+
+	/** Listener for executed statements */
+	public interface Listener {
+		/**
+		 * Called on the executing thread after a statement completed or
+		 * failed
+		 * 
+		 * @param sql
+		 *            Executed statement
+		 * @param rows
+		 *            Number of affected rows of updates, -1 if unknown
+		 * @param nanos
+		 *            Execution time in nanoseconds
+		 */
+		public void queryExecuted(final String sql, final int rows,
+				final long nanos);
+	}
+
+	/** Listener for statements about to be executed */
+	public interface StartListener {
+		/**
+		 * Called on the executing thread before a statement is executed
+		 */
+		public void queryStarted();
+	}
+
+	/** Registered listeners */
+	private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private static final CopyOnWriteArrayList<StartListener> startListeners = new CopyOnWriteArrayList<StartListener>();
+
+	private QueryMonitor() {
+	}
+
+	public static void addListener(final Listener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		listeners.addIfAbsent(listener);
+	}
+
+	public static void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public static void addStartListener(final StartListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		startListeners.addIfAbsent(listener);
+	}
+
+	public static void removeStartListener(final StartListener listener) {
+		startListeners.remove(listener);
+	}
+
+	/**
+	 * @return start timestamp for {@link #executed(String, long)} or 0, if no
+	 *         listener is registered
+	 */
+	static long start() {
+		for (final StartListener listener : startListeners) {
+			try {
+				listener.queryStarted();
+			} catch (RuntimeException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		return listeners.isEmpty() ? 0L : System.nanoTime();
+	}
+
+	static void executed(final String sql, final long start) {
+		executed(sql, start, -1);
+	}
+
+	/**
+	 * Notify the listeners about an executed statement
+	 * 
+	 * @param sql
+	 *            Executed statement
+	 * @param start
+	 *            Timestamp returned by {@link #start()}
+	 * @param rows
+	 *            Number of affected rows or -1, if unknown
+	 */
+	static void executed(final String sql, final long start, final int rows) {
+		if (start == 0L)
+			return;
+		final long nanos = System.nanoTime() - start;
+		for (final Listener listener : listeners) {
+			try {
+				listener.queryExecuted(sql, rows, nanos);
+			} catch (RuntimeException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * Get the shape of a statement, with string and number literals replaced
+	 * by <code>?</code> and whitespace collapsed, so that statements differing
+	 * only in their values have the same shape
+	 * 
+	 * @param sql
+	 *            Statement
+	 * @param maxLength
+	 *            Maximum length of the result
+	 * @return shape of the statement
+	 */
+	public static String shape(final String sql, final int maxLength) {
+		final StringBuilder result = new StringBuilder(Math.min(sql.length(),
+				maxLength));
+		final int length = sql.length();
+		int i = 0;
+		while (i < length && result.length() < maxLength) {
+			final char c = sql.charAt(i);
+			if (c == '\'' || c == '"') {
+				// String literal, with backslash escapes and doubled quotes
+				i++;
+				while (i < length) {
+					final char d = sql.charAt(i++);
+					if (d == '\\')
+						i++;
+					else if (d == c) {
+						if (i < length && sql.charAt(i) == c)
+							i++;
+						else
+							break;
+					}
+				}
+				result.append('?');
+			} else if (Character.isDigit(c) && !isIdentifier(result)) {
+				while (i < length
+						&& (Character.isLetterOrDigit(sql.charAt(i)) || sql
+								.charAt(i) == '.'))
+					i++;
+				result.append('?');
+			} else if (Character.isWhitespace(c)) {
+				while (i < length && Character.isWhitespace(sql.charAt(i)))
+					i++;
+				if (result.length() > 0)
+					result.append(' ');
+			} else {
+				result.append(c);
+				i++;
+			}
+		}
+		if (result.length() > maxLength)
+			result.setLength(maxLength);
+		return result.toString().trim();
+	}
+
+	/**
+	 * @return true if the given text ends within an identifier
+	 */
+	private static boolean isIdentifier(final CharSequence text) {
+		if (text.length() == 0)
+			return false;
+		final char last = text.charAt(text.length() - 1);
+		return Character.isLetterOrDigit(last) || last == '_' || last == '`'
+				|| last == '$';
+	}
+}
@@ -0,0 +1,543 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.feldspaten.hyperion.metrics.Counter;
+import org.feldspaten.hyperion.metrics.Gauge;
+import org.feldspaten.hyperion.metrics.MetricsRegistry;
+
+/**
+ * Access log in the combined log format, followed by the duration of the
+ * request in microseconds and the ID of the {@link RequestTrace}.
+ * 
+ * Request threads only capture the entry and hand it to a writer thread
+ * through a lock-free ring buffer. The writer formats the entries and writes
+ * them in batches through a {@link FileChannel}. If the writer cannot keep
+ * up, entries are dropped or sampled by the {@link OverflowPolicy}, so logging
+ * never blocks a request. The file is rolled once it exceeds the maximum size.
+ * 
+ * Register the log with
+ * {@link HttpSessionServlet#addRequestListener(RequestListener)} after
+ * {@link #start()} and {@link #close()} it on shutdown, to write the pending
+ * entries
+ * 
+ */
+public class AccessLog implements RequestListener, Closeable {
+
+	/** Handling of entries if the buffer is filling up */
+	public enum OverflowPolicy {
+		/** Drop entries while the buffer is full */
+		DROP,
+		/**
+		 * Keep only a sample of successful requests while the buffer is more
+		 * than half full. Errors are kept until the buffer is full
+		 */
+		SAMPLE
+	}
+
+	/** Default capacity of the buffer */
+	public static final int DEFAULT_CAPACITY = 8192;
+	/** Default size in bytes, after which the file is rolled */
+	public static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024L * 1024L;
+	/** Default number of rolled files that are kept */
+	public static final int DEFAULT_MAX_FILES = 5;
+
+	/** Characters written per batch */
+	private static final int BATCH_CHARS = 64 * 1024;
+	/** Time in milliseconds to wait for the writer on close */
+	private static final long CLOSE_TIMEOUT = 5000L;
+
+	/** Captured request, formatted by the writer thread */
+	private static class Entry {
+		private final long time;
+		private final String remoteAddr;
+		private final String user;
+		private final String method;
+		private final String uri;
+		private final String protocol;
+		private final int status;
+		private final long length;
+		private final String referer;
+		private final String userAgent;
+		private final long micros;
+		private final String id;
+
+		private Entry(final HttpServletRequest request, final long length,
+				final RequestTrace trace) {
+			final String query = request.getQueryString();
+			this.time = trace.getStartTime();
+			this.remoteAddr = request.getRemoteAddr();
+			this.user = trace.getUser();
+			this.method = request.getMethod();
+			this.uri = query == null ? request.getRequestURI() : request
+					.getRequestURI() + "?" + query;
+			this.protocol = request.getProtocol();
+			this.status = trace.getStatus();
+			this.length = length;
+			this.referer = request.getHeader("Referer");
+			this.userAgent = request.getHeader("User-Agent");
+			this.micros = trace.getTotalNanos() / 1000L;
+			this.id = trace.getId();
+		}
+	}
+
+	private final Path file;
+	/** Ring buffer, a slot is null until its entry has been published */
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	/** Next sequence claimed by a request thread */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next sequence taken by the writer, written only by the writer */
+	private volatile long head = 0L;
+
+	/* Configuration */
+	private volatile OverflowPolicy policy = OverflowPolicy.DROP;
+	private volatile int sampleRate = 10;
+	private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+	private volatile int maxFiles = DEFAULT_MAX_FILES;
+	/** Time in milliseconds between flushes of an idle writer */
+	private volatile long flushInterval = 200L;
+
+	private final Counter written;
+	private final Counter dropped;
+	private final Counter sampled;
+
+	private volatile Thread writer = null;
+	private volatile boolean running = false;
+
+	/* State of the writer thread */
+	private FileChannel channel = null;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+
+	/**
+	 * Create a log with the default capacity
+	 * 
+	 * @param file
+	 *            Log file. Rolled files get the suffixes .1, .2, ...
+	 */
+	public AccessLog(final Path file) {
+		this(file, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param file
+	 *            Log file. Rolled files get the suffixes .1, .2, ...
+	 * @param capacity
+	 *            Number of entries that can be pending, rounded up to a power
+	 *            of two
+	 */
+	public AccessLog(final Path file, final int capacity) {
+		if (file == null)
+			throw new NullPointerException("No log file");
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Illegal capacity");
+		this.file = file;
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity
+				: Integer.highestOneBit(capacity) << 1;
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+
+		final MetricsRegistry registry = MetricsRegistry.getDefault();
+		final String name = file.getFileName().toString();
+		written = registry.counter("hyperion_access_log_entries_total",
+				"Access log entries by result", "log", name, "result",
+				"written");
+		dropped = registry.counter("hyperion_access_log_entries_total",
+				"Access log entries by result", "log", name, "result",
+				"dropped");
+		sampled = registry.counter("hyperion_access_log_entries_total",
+				"Access log entries by result", "log", name, "result",
+				"sampled");
+		registry.gauge("hyperion_access_log_pending",
+				"Access log entries waiting for the writer",
+				new Gauge.Source() {
+					@Override
+					public long get() {
+						return getPending();
+					}
+				}, "log", name);
+	}
+
+	/**
+	 * Open the file and start the writer thread
+	 * 
+	 * @throws IOException
+	 *             Thrown if the file cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		if (writer != null)
+			throw new IllegalStateException("Access log already started");
+		final Path parent = file.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		channel = open();
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "AccessLog " + file.getFileName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stop the writer thread after writing the pending entries and close the
+	 * file. Entries of requests completing afterwards are dropped
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		final Thread thread = writer;
+		if (thread == null || !running)
+			return;
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void requestCompleted(final HttpSessionServlet.Request request,
+			final RequestTrace trace) {
+		if (!running) {
+			dropped.inc();
+			return;
+		}
+		final long pending = getPending();
+		if (policy == OverflowPolicy.SAMPLE && pending > mask / 2
+				&& trace.getStatus() < 500
+				&& ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+			sampled.inc();
+			return;
+		}
+
+		// Pages are streamed without a Content-Length header
+		long length = trace.getResponseBytes();
+		final String contentLength = request.response
+				.getHeader("Content-Length");
+		if (length == 0L && contentLength != null
+				&& !"HEAD".equals(request.request.getMethod())) {
+			try {
+				length = Long.parseLong(contentLength);
+			} catch (NumberFormatException e) {
+				// Logged as without body
+			}
+		}
+		if (!offer(new Entry(request.request, length, trace))) {
+			dropped.inc();
+			return;
+		}
+		// Wake the writer early, if a batch is ready
+		if (pending == mask / 4)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Publish an entry in the next free slot
+	 * 
+	 * @return false if the buffer is full
+	 */
+	private boolean offer(final Entry entry) {
+		while (true) {
+			final long sequence = tail.get();
+			if (sequence - head > mask)
+				return false;
+			if (tail.compareAndSet(sequence, sequence + 1)) {
+				slots.lazySet((int) sequence & mask, entry);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Take the next entry, called only by the writer
+	 * 
+	 * @return entry or null, if none is published
+	 */
+	private Entry poll() {
+		final long sequence = head;
+		final int index = (int) sequence & mask;
+		final Entry entry = slots.get(index);
+		if (entry == null)
+			return null;
+		slots.lazySet(index, null);
+		// Frees the slot for the request threads
+		head = sequence + 1;
+		return entry;
+	}
+
+	/**
+	 * Loop of the writer thread
+	 */
+	private void writeEntries() {
+		final StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+		while (true) {
+			// Drain everything published before the log has been closed
+			final boolean stopping = !running;
+			int count = 0;
+			Entry entry;
+			while (batch.length() < BATCH_CHARS && (entry = poll()) != null) {
+				format(entry, batch);
+				count++;
+			}
+			if (count > 0) {
+				write(batch);
+				written.add(count);
+				batch.setLength(0);
+			} else if (stopping)
+				break;
+			else
+				LockSupport.parkNanos(this, flushInterval * 1000L * 1000L);
+		}
+		try {
+			if (channel != null) {
+				channel.force(false);
+				channel.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot close access log " + file + ": " + e);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Write a batch, rolling the file if it would exceed the maximum size.
+	 * The batch is lost if the file cannot be written
+	 */
+	private void write(final StringBuilder batch) {
+		final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer
+				.wrap(batch));
+		try {
+			if (channel == null)
+				channel = open();
+			final long size = channel.size();
+			if (size > 0L && size + bytes.remaining() > maxFileSize) {
+				channel.close();
+				channel = null;
+				roll();
+				channel = open();
+			}
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+		} catch (IOException e) {
+			System.err.println("Cannot write access log " + file + ": " + e);
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException e1) {
+				// Reopened with the next batch
+			}
+			channel = null;
+		}
+	}
+
+	private FileChannel open() throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Shift the rolled files by one, dropping the oldest one
+	 */
+	private void roll() throws IOException {
+		final int files = maxFiles;
+		if (files <= 0) {
+			Files.delete(file);
+			return;
+		}
+		Files.deleteIfExists(rolled(files));
+		for (int i = files - 1; i >= 1; i--) {
+			final Path source = rolled(i);
+			if (Files.exists(source))
+				Files.move(source, rolled(i + 1),
+						StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Path rolled(final int index) {
+		return file.resolveSibling(file.getFileName() + "." + index);
+	}
+
+	private void format(final Entry entry, final StringBuilder buffer) {
+		buffer.append(entry.remoteAddr == null ? "-" : entry.remoteAddr)
+				.append(" - ");
+		if (entry.user == null)
+			buffer.append('-');
+		else
+			escape(entry.user, buffer);
+		buffer.append(" [").append(dateFormat.format(new Date(entry.time)))
+				.append("] \"");
+		escape(entry.method, buffer);
+		buffer.append(' ');
+		escape(entry.uri, buffer);
+		buffer.append(' ');
+		escape(entry.protocol, buffer);
+		buffer.append("\" ").append(entry.status).append(' ');
+		// Like %b, a response without body is logged as '-'
+		if (entry.length <= 0L)
+			buffer.append('-');
+		else
+			buffer.append(entry.length);
+		buffer.append(" \"");
+		escape(entry.referer == null ? "-" : entry.referer, buffer);
+		buffer.append("\" \"");
+		escape(entry.userAgent == null ? "-" : entry.userAgent, buffer);
+		buffer.append("\" ").append(entry.micros).append(' ').append(entry.id)
+				.append('\n');
+	}
+
+	/**
+	 * Append a value, escaping quotes, backslashes and control characters
+	 * like Apache httpd
+	 */
+	private static void escape(final String value, final StringBuilder buffer) {
+		if (value == null)
+			return;
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				buffer.append('\\').append(c);
+			else if (c < 0x20 || c == 0x7f)
+				buffer.append(String.format("\\x%02x", (int) c));
+			else
+				buffer.append(c);
+		}
+	}
+
+	/**
+	 * @return number of entries waiting for the writer
+	 */
+	public long getPending() {
+		return Math.max(0L, tail.get() - head);
+	}
+
+	/**
+	 * @return number of written entries
+	 */
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	/**
+	 * @return number of entries dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of entries skipped by the {@link OverflowPolicy#SAMPLE}
+	 *         policy
+	 */
+	public long getSampledCount() {
+		return sampled.get();
+	}
+
+	/**
+	 * @return number of entries that can be pending
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	public void setOverflowPolicy(final OverflowPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("No policy");
+		this.policy = policy;
+	}
+
+	/**
+	 * @return one in this number of successful requests is kept by the
+	 *         {@link OverflowPolicy#SAMPLE} policy
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(final int sampleRate) {
+		if (sampleRate <= 0)
+			throw new IllegalArgumentException("Illegal sample rate");
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return size in bytes, after which the file is rolled
+	 */
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public void setMaxFileSize(final long maxFileSize) {
+		if (maxFileSize <= 0L)
+			throw new IllegalArgumentException("Illegal file size");
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * @return number of rolled files that are kept
+	 */
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	/**
+	 * @param maxFiles
+	 *            Number of rolled files that are kept, 0 to discard the file
+	 *            when rolling
+	 */
+	public void setMaxFiles(final int maxFiles) {
+		if (maxFiles < 0)
+			throw new IllegalArgumentException("Illegal number of files");
+		this.maxFiles = maxFiles;
+	}
+
+	/**
+	 * @return time in milliseconds between flushes of an idle writer
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(final long flushInterval) {
+		if (flushInterval <= 0L)
+			throw new IllegalArgumentException("Illegal interval");
+		this.flushInterval = flushInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "AccessLog " + file;
+	}
+}
@@ -0,0 +1,359 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Admits requests by priority when the server is saturated. A fixed number of
+ * slots is shared by all requests. If no slot is free, requests wait in a
+ * queue of their priority and are admitted highest priority first. Requests
+ * are shed if their queue is full or they waited too long.
+ * 
+ * Guest requests (priority {@link #PRIORITY_GUEST}) can only use a share of
+ * the slots. The share adapts to the latency of the higher priorities: If
+ * their average latency exceeds the target, the guest share shrinks, otherwise
+ * it grows slowly back to all slots. Without requests of higher priorities it
+ * grows back as well. At least one slot remains for guests.
+ * 
+ * The priority of a request is determined by
+ * {@link HttpSessionServlet#getRequestPriority(HttpSessionServlet.Request)}
+ * 
+ */
+public class AdmissionScheduler {
+
+	/** Priority of anonymous requests, e.g. crawlers */
+	public static final int PRIORITY_GUEST = 0;
+	/** Priority of logged-in users */
+	public static final int PRIORITY_USER = 1;
+	/** Priority of important requests, e.g. paying users */
+	public static final int PRIORITY_HIGH = 2;
+	/** Number of priorities */
+	private static final int PRIORITIES = 3;
+
+	/** Minimum share of the slots for guest requests */
+	private static final double MIN_GUEST_SHARE = 0.05;
+	/** Weight of a sample in the average latency */
+	private static final double LATENCY_WEIGHT = 0.1;
+	/** Interval in nanoseconds of guest share adjustments */
+	private static final long ADJUST_INTERVAL = 100L * 1000L * 1000L;
+
+	/** Admission of a request, must be released exactly once */
+	public class Ticket {
+		private final int priority;
+		private final long arrival;
+		private boolean admitted = false;
+		private boolean released = false;
+
+		private Ticket(final int priority) {
+			this.priority = priority;
+			this.arrival = System.nanoTime();
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Release the slot of the request
+		 */
+		public void release() {
+			AdmissionScheduler.this.release(this);
+		}
+	}
+
+	/* Configuration, guarded by this */
+	private int slots;
+	private int queueCapacity;
+	private long maxWait;
+	/** Target latency in nanoseconds */
+	private long latencyTarget;
+	private volatile int retryAfter;
+
+	/* State, guarded by this */
+	private final ArrayDeque<Ticket>[] queues;
+	private int busy = 0;
+	private int busyGuests = 0;
+	private double guestShare = 1.0;
+	/** Average latency of non-guest requests in nanoseconds */
+	private double latency = 0.0;
+	/** System nanoseconds of the last guest share adjustment */
+	private long lastAdjustment = System.nanoTime();
+	/** Latency samples since the last guest share adjustment */
+	private int samples = 0;
+	private long shed = 0L;
+
+	/**
+	 * @param slots
+	 *            Number of concurrently processed requests
+	 * @param queueCapacity
+	 *            Maximum number of waiting requests per priority
+	 * @param maxWait
+	 *            Maximum time in milliseconds a request waits for a slot
+	 * @param latencyTarget
+	 *            Target latency in milliseconds of non-guest requests,
+	 *            including the time waiting for a slot
+	 * @param retryAfter
+	 *            Suggested delay in seconds before shed clients retry
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public AdmissionScheduler(final int slots, final int queueCapacity,
+			final long maxWait, final long latencyTarget, final int retryAfter) {
+		if (slots <= 0 || queueCapacity < 0)
+			throw new IllegalArgumentException("Illegal capacity");
+		this.slots = slots;
+		this.queueCapacity = queueCapacity;
+		this.maxWait = maxWait;
+		this.latencyTarget = latencyTarget * 1000L * 1000L;
+		this.retryAfter = retryAfter;
+		this.queues = new ArrayDeque[PRIORITIES];
+		for (int i = 0; i < PRIORITIES; i++)
+			queues[i] = new ArrayDeque<Ticket>();
+	}
+
+	/**
+	 * Wait for a slot
+	 * 
+	 * @param priority
+	 *            Priority of the request, one of the PRIORITY_* constants.
+	 *            Other values are clamped
+	 * @return ticket of the admitted request or null, if the request is shed
+	 * @throws InterruptedException
+	 *             Thrown if interrupted while waiting
+	 */
+	public synchronized Ticket admit(final int priority)
+			throws InterruptedException {
+		final Ticket ticket = new Ticket(Math.max(PRIORITY_GUEST,
+				Math.min(PRIORITIES - 1, priority)));
+		final int p = ticket.priority;
+		if (adjustGuestShare())
+			dispatch();
+		if (canRun(p) && !hasWaiters(p)) {
+			start(ticket);
+			return ticket;
+		}
+		if (queues[p].size() >= queueCapacity) {
+			shed++;
+			return null;
+		}
+
+		queues[p].addLast(ticket);
+		final long deadline = System.currentTimeMillis() + maxWait;
+		try {
+			while (!ticket.admitted) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0L) {
+					queues[p].remove(ticket);
+					shed++;
+					return null;
+				}
+				wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			if (ticket.admitted)
+				release(ticket);
+			else
+				queues[p].remove(ticket);
+			throw e;
+		}
+		return ticket;
+	}
+
+	private synchronized void release(final Ticket ticket) {
+		if (!ticket.admitted || ticket.released)
+			return;
+		ticket.released = true;
+		busy--;
+		if (ticket.priority == PRIORITY_GUEST)
+			busyGuests--;
+		else
+			recordLatency(System.nanoTime() - ticket.arrival);
+		adjustGuestShare();
+		dispatch();
+	}
+
+	/**
+	 * Admit waiting requests, highest priority first
+	 */
+	private void dispatch() {
+		boolean admitted = false;
+		for (int p = PRIORITIES - 1; p >= 0; p--) {
+			while (!queues[p].isEmpty() && canRun(p)) {
+				start(queues[p].pollFirst());
+				admitted = true;
+			}
+		}
+		if (admitted)
+			notifyAll();
+	}
+
+	private void start(final Ticket ticket) {
+		ticket.admitted = true;
+		busy++;
+		if (ticket.priority == PRIORITY_GUEST)
+			busyGuests++;
+	}
+
+	private boolean canRun(final int priority) {
+		if (busy >= slots)
+			return false;
+		if (priority == PRIORITY_GUEST)
+			return busyGuests < getGuestSlots();
+		return true;
+	}
+
+	/**
+	 * @return true if requests of the same or higher priority are waiting
+	 */
+	private boolean hasWaiters(final int priority) {
+		for (int p = priority; p < PRIORITIES; p++)
+			if (!queues[p].isEmpty())
+				return true;
+		return false;
+	}
+
+	private int getGuestSlots() {
+		return Math.max(1, (int) (guestShare * slots));
+	}
+
+	private void recordLatency(final long sample) {
+		if (latency == 0.0)
+			latency = sample;
+		else
+			latency += (sample - latency) * LATENCY_WEIGHT;
+		samples++;
+	}
+
+	/**
+	 * Adjust the guest share, at most once per {@link #ADJUST_INTERVAL}. The
+	 * share only shrinks on new latency samples, otherwise it grows by the
+	 * elapsed intervals
+	 * 
+	 * @return true if the guest share has grown
+	 */
+	private boolean adjustGuestShare() {
+		final long now = System.nanoTime();
+		final long intervals = (now - lastAdjustment) / ADJUST_INTERVAL;
+		if (intervals <= 0L)
+			return false;
+		lastAdjustment = now;
+		final double previous = guestShare;
+		if (samples > 0 && latency > latencyTarget)
+			guestShare = Math.max(MIN_GUEST_SHARE, guestShare * 0.8);
+		else
+			guestShare = Math.min(1.0, guestShare + 0.05 * intervals);
+		samples = 0;
+		return guestShare > previous;
+	}
+
+	/**
+	 * @return current share of the slots available to guest requests
+	 */
+	public synchronized double getGuestShare() {
+		return guestShare;
+	}
+
+	/**
+	 * @return average latency of non-guest requests in milliseconds
+	 */
+	public synchronized double getLatency() {
+		return latency / (1000.0 * 1000.0);
+	}
+
+	/**
+	 * @return number of requests in a slot
+	 */
+	public synchronized int getBusy() {
+		return busy;
+	}
+
+	/**
+	 * @return number of requests waiting with the given priority
+	 */
+	public synchronized int getQueued(final int priority) {
+		return queues[priority].size();
+	}
+
+	/**
+	 * @return number of shed requests
+	 */
+	public synchronized long getShedCount() {
+		return shed;
+	}
+
+	/**
+	 * @return suggested delay in seconds before shed clients retry
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	public void setRetryAfter(final int retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return number of concurrently processed requests
+	 */
+	public synchronized int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * Change the number of slots. Waiting requests are admitted immediately
+	 * if slots have been added. Removed slots are freed as running requests
+	 * complete
+	 * 
+	 * @param slots
+	 *            Number of concurrently processed requests
+	 */
+	public synchronized void setSlots(final int slots) {
+		if (slots <= 0)
+			throw new IllegalArgumentException("Illegal capacity");
+		this.slots = slots;
+		dispatch();
+	}
+
+	/**
+	 * @return maximum number of waiting requests per priority
+	 */
+	public synchronized int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            Maximum number of waiting requests per priority. Requests
+	 *            already waiting are not shed
+	 */
+	public synchronized void setQueueCapacity(final int queueCapacity) {
+		if (queueCapacity < 0)
+			throw new IllegalArgumentException("Illegal capacity");
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return maximum time in milliseconds a request waits for a slot
+	 */
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * @param maxWait
+	 *            Maximum time in milliseconds a request waits for a slot.
+	 *            Applies to requests that start waiting afterwards
+	 */
+	public synchronized void setMaxWait(final long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * @return target latency in milliseconds of non-guest requests
+	 */
+	public synchronized long getLatencyTarget() {
+		return latencyTarget / (1000L * 1000L);
+	}
+
+	public synchronized void setLatencyTarget(final long latencyTarget) {
+		this.latencyTarget = latencyTarget * 1000L * 1000L;
+	}
+}
@@ -0,0 +1,40 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputStream that counts the bytes written to the underlying stream. Used
+ * to measure the size of response bodies that are streamed without a
+ * Content-Length header
+ * 
+ */
+class ByteCountingOutputStream extends FilterOutputStream {
+
+	private long count = 0L;
+
+	ByteCountingOutputStream(final OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	/**
+	 * @return number of written bytes
+	 */
+	long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,43 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * PrintWriter that counts the characters written to the underlying writer.
+ * Used to measure the size of rendered pages without buffering them
+ * 
+ */
+class CharCountingWriter extends PrintWriter {
+
+	private long count = 0L;
+
+	CharCountingWriter(final Writer out) {
+		super(out, false);
+	}
+
+	@Override
+	public void write(final int c) {
+		count++;
+		super.write(c);
+	}
+
+	@Override
+	public void write(final char[] buf, final int off, final int len) {
+		count += len;
+		super.write(buf, off, len);
+	}
+
+	@Override
+	public void write(final String s, final int off, final int len) {
+		count += len;
+		super.write(s, off, len);
+	}
+
+	/**
+	 * @return number of written characters
+	 */
+	long getCount() {
+		return count;
+	}
+}
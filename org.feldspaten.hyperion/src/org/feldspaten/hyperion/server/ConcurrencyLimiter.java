@@ -0,0 +1,279 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of concurrently processed requests. Requests over the
+ * limit are rejected immediately instead of queueing on the database and
+ * slowing down all other requests.
+ * 
+ * An adaptive limiter adjusts the limit to the gradient of the observed
+ * latency: The average latency of a short window of requests is compared with
+ * a long term average. If the short term latency rises, requests are queueing
+ * somewhere and the limit shrinks. Otherwise the limit grows by a small queue
+ * allowance. A fixed limiter acts as a simple bulkhead.
+ * 
+ * Use {@link HttpSessionServlet#setConcurrencyLimiter(ConcurrencyLimiter)} for
+ * all servlets and {@link HttpSessionServlet#setBulkhead(ConcurrencyLimiter)}
+ * per servlet
+ * 
+ */
+public class ConcurrencyLimiter {
+
+	/** Minimum number of samples of a window */
+	private static final int WINDOW_SAMPLES = 10;
+	/** Minimum duration of a window in nanoseconds */
+	private static final long WINDOW_TIME = 100L * 1000L * 1000L;
+	/** Weight of a window in the long term average, about 10 seconds */
+	private static final double LONG_TERM_WEIGHT = 0.01;
+	/** Weight of a new limit in the smoothed limit */
+	private static final double SMOOTHING = 0.2;
+	/** Tolerated ratio of short term to long term latency */
+	private static final double TOLERANCE = 1.5;
+
+	/** Slot of an admitted request, must be released exactly once */
+	public static class Permit {
+		private final ConcurrencyLimiter limiter;
+		private final long start;
+		/** Permit of another limiter, released together with this one */
+		private Permit next = null;
+		private boolean released = false;
+
+		private Permit(final ConcurrencyLimiter limiter) {
+			this.limiter = limiter;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Release the permit and record the latency of the request
+		 */
+		public void release() {
+			release(true);
+		}
+
+		/**
+		 * Release the permit without recording the latency, e.g. if the
+		 * request failed early
+		 */
+		public void ignore() {
+			release(false);
+		}
+
+		private void release(final boolean sample) {
+			synchronized (this) {
+				if (released)
+					return;
+				released = true;
+			}
+			limiter.release(start, sample);
+			if (next != null)
+				next.release(sample);
+		}
+
+		/**
+		 * Chain another permit, that is released together with this one
+		 * 
+		 * @return this permit
+		 */
+		Permit chain(final Permit permit) {
+			this.next = permit;
+			return this;
+		}
+	}
+
+	/* Bounds of the limit, guarded by this */
+	private int minLimit;
+	private int maxLimit;
+	private final boolean adaptive;
+	/** Suggested delay in seconds before rejected clients retry */
+	private volatile int retryAfter;
+
+	/** Current limit */
+	private volatile int limit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/* Window statistics, guarded by this */
+	private int windowCount = 0;
+	private long windowSum = 0L;
+	private int windowMaxInFlight = 0;
+	/** System nanoseconds of the start of the window */
+	private long windowStart = System.nanoTime();
+	/** Long term average latency in nanoseconds, 0 if unknown */
+	private double longRtt = 0.0;
+	/** Smoothed limit, kept as double so small steps accumulate */
+	private double estimatedLimit;
+
+	/**
+	 * Create a fixed limiter, i.e. a bulkhead
+	 * 
+	 * @param limit
+	 *            Maximum number of concurrent requests
+	 */
+	public ConcurrencyLimiter(final int limit) {
+		this(limit, limit, limit, false, 1);
+	}
+
+	/**
+	 * Create an adaptive limiter
+	 * 
+	 * @param initialLimit
+	 *            Limit until enough samples have been seen
+	 * @param minLimit
+	 *            Lower bound of the limit
+	 * @param maxLimit
+	 *            Upper bound of the limit
+	 * @param retryAfter
+	 *            Suggested delay in seconds before rejected clients retry
+	 */
+	public ConcurrencyLimiter(final int initialLimit, final int minLimit,
+			final int maxLimit, final int retryAfter) {
+		this(initialLimit, minLimit, maxLimit, true, retryAfter);
+	}
+
+	private ConcurrencyLimiter(final int initialLimit, final int minLimit,
+			final int maxLimit, final boolean adaptive, final int retryAfter) {
+		if (minLimit <= 0 || minLimit > maxLimit || initialLimit < minLimit
+				|| initialLimit > maxLimit)
+			throw new IllegalArgumentException("Illegal limits");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.adaptive = adaptive;
+		this.retryAfter = retryAfter;
+		this.limit = initialLimit;
+		this.estimatedLimit = initialLimit;
+	}
+
+	/**
+	 * Try to admit a request
+	 * 
+	 * @return permit or null, if the limit is reached
+	 */
+	public Permit tryAcquire() {
+		while (true) {
+			final int current = inFlight.get();
+			if (current >= limit) {
+				rejected.incrementAndGet();
+				return null;
+			}
+			if (inFlight.compareAndSet(current, current + 1))
+				return new Permit(this);
+		}
+	}
+
+	private void release(final long start, final boolean sample) {
+		final int current = inFlight.getAndDecrement();
+		if (!adaptive || !sample)
+			return;
+		final long now = System.nanoTime();
+		synchronized (this) {
+			windowSum += now - start;
+			windowCount++;
+			if (current > windowMaxInFlight)
+				windowMaxInFlight = current;
+			if (windowCount >= WINDOW_SAMPLES
+					&& now - windowStart >= WINDOW_TIME) {
+				closeWindow();
+				windowStart = now;
+			}
+		}
+	}
+
+	/**
+	 * Adjust the limit to the latency of the current window
+	 */
+	private void closeWindow() {
+		final double shortRtt = (double) windowSum / windowCount;
+		final int maxInFlight = windowMaxInFlight;
+		windowSum = 0L;
+		windowCount = 0;
+		windowMaxInFlight = 0;
+
+		if (longRtt == 0.0)
+			longRtt = shortRtt;
+		else
+			longRtt += (shortRtt - longRtt) * LONG_TERM_WEIGHT;
+		// Recover quickly once a spike of latency has passed
+		if (longRtt > 2.0 * shortRtt)
+			longRtt *= 0.95;
+
+		// Don't grow the limit, if it hasn't been used
+		if (maxInFlight < estimatedLimit / 2.0)
+			return;
+
+		final double gradient = Math.max(0.5,
+				Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+		final double newLimit = estimatedLimit * gradient
+				+ Math.sqrt(estimatedLimit);
+		estimatedLimit = estimatedLimit * (1.0 - SMOOTHING) + newLimit
+				* SMOOTHING;
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+		limit = (int) estimatedLimit;
+	}
+
+	/**
+	 * @return current limit of concurrent requests
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getMinLimit() {
+		return minLimit;
+	}
+
+	public synchronized int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * Change the bounds of the limit. The current limit is clamped to the new
+	 * bounds. For a fixed limiter both bounds must be equal
+	 * 
+	 * @param minLimit
+	 *            Lower bound of the limit
+	 * @param maxLimit
+	 *            Upper bound of the limit
+	 */
+	public synchronized void setLimits(final int minLimit, final int maxLimit) {
+		if (minLimit <= 0 || minLimit > maxLimit)
+			throw new IllegalArgumentException("Illegal limits");
+		if (!adaptive && minLimit != maxLimit)
+			throw new IllegalArgumentException(
+					"A fixed limiter needs equal bounds");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+		limit = (int) estimatedLimit;
+	}
+
+	/**
+	 * @return number of currently admitted requests
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return number of rejected requests
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return suggested delay in seconds before rejected clients retry
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	public void setRetryAfter(final int retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+}
@@ -0,0 +1,178 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Writer that discards its output and only counts the encoded bytes and
+ * computes a checksum of the characters. Used to determine the headers of
+ * HEAD requests without buffering the body.
+ * 
+ * UTF-8 is counted directly, other charsets are encoded into a small reused
+ * buffer. Malformed surrogates count as one replacement byte, like the
+ * writer of the response
+ * 
+ */
+class CountingWriter extends Writer {
+
+	/** Encoder for charsets other than UTF-8, null for UTF-8 */
+	private final CharsetEncoder encoder;
+	/** Reused output buffer of the encoder */
+	private final ByteBuffer encoded;
+	/** Characters the encoder couldn't consume yet, i.e. a split surrogate */
+	private final CharBuffer carry = CharBuffer.allocate(4);
+	/** Checksum of the written characters */
+	private final CRC32 crc = new CRC32();
+	/** Reused buffer for the checksum */
+	private final byte[] crcBuffer = new byte[1024];
+	/** Number of bytes counted so far */
+	private long count = 0L;
+	/** If the last UTF-8 character was a high surrogate */
+	private boolean highSurrogate = false;
+
+	/**
+	 * @param charset
+	 *            Name of the response charset, null for ISO-8859-1
+	 */
+	CountingWriter(final String charset) {
+		final Charset cs = charset == null ? StandardCharsets.ISO_8859_1
+				: Charset.forName(charset);
+		if (cs.equals(StandardCharsets.UTF_8)) {
+			encoder = null;
+			encoded = null;
+		} else {
+			encoder = cs.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			encoded = ByteBuffer.allocate(1024);
+		}
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) {
+		checksum(cbuf, off, len);
+		if (encoder == null)
+			countUtf8(CharBuffer.wrap(cbuf, off, len));
+		else
+			encode(CharBuffer.wrap(cbuf, off, len), false);
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) {
+		final CharBuffer chars = CharBuffer.wrap(str, off, off + len);
+		checksum(chars.duplicate());
+		if (encoder == null)
+			countUtf8(chars);
+		else
+			encode(chars, false);
+	}
+
+	@Override
+	public void write(final int c) {
+		write(new char[] { (char) c }, 0, 1);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return number of bytes the written characters encode to
+	 */
+	public long getByteCount() {
+		if (encoder != null) {
+			encode(CharBuffer.allocate(0), true);
+			encoder.flush(encoded);
+			count += encoded.position();
+			encoded.clear();
+			encoder.reset();
+		}
+		return count + (highSurrogate ? 1L : 0L);
+	}
+
+	/**
+	 * @return weak entity tag derived from the checksum of the characters
+	 */
+	public String getETag() {
+		return "W/\"" + Long.toHexString(crc.getValue()) + "-"
+				+ Long.toHexString(getByteCount()) + "\"";
+	}
+
+	private void countUtf8(final CharBuffer chars) {
+		long n = 0L;
+		while (chars.hasRemaining()) {
+			final char c = chars.get();
+			if (highSurrogate) {
+				highSurrogate = false;
+				if (Character.isLowSurrogate(c)) {
+					n += 4L;
+					continue;
+				}
+				n += 1L;
+			}
+			if (c < 0x80)
+				n += 1L;
+			else if (c < 0x800)
+				n += 2L;
+			else if (Character.isHighSurrogate(c))
+				highSurrogate = true;
+			else if (Character.isLowSurrogate(c))
+				n += 1L;
+			else
+				n += 3L;
+		}
+		count += n;
+	}
+
+	private void encode(final CharBuffer chars, final boolean endOfInput) {
+		if (carry.position() > 0) {
+			// Complete the split character first
+			if (chars.hasRemaining())
+				carry.put(chars.get());
+			carry.flip();
+			encodeFully(carry, endOfInput && !chars.hasRemaining());
+			carry.compact();
+		}
+		encodeFully(chars, endOfInput);
+		carry.put(chars);
+	}
+
+	/**
+	 * Encode until the input is consumed or the encoder needs more input
+	 */
+	private void encodeFully(final CharBuffer chars, final boolean endOfInput) {
+		CoderResult result;
+		do {
+			result = encoder.encode(chars, encoded, endOfInput);
+			count += encoded.position();
+			encoded.clear();
+		} while (result.isOverflow());
+	}
+
+	private void checksum(final char[] cbuf, final int off, final int len) {
+		checksum(CharBuffer.wrap(cbuf, off, len));
+	}
+
+	private void checksum(final CharBuffer chars) {
+		while (chars.hasRemaining()) {
+			int n = 0;
+			while (chars.hasRemaining() && n < crcBuffer.length) {
+				final char c = chars.get();
+				crcBuffer[n++] = (byte) (c >>> 8);
+				crcBuffer[n++] = (byte) c;
+			}
+			crc.update(crcBuffer, 0, n);
+		}
+	}
+}
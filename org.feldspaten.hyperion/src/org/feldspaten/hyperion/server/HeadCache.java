@@ -0,0 +1,125 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of {@link HeadMetadata} by request URI. Entries
+ * expire after a fixed time, so changed pages are picked up eventually.
+ * 
+ * The cache is keyed only by the URI, so it must only be assigned to servlets
+ * whose pages don't depend on the session
+ * 
+ */
+public class HeadCache {
+
+	/** Cached metadata with its expiry time */
+	private static class CachedHead {
+		final HeadMetadata metadata;
+		final long expires;
+
+		CachedHead(final HeadMetadata metadata, final long expires) {
+			this.metadata = metadata;
+			this.expires = expires;
+		}
+	}
+
+	/* Configuration, guarded by this */
+	/** Maximum number of cached URIs */
+	private int capacity;
+	/** Time in milliseconds until an entry expires */
+	private long timeToLive;
+	/** Cached entries in access order */
+	private final LinkedHashMap<String, CachedHead> entries;
+
+	/**
+	 * @param capacity
+	 *            Maximum number of cached URIs
+	 * @param timeToLive
+	 *            Time in milliseconds until an entry expires
+	 */
+	public HeadCache(final int capacity, final long timeToLive) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, CachedHead>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, CachedHead> eldest) {
+				return size() > HeadCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param uri
+	 *            Request URI including the parameters
+	 * @return cached metadata or null, if not cached or expired
+	 */
+	public synchronized HeadMetadata get(final String uri) {
+		final CachedHead cached = entries.get(uri);
+		if (cached == null)
+			return null;
+		if (cached.expires < System.currentTimeMillis()) {
+			entries.remove(uri);
+			return null;
+		}
+		return cached.metadata;
+	}
+
+	/**
+	 * @param uri
+	 *            Request URI including the parameters
+	 * @param metadata
+	 *            Metadata of the rendered page
+	 */
+	public synchronized void put(final String uri, final HeadMetadata metadata) {
+		entries.put(uri, new CachedHead(metadata, System.currentTimeMillis()
+				+ timeToLive));
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param capacity
+	 *            Maximum number of cached URIs. The least recently used
+	 *            entries are removed if the cache is larger
+	 */
+	public synchronized void setCapacity(final int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.capacity = capacity;
+		final Iterator<String> iterator = entries.keySet().iterator();
+		while (entries.size() > capacity && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	public synchronized long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeToLive
+	 *            Time in milliseconds until an entry expires. Applies to
+	 *            entries added afterwards
+	 */
+	public synchronized void setTimeToLive(final long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+}
@@ -0,0 +1,67 @@
+package org.feldspaten.hyperion.server;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Headers of a response without its body, used to answer HEAD requests
+ * without rendering the page. See
+ * {@link HttpSessionServlet#getHeadMetadata(HttpSessionServlet.Request)}
+ * 
+ */
+public final class HeadMetadata {
+
+	/** Length of the body in bytes or -1, if unknown */
+	private final long contentLength;
+	/** Entity tag including the quotes or null, if unknown */
+	private final String etag;
+	/** Last modification time in milliseconds or -1, if unknown */
+	private final long lastModified;
+
+	/**
+	 * @param contentLength
+	 *            Length of the body in bytes or -1, if unknown
+	 * @param etag
+	 *            Entity tag including the quotes, e.g. <code>"abc"</code> or
+	 *            <code>W/"abc"</code>. null if unknown
+	 * @param lastModified
+	 *            Last modification time in milliseconds or -1, if unknown
+	 */
+	public HeadMetadata(final long contentLength, final String etag,
+			final long lastModified) {
+		this.contentLength = contentLength;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Set the known headers on the given response
+	 * 
+	 * @param response
+	 *            Response of the HEAD request
+	 */
+	public void apply(final HttpServletResponse response) {
+		if (contentLength >= 0L) {
+			if (contentLength <= Integer.MAX_VALUE)
+				response.setContentLength((int) contentLength);
+			else
+				response.setHeader("Content-Length",
+						Long.toString(contentLength));
+		}
+		if (etag != null)
+			response.setHeader("ETag", etag);
+		if (lastModified >= 0L)
+			response.setDateHeader("Last-Modified", lastModified);
+	}
+}
@@ -0,0 +1,241 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves remote addresses to host names without blocking the request
+ * thread.
+ * 
+ * Resolved names are cached for a configurable time, failed lookups are cached
+ * for a shorter time. If a name is not cached, the lookup is started in the
+ * background and the address is returned until the name is known. Lookups run
+ * on a bounded thread pool; if it is overloaded, lookups are skipped and
+ * retried on a later request.
+ * 
+ * The resolver is enabled by
+ * {@link HttpSessionServlet#setHostResolver(HostResolver)}
+ * 
+ */
+public class HostResolver implements Closeable {
+
+	/** Default time in milliseconds resolved names are cached */
+	public static final long DEFAULT_TTL = 10L * 60L * 1000L;
+	/** Default time in milliseconds failed lookups are cached */
+	public static final long DEFAULT_NEGATIVE_TTL = 60L * 1000L;
+	/** Default maximum number of cached addresses */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/** Cached lookup */
+	private static class CachedName {
+		/** Host name or the address itself, if the lookup failed */
+		final String name;
+		final long expires;
+
+		CachedName(final String name, final long expires) {
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+
+	/** Executes the lookups */
+	private final ThreadPoolExecutor executor;
+	/** Cached lookups in access order, key is the address */
+	private final LinkedHashMap<String, CachedName> cache;
+	/** Addresses currently being resolved */
+	private final Set<String> pending = new HashSet<String>();
+
+	private volatile long ttl = DEFAULT_TTL;
+	private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * Create new resolver
+	 * 
+	 * @param threads
+	 *            Maximum number of concurrent lookups
+	 * @param queueCapacity
+	 *            Maximum number of lookups waiting for a thread
+	 */
+	public HostResolver(final int threads, final int queueCapacity) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Need at least one thread");
+		final AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+						queueCapacity)), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"Hyperion host resolver "
+										+ counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		this.cache = new LinkedHashMap<String, CachedName>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, CachedName> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the host name of the given address. Never blocks
+	 * 
+	 * @param address
+	 *            IP address to be resolved
+	 * @return host name or the address itself, if the name is not known (yet)
+	 */
+	public String resolve(final String address) {
+		if (address == null || address.isEmpty())
+			return address;
+		final long now = System.currentTimeMillis();
+		synchronized (cache) {
+			final CachedName entry = cache.get(address);
+			if (entry != null && entry.expires > now) {
+				hits.incrementAndGet();
+				return entry.name;
+			}
+			if (!pending.add(address))
+				return entry == null ? address : entry.name;
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						lookup(address);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				pending.remove(address);
+				skipped.incrementAndGet();
+			}
+			// Serve a stale name until the new lookup finished
+			return entry == null ? address : entry.name;
+		}
+	}
+
+	/**
+	 * Removes all cached names
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Stops the lookup threads
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void lookup(final String address) {
+		lookups.incrementAndGet();
+		String name;
+		try {
+			// Parsing a literal address does not query the resolver
+			name = InetAddress.getByName(address).getCanonicalHostName();
+		} catch (UnknownHostException e) {
+			name = address;
+		} catch (SecurityException e) {
+			name = address;
+		}
+		final boolean failed = name.equals(address);
+		if (failed)
+			failures.incrementAndGet();
+		synchronized (cache) {
+			cache.put(address, new CachedName(name,
+					System.currentTimeMillis() + (failed ? negativeTtl : ttl)));
+			pending.remove(address);
+		}
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param ttl
+	 *            Time in milliseconds resolved names are cached
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	/**
+	 * @param negativeTtl
+	 *            Time in milliseconds failed lookups are cached
+	 */
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of cached addresses
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return number of names answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups performed
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return number of lookups that found no name
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of lookups skipped because the resolver was overloaded
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+}
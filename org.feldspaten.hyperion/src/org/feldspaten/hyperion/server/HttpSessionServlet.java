@@ -4,19 +4,36 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
@@ -26,6 +43,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.feldspaten.hyperion.html.Page;
+import org.feldspaten.hyperion.html.RenderProfile;
+import org.feldspaten.hyperion.metrics.MonitoredLock;
 
 /**
  * Extension of {@link HttpServlet} that includes support for {@link Session}
@@ -41,6 +60,10 @@ public abstract class HttpSessionServlet extends HttpServlet {
 
 	/** Session cookie name */
 	private static final String SESSION_COOKIE = "SESSION.COOKIE";
+	/** Cookie name for stateless sessions */
+	private static final String TOKEN_COOKIE = "SESSION.TOKEN";
+	/** Length of generated session IDs, in ASCII characters */
+	static final int SID_LENGTH = 1024;
 
 	/** Title of the Page */
 	private static final String TITLE = "Hyperion";
@@ -48,24 +71,17 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	/** Static guest session */
 	public final Session staticGuestSession = new Session(this, "");
 
-	private static final int REQUEST_GET = 0x0;
-	private static final int REQUEST_POST = 0x1;
-	private static final int REQUEST_HEAD = 0x2;
-	private static final int REQUEST_DELETE = 0x3;
-	private static final int REQUEST_PUT = 0x4;
-	private static final int REQUEST_OPTIONS = 0x5;
-	private static final int REQUEST_TRACE = 0x6;
+	/** Serializes the lookup and creation of sessions in getSession */
+	private final MonitoredLock sessionLock = new MonitoredLock(
+			"HttpSessionServlet.getSession");
 
-	/**
-	 * These Strings are accepted as TRUE values when matching to a boolean
-	 */
-	private static final String[] TRUE_VALUES = new String[] { "1", "true",
-			"on", "yes" };
-	/**
-	 * These Strings are accepted as FALSE values when matching to a boolean
-	 */
-	private static final String[] FALSE_VALUES = new String[] { "0", "false",
-			"off", "no" };
+	public static final int REQUEST_GET = 0x0;
+	public static final int REQUEST_POST = 0x1;
+	public static final int REQUEST_HEAD = 0x2;
+	public static final int REQUEST_DELETE = 0x3;
+	public static final int REQUEST_PUT = 0x4;
+	public static final int REQUEST_OPTIONS = 0x5;
+	public static final int REQUEST_TRACE = 0x6;
 
 	/**
 	 * Request object containing all relevant data
@@ -89,7 +105,7 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * Information sink - Either the {@link OutputStream} or a
 		 * {@link PrintWriter}
 		 */
-		private OutputStream outputStream = null;
+		private ByteCountingOutputStream outputStream = null;
 		/**
 		 * Information sink - Either the {@link OutputStream} or a
 		 * {@link PrintWriter}
@@ -101,7 +117,20 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		/** If page is finalized */
 		// private boolean pageFinalized = false;
 
-		private final boolean mobileVersion;
+		/** Mobile version, classified on first access */
+		private Boolean mobileVersion = null;
+
+		/** Variables of the matched route */
+		private Map<String, String> pathVariables = Collections.emptyMap();
+
+		/** Permit of the concurrency limit or null, if not limited */
+		ConcurrencyLimiter.Permit permit = null;
+
+		/** Admission by the scheduler or null, if not scheduled */
+		AdmissionScheduler.Ticket ticket = null;
+
+		/** Timing breakdown of the request */
+		RequestTrace trace = null;
 
 		Request(HttpServletResponse response, HttpServletRequest request,
 				Session session) {
@@ -109,7 +138,6 @@ public abstract class HttpSessionServlet extends HttpServlet {
 			this.response = response;
 			this.request = request;
 			this.session = session;
-			this.mobileVersion = checkifMobileVersion();
 		}
 
 		public int getRequestType() {
@@ -120,6 +148,78 @@ public abstract class HttpSessionServlet extends HttpServlet {
 			this.requestType = type;
 		}
 
+		/**
+		 * Run the given task on the executor for asynchronous requests. Use
+		 * in {@link HttpSessionServlet#doAsync(Request, Page)}
+		 * 
+		 * @param task
+		 *            Blocking work that creates the page to be printed
+		 * @return completion of the task
+		 */
+		public PageCompletion async(final Callable<Page> task) {
+			final RequestTrace trace = this.trace;
+			return PageCompletion.submit(getAsyncExecutor(),
+					new Callable<Page>() {
+						@Override
+						public Page call() throws Exception {
+							// Record the statements of the task
+							RequestTrace.attach(trace);
+							try {
+								return task.call();
+							} finally {
+								RequestTrace.detach();
+							}
+						}
+					});
+		}
+
+		/**
+		 * @return servlet processing this request
+		 */
+		HttpSessionServlet getServlet() {
+			return HttpSessionServlet.this;
+		}
+
+		/**
+		 * @return timing breakdown of this request
+		 */
+		public RequestTrace getTrace() {
+			return trace;
+		}
+
+		/**
+		 * Get a variable of the matched {@link Router} route
+		 * 
+		 * @param name
+		 *            Name of the variable, without braces
+		 * @return value of the variable or null, if not existing
+		 */
+		public String getPathVariable(final String name) {
+			return pathVariables.get(name);
+		}
+
+		/**
+		 * @return all variables of the matched {@link Router} route
+		 */
+		public Map<String, String> getPathVariables() {
+			return pathVariables;
+		}
+
+		void setPathVariables(final Map<String, String> variables) {
+			this.pathVariables = variables;
+		}
+
+		/**
+		 * @return path of the request within the application, decoded by the
+		 *         container
+		 */
+		public String getPath() {
+			final String pathInfo = request.getPathInfo();
+			if (pathInfo == null)
+				return request.getServletPath();
+			return request.getServletPath() + pathInfo;
+		}
+
 		public boolean isPostRequest() {
 			return requestType == REQUEST_POST;
 		}
@@ -159,21 +259,41 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		public String getRemoteHost() {
 			if (request == null)
 				return "0.0.0.0";
-			return request.getRemoteHost();
+			final HostResolver resolver = hostResolver;
+			if (resolver == null)
+				return request.getRemoteHost();
+			return resolver.resolve(request.getRemoteAddr());
 		}
 
+		/**
+		 * The writer encodes into {@link #getOutputStream()}, so that the
+		 * bytes of the body are counted. The encoding is fixed like by
+		 * {@link HttpServletResponse#getWriter()}
+		 */
 		public synchronized PrintWriter getWriter() throws IOException {
-			if (writer == null)
-				writer = response.getWriter();
+			if (writer == null) {
+				final String encoding = response.getCharacterEncoding();
+				response.setCharacterEncoding(encoding);
+				writer = new PrintWriter(new OutputStreamWriter(
+						getOutputStream(), encoding), false);
+			}
 			return writer;
 		}
 
 		public synchronized OutputStream getOutputStream() throws IOException {
 			if (outputStream == null)
-				outputStream = response.getOutputStream();
+				outputStream = new ByteCountingOutputStream(
+						response.getOutputStream());
 			return outputStream;
 		}
 
+		/**
+		 * @return number of body bytes written by the servlet
+		 */
+		synchronized long getWrittenBytes() {
+			return outputStream == null ? 0L : outputStream.getCount();
+		}
+
 		/**
 		 * Get a parameter out of a {@link HttpServletRequest}. If the given
 		 * parameter is null or empty a default value is returned
@@ -209,15 +329,8 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 */
 		public double getParameterDouble(final String name,
 				final double defaultValue) {
-			try {
-				return Double.parseDouble(getParameter(name));
-			} catch (NumberFormatException e) {
-				return defaultValue;
-			} catch (IllegalArgumentException e) {
-				return defaultValue;
-			} catch (NullPointerException e) {
-				return defaultValue;
-			}
+			return ParameterParser.parseDouble(getParameter(name),
+					defaultValue);
 		}
 
 		/**
@@ -236,15 +349,7 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * @return parameter or default value, if the parameter is null or empty
 		 */
 		public int getParameterInteger(final String name, final int defaultValue) {
-			try {
-				return Integer.parseInt(getParameter(name));
-			} catch (NumberFormatException e) {
-				return defaultValue;
-			} catch (IllegalArgumentException e) {
-				return defaultValue;
-			} catch (NullPointerException e) {
-				return defaultValue;
-			}
+			return ParameterParser.parseInt(getParameter(name), defaultValue);
 		}
 
 		/**
@@ -263,15 +368,7 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * @return parameter or default value, if the parameter is null or empty
 		 */
 		public long getParameterLong(String name, long defaultValue) {
-			try {
-				return Long.parseLong(getParameter(name));
-			} catch (NumberFormatException e) {
-				return defaultValue;
-			} catch (IllegalArgumentException e) {
-				return defaultValue;
-			} catch (NullPointerException e) {
-				return defaultValue;
-			}
+			return ParameterParser.parseLong(getParameter(name), defaultValue);
 		}
 
 		/**
@@ -289,18 +386,34 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * @return parameter or default value, if the parameter is null or empty
 		 */
 		public boolean getParameterBoolean(String name, boolean defaultValue) {
-			final String value = getParameter(name,
-					defaultValue ? TRUE_VALUES[0] : FALSE_VALUES[0]);
-
-			for (final String check : TRUE_VALUES)
-				if (value.equalsIgnoreCase(check))
-					return true;
-			for (final String check : FALSE_VALUES)
-				if (value.equalsIgnoreCase(check))
-					return false;
+			return ParameterParser.parseBoolean(getParameter(name),
+					defaultValue);
+		}
 
-			return defaultValue;
+		/**
+		 * Create a new instance of the given form class and fill its fields
+		 * from the request parameters. See {@link ParameterBinder}
+		 * 
+		 * @param type
+		 *            Form class with a default constructor
+		 * @return new, bound instance
+		 */
+		public <T> T bind(final Class<T> type) {
+			return ParameterBinder.forClass(type).bind(request);
+		}
 
+		/**
+		 * Fill the fields of the given form from the request parameters. See
+		 * {@link ParameterBinder}
+		 * 
+		 * @param target
+		 *            Form to be filled
+		 * @return the given form
+		 */
+		@SuppressWarnings("unchecked")
+		public <T> T bind(final T target) {
+			return ParameterBinder.forClass((Class<T>) target.getClass()).bind(
+					request, target);
 		}
 
 		/**
@@ -349,6 +462,8 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * @return true if mobile version
 		 */
 		public boolean isMobileVersion() {
+			if (mobileVersion == null)
+				mobileVersion = checkifMobileVersion();
 			return mobileVersion;
 		}
 
@@ -359,33 +474,8 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		 * @return true if accessing from a mobile browser
 		 */
 		public boolean checkifMobileVersion() {
-			final String userAgent = request.getHeader("User-Agent");
-			if (userAgent == null || userAgent.isEmpty())
-				return false;
-
-			final String mobileBrowsersRegEx = "(android|bb\\d+|meego).+mobile|avantgo|bada\\/|blackberry|blazer|compal|elaine|fennec|hiptop|iemobile|ip(hone|od)|iris|kindle|lge |maemo|midp|mmp|mobile.+firefox|netfront|opera m(ob|in)i|palm( os)?|phone|p(ixi|re)\\/|plucker|pocket|psp|series(4|6)0|symbian|treo|up\\.(browser|link)|vodafone|wap|windows (ce|phone)|xda|xiino";
-			if (userAgent.matches(mobileBrowsersRegEx))
-				return true;
-
-			try {
-				if (userAgent.startsWith("Mozilla/")) {
-					String mozillaAgent = userAgent.substring(userAgent
-							.indexOf('(') + 1);
-					mozillaAgent = mozillaAgent.substring(0,
-							mozillaAgent.indexOf(')'));
-					String[] agents = mozillaAgent.split(";");
-					for (String agent : agents) {
-						agent = agent.trim().toLowerCase();
-						if (agent.startsWith("android"))
-							return true;
-					}
-				}
-			} catch (IndexOutOfBoundsException e) {
-				// Just continue. Best efford strategy
-			}
-
-			// All matches have failed. Assume not to be mobile version
-			return false;
+			return UserAgentClassifier.getInstance().classify(
+					request.getHeader("User-Agent")) == UserAgentClassifier.DeviceClass.MOBILE;
 		}
 
 		/**
@@ -508,7 +598,55 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	private static final long serialVersionUID = 4112688656845792649L;
 
 	/** Stored sessions */
-	private static HashMap<String, Session> sessions = new HashMap<String, Session>();
+	private static volatile SessionStore sessions = new MemorySessionStore();
+
+	/** Minimum delay between two sweeps for expired sessions */
+	private static final long SWEEP_INTERVAL = 10L * 1000L;
+	/** Timestamp of the last sweep for expired sessions */
+	private static volatile long lastSweep = 0L;
+	/**
+	 * Number of stored sessions. Adjusted when sessions are created and
+	 * destroyed and re-read from the store on each sweep, to include sessions
+	 * that other nodes added to a shared store
+	 */
+	private static final AtomicInteger storedSessions = new AtomicInteger();
+
+	/** Codec for stateless sessions or null, if disabled */
+	private static volatile SessionTokenCodec tokenCodec = null;
+
+	/** Verifier for logins or null, if logins are checked directly */
+	private static volatile LoginVerifier loginVerifier = null;
+
+	/** Resolver for remote host names or null, if the container resolves */
+	private static volatile HostResolver hostResolver = null;
+
+	/** Concurrency limit of all servlets or null, if not limited */
+	private static volatile ConcurrencyLimiter concurrencyLimiter = null;
+
+	/** Priority scheduler of all servlets or null, if not scheduled */
+	private static volatile AdmissionScheduler admissionScheduler = null;
+
+	/** Requests slower than this are logged, in milliseconds. -1 disables */
+	private static volatile long slowRequestThreshold = -1L;
+
+	/** Every n-th request records its allocations on average, 0 disables */
+	private static volatile int allocationSampling = 0;
+
+	/** Every n-th page is profiled on average, 0 disables */
+	private static volatile int renderProfiling = 0;
+
+	/** Listeners for completed requests */
+	private static final CopyOnWriteArrayList<RequestListener> requestListeners = new CopyOnWriteArrayList<RequestListener>();
+
+	/** Listeners for created and destroyed sessions */
+	private static final CopyOnWriteArrayList<SessionListener> sessionListeners = new CopyOnWriteArrayList<SessionListener>();
+
+	/** Default timeout in milliseconds of asynchronous requests */
+	public static final long DEFAULT_ASYNC_TIMEOUT = 30L * 1000L;
+	/** Number of threads of the default executor for asynchronous requests */
+	private static final int ASYNC_THREADS = 32;
+	/** Executor for asynchronous requests, created on first use */
+	private static ExecutorService asyncExecutor = null;
 
 	/**
 	 * Date formatter used for all dates<br>
@@ -533,12 +671,32 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	/** Indicating if the servlet required a valid login */
 	private boolean requireValidLogin = true;
 
+	/** Cache of the created users or null, if disabled */
+	private volatile UserCache userCache = null;
+
+	/** Router for the requests or null, if not routed */
+	private volatile Router router = null;
+
+	/** Timeout in milliseconds of asynchronous requests */
+	private volatile long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
+	/** Cache for the headers of HEAD requests or null, if not cached */
+	private volatile HeadCache headCache = null;
+
+	/** Per-servlet concurrency limit or null, if not limited */
+	private volatile ConcurrencyLimiter bulkhead = null;
+
+	/** Rendered overload page, created on first rejection */
+	private volatile byte[] overloadPage = null;
+
 	public HttpSessionServlet() {
 		this(true);
 	}
 
 	public HttpSessionServlet(boolean requireValidLogin) {
 		this.requireValidLogin = requireValidLogin;
+		ServerMetrics.install();
+		ServerEvents.install();
 	}
 
 	/**
@@ -556,6 +714,341 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		this.requireValidLogin = enabled;
 	}
 
+	/**
+	 * @return Cache of the users created by {@link #createUser(String)} or
+	 *         null, if disabled
+	 */
+	public UserCache getUserCache() {
+		return userCache;
+	}
+
+	/**
+	 * Assign a cache for the users created by {@link #createUser(String)}. The
+	 * same cache can be assigned to multiple servlets
+	 * 
+	 * @param userCache
+	 *            Cache to be used or null, to create the user on each login
+	 */
+	public void setUserCache(final UserCache userCache) {
+		this.userCache = userCache;
+	}
+
+	/**
+	 * @return Router for the requests or null, if not routed
+	 */
+	public Router getRouter() {
+		return router;
+	}
+
+	/**
+	 * Assign a {@link Router}. Requests that match a route are dispatched to
+	 * its handler. All other requests are passed to the do* methods
+	 * 
+	 * @param router
+	 *            Router to be used or null, to disable routing
+	 */
+	public void setRouter(final Router router) {
+		this.router = router;
+	}
+
+	public HeadCache getHeadCache() {
+		return headCache;
+	}
+
+	/**
+	 * Assign a cache for the headers of HEAD requests. Only use it if the
+	 * pages of this servlet don't depend on the session
+	 * 
+	 * @param headCache
+	 *            Cache to be used or null, to disable caching
+	 */
+	public void setHeadCache(final HeadCache headCache) {
+		this.headCache = headCache;
+	}
+
+	public ConcurrencyLimiter getBulkhead() {
+		return bulkhead;
+	}
+
+	/**
+	 * Assign a {@link ConcurrencyLimiter} for the requests of this servlet
+	 * only, so a slow servlet cannot take all slots of the shared limit
+	 * 
+	 * @param bulkhead
+	 *            Limiter to be used, or null to disable the limit
+	 */
+	public void setBulkhead(final ConcurrencyLimiter bulkhead) {
+		this.bulkhead = bulkhead;
+	}
+
+	public long getAsyncTimeout() {
+		return asyncTimeout;
+	}
+
+	/**
+	 * @param asyncTimeout
+	 *            Timeout in milliseconds of asynchronous requests
+	 */
+	public void setAsyncTimeout(long asyncTimeout) {
+		this.asyncTimeout = asyncTimeout;
+	}
+
+	/**
+	 * @return Executor for the blocking work of asynchronous requests. If none
+	 *         has been assigned, a fixed pool of daemon threads is created
+	 */
+	public static synchronized ExecutorService getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			final AtomicInteger counter = new AtomicInteger();
+			asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable,
+									"Hyperion async " + counter.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return asyncExecutor;
+	}
+
+	/**
+	 * Assign the executor for the blocking work of asynchronous requests,
+	 * usually a pool sized for the database connections
+	 * 
+	 * @param executor
+	 *            Executor to be used
+	 */
+	public static synchronized void setAsyncExecutor(
+			final ExecutorService executor) {
+		if (executor == null)
+			throw new IllegalArgumentException("Executor cannot be null");
+		asyncExecutor = executor;
+	}
+
+	/**
+	 * @return {@link SessionStore} that holds the sessions of all servlets
+	 */
+	public static SessionStore getSessionStore() {
+		return sessions;
+	}
+
+	/**
+	 * Assign the {@link SessionStore} that holds the sessions of all servlets.
+	 * Should be called before the first request is processed, because
+	 * sessions in the previous store are not migrated
+	 * 
+	 * @param store
+	 *            to be used
+	 */
+	public static void setSessionStore(final SessionStore store) {
+		if (store == null)
+			throw new IllegalArgumentException("Session store cannot be null");
+		sessions = store;
+		storedSessions.set(store.size());
+	}
+
+	/**
+	 * @return Codec for stateless sessions or null, if disabled
+	 */
+	public static SessionTokenCodec getSessionTokenCodec() {
+		return tokenCodec;
+	}
+
+	/**
+	 * Enable stateless sessions. Guest sessions with only a few small
+	 * properties are then kept in a signed cookie instead of the
+	 * {@link SessionStore}. They are promoted to the store when they grow or
+	 * when a user logs in.
+	 * 
+	 * <b>Note</b> The cookie is updated before the page is printed. Changes
+	 * of a stateless session after the response has been committed are lost
+	 * 
+	 * @param codec
+	 *            Codec for the cookies, or null to disable stateless sessions
+	 */
+	public static void setSessionTokenCodec(final SessionTokenCodec codec) {
+		tokenCodec = codec;
+	}
+
+	/**
+	 * @return Verifier for logins or null, if logins are checked directly
+	 */
+	public static LoginVerifier getLoginVerifier() {
+		return loginVerifier;
+	}
+
+	/**
+	 * Assign a {@link LoginVerifier}, that checks the logins of all servlets
+	 * on a bounded executor. If the verifier is overloaded, the request is
+	 * answered with 503 (Service Unavailable)
+	 * 
+	 * @param verifier
+	 *            Verifier to be used, or null to check logins directly on the
+	 *            request thread
+	 */
+	public static void setLoginVerifier(final LoginVerifier verifier) {
+		loginVerifier = verifier;
+	}
+
+	/**
+	 * @return Resolver for remote host names or null, if the container
+	 *         resolves the names
+	 */
+	public static HostResolver getHostResolver() {
+		return hostResolver;
+	}
+
+	/**
+	 * Assign a {@link HostResolver} for {@link Request#getRemoteHost()}, that
+	 * resolves the names in the background instead of on the request thread
+	 * 
+	 * @param resolver
+	 *            Resolver to be used, or null to use the container
+	 */
+	public static void setHostResolver(final HostResolver resolver) {
+		hostResolver = resolver;
+	}
+
+	public static ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	/**
+	 * Assign a {@link ConcurrencyLimiter} for the requests of all servlets.
+	 * Requests over the limit are rejected with 503 and Retry-After
+	 * 
+	 * @param limiter
+	 *            Limiter to be used, or null to disable the limit
+	 */
+	public static void setConcurrencyLimiter(final ConcurrencyLimiter limiter) {
+		concurrencyLimiter = limiter;
+	}
+
+	public static long getSlowRequestThreshold() {
+		return slowRequestThreshold;
+	}
+
+	/**
+	 * Log the timing breakdown, URI, session and executed SQL of requests
+	 * slower than the given threshold to System.err
+	 * 
+	 * @param threshold
+	 *            Threshold in milliseconds, or -1 to disable the log
+	 */
+	public static void setSlowRequestThreshold(final long threshold) {
+		slowRequestThreshold = threshold;
+	}
+
+	public static int getAllocationSampling() {
+		return allocationSampling;
+	}
+
+	/**
+	 * Record the bytes allocated per phase for a random sample of the
+	 * requests. The allocations are aggregated per servlet and request method
+	 * in the {@link org.feldspaten.hyperion.metrics.MetricsRegistry}. Requires
+	 * a runtime that reports allocated bytes per thread, like HotSpot
+	 * 
+	 * @param sampling
+	 *            Sample one in <code>sampling</code> requests on average, 1
+	 *            for all requests, 0 to disable
+	 */
+	public static void setAllocationSampling(final int sampling) {
+		if (sampling < 0)
+			throw new IllegalArgumentException("Sampling cannot be negative");
+		if (sampling > 0 && !ThreadAllocation.isSupported()) {
+			System.err.println("Allocation sampling is not supported by "
+					+ "this runtime");
+			allocationSampling = 0;
+			return;
+		}
+		allocationSampling = sampling;
+	}
+
+	public static int getRenderProfiling() {
+		return renderProfiling;
+	}
+
+	/**
+	 * Record the render time, invocations and size per component class and
+	 * ID for a random sample of the printed pages. The profile of a page is
+	 * available from {@link RequestTrace#getRenderProfile()}, printed in the
+	 * slow request log and aggregated per component class in the
+	 * {@link org.feldspaten.hyperion.metrics.MetricsRegistry}
+	 * 
+	 * @param sampling
+	 *            Profile one in <code>sampling</code> pages on average, 1 for
+	 *            all pages, 0 to disable
+	 */
+	public static void setRenderProfiling(final int sampling) {
+		if (sampling < 0)
+			throw new IllegalArgumentException("Sampling cannot be negative");
+		renderProfiling = sampling;
+	}
+
+	/**
+	 * @param sampling
+	 *            Sample one in <code>sampling</code> on average, 0 for none
+	 * @return true if the next request is to be sampled
+	 */
+	private static boolean sample(final int sampling) {
+		if (sampling <= 0)
+			return false;
+		return sampling == 1
+				|| ThreadLocalRandom.current().nextInt(sampling) == 0;
+	}
+
+	/**
+	 * Add a listener, that is notified about all completed requests of all
+	 * servlets
+	 * 
+	 * @param listener
+	 *            to be added
+	 */
+	public static void addRequestListener(final RequestListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		requestListeners.addIfAbsent(listener);
+	}
+
+	public static void removeRequestListener(final RequestListener listener) {
+		requestListeners.remove(listener);
+	}
+
+	/**
+	 * Add a listener, that is notified about created and destroyed sessions
+	 * 
+	 * @param listener
+	 *            to be added
+	 */
+	public static void addSessionListener(final SessionListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+		sessionListeners.addIfAbsent(listener);
+	}
+
+	public static void removeSessionListener(final SessionListener listener) {
+		sessionListeners.remove(listener);
+	}
+
+	public static AdmissionScheduler getAdmissionScheduler() {
+		return admissionScheduler;
+	}
+
+	/**
+	 * Assign an {@link AdmissionScheduler}, that admits the requests of all
+	 * servlets by their priority once the server is saturated
+	 * 
+	 * @param scheduler
+	 *            Scheduler to be used, or null to admit all requests
+	 */
+	public static void setAdmissionScheduler(final AdmissionScheduler scheduler) {
+		admissionScheduler = scheduler;
+	}
+
 	/**
 	 * Gets the session for this servlet object
 	 * 
@@ -563,52 +1056,103 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	 * @throws IOException
 	 *             Thrown from database
 	 */
-	protected synchronized final Session getSession(
+	protected final Session getSession(
 			final HttpServletRequest request, final HttpServletResponse response)
 			throws IOException {
-
-		String sid = null;
-		final Cookie[] cookies = request.getCookies();
-		if (cookies != null)
-			for (final Cookie cookie : cookies) {
-				if (cookie.getName().equals(SESSION_COOKIE)) {
-					sid = cookie.getValue();
-					break;
+		sessionLock.lock();
+		try {
+			String sid = null;
+			String token = null;
+			final Cookie[] cookies = request.getCookies();
+			if (cookies != null)
+				for (final Cookie cookie : cookies) {
+					if (sid == null && cookie.getName().equals(SESSION_COOKIE))
+						sid = cookie.getValue();
+					else if (token == null
+							&& cookie.getName().equals(TOKEN_COOKIE))
+						token = cookie.getValue();
 				}
-			}
 
-		synchronized (sessions) {
+			final SessionStore sessions = HttpSessionServlet.sessions;
 			removeDeadSessions();
-			// No session cookie - Create one
-			if (sid == null) {
-				do {
-					sid = createNewSecureSID();
-				} while (sessions.containsKey(sid));
 
-				response.addCookie(new Cookie(SESSION_COOKIE, sid));
-				final Session session = new Session(this, sid);
-				sessions.put(sid, session);
+			// Stateless session, the registry is not touched
+			final SessionTokenCodec tokenCodec = HttpSessionServlet.tokenCodec;
+			if (sid == null && tokenCodec != null) {
+				Session session = null;
+				if (token != null)
+					session = tokenCodec.decode(token, this);
+				if (session == null)
+					session = tokenCodec.createSession(this);
+				session.doActivity();
+				return session;
 			}
-
-			if (sid == null || sid.isEmpty())
+			if (sid != null && sid.isEmpty())
 				return staticGuestSession;
 
-			removeDeadSessions();
-
-			Session session = sessions.get(sid);
+			Session session = (sid == null ? null : sessions.get(sid, this));
 			if (session == null) {
-				// This is a new session. Create it!
-				session = new Session(this, sid);
-				sessions.put(sid, session);
-				// saveSessions();
-				return session;
+				// No session cookie or unknown session. Create a new session
+				// with a new id, client-chosen ids are never accepted
+				do {
+					sid = createNewSecureSID();
+					session = new Session(this, sid);
+				} while (sessions.putIfAbsent(session) != null);
 
-			} else {
-				session.doActivity();
+				storedSessions.incrementAndGet();
+				response.addCookie(new Cookie(SESSION_COOKIE, sid));
+				for (final SessionListener listener : sessionListeners)
+					listener.sessionCreated(session);
 				return session;
 			}
+			session.doActivity();
+			return session;
+		} finally {
+			sessionLock.unlock();
 		}
+	}
 
+	/**
+	 * Writes a stateless session back into its cookie, or promotes it to the
+	 * {@link SessionStore} if it is not light anymore
+	 * 
+	 * @param session
+	 *            Session of the request
+	 * @param request
+	 *            Servlet request
+	 * @param response
+	 *            Response to write the cookies to
+	 */
+	private void storeStatelessSession(final Session session,
+			final HttpServletRequest request, final HttpServletResponse response) {
+		final SessionTokenCodec tokenCodec = HttpSessionServlet.tokenCodec;
+		if (!session.isStateless() || tokenCodec == null
+				|| response.isCommitted())
+			return;
+		if (!tokenCodec.needsRefresh(session))
+			return;
+
+		final String token = tokenCodec.encode(session);
+		if (token != null) {
+			final Cookie cookie = new Cookie(TOKEN_COOKIE, token);
+			cookie.setHttpOnly(true);
+			cookie.setSecure(request.isSecure());
+			response.addCookie(cookie);
+			return;
+		}
+
+		// Session has grown, promote it to the session store
+		String sid;
+		do {
+			sid = createNewSecureSID();
+		} while (sessions.contains(sid));
+		session.promote(sid);
+		if (sessions.putIfAbsent(session) == null)
+			storedSessions.incrementAndGet();
+		response.addCookie(new Cookie(SESSION_COOKIE, sid));
+		final Cookie cookie = new Cookie(TOKEN_COOKIE, "");
+		cookie.setMaxAge(0);
+		response.addCookie(cookie);
 	}
 
 	/**
@@ -617,7 +1161,7 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	 * @return
 	 */
 	private static String createNewSecureSID() {
-		final int size = 1024;
+		final int size = SID_LENGTH;
 
 		// Initialize new Random generator each time to increase entropy
 		final Random rnd = new SecureRandom();
@@ -641,35 +1185,36 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	}
 
 	/**
-	 * Removes all dead sessions
+	 * Removes all dead sessions. The sweep is performed at most once per
+	 * {@link #SWEEP_INTERVAL}, because the {@link SessionStore} doesn't return
+	 * expired sessions anyway
 	 */
 	private static void removeDeadSessions() {
-		removeDeadSessions(true);
+		final long now = System.currentTimeMillis();
+		if (now - lastSweep < SWEEP_INTERVAL)
+			return;
+		lastSweep = now;
+		sessionsDestroyed(sessions.removeExpired(), true);
+		storedSessions.set(sessions.size());
 	}
 
 	/**
-	 * Removes all dead sessions
+	 * Notify the {@link SessionListener}s of sessions that have been removed
+	 * from the store
 	 * 
-	 * @param saveSessions
-	 *            true, if when removing a session, the session file is
-	 *            refreshed
+	 * @param sids
+	 *            IDs of the removed sessions, may be null
+	 * @param expired
+	 *            true if the sessions expired
 	 */
-	private static void removeDeadSessions(boolean saveSessions) {
-		synchronized (sessions) {
-			final List<Session> deadSessions = new LinkedList<Session>();
-			for (final Session session : sessions.values()) {
-				if (session.isExpired())
-					deadSessions.add(session);
-			}
-			for (final Session session : deadSessions) {
-				sessions.remove(session.getId());
-			}
-
-			if (saveSessions && !deadSessions.isEmpty()) {
-				// Write sessions to file
-				// saveSessions();
-			}
-		}
+	static void sessionsDestroyed(final List<String> sids,
+			final boolean expired) {
+		if (sids == null)
+			return;
+		storedSessions.addAndGet(-sids.size());
+		for (final String sid : sids)
+			for (final SessionListener listener : sessionListeners)
+				listener.sessionDestroyed(sid, expired);
 	}
 
 	/**
@@ -737,41 +1282,143 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	protected final void processRequest(final int method,
 			final HttpServletRequest req, final HttpServletResponse resp)
 			throws ServletException, IOException {
-		final Session session = this.getSession(req, resp);
-		if (session.isExpired())
-			session.logout();
-		session.doActivity();
+		// Shed load before any work is done for the request
+		ConcurrencyLimiter.Permit permit = null;
+		final ConcurrencyLimiter bulkhead = this.bulkhead;
+		if (bulkhead != null) {
+			permit = bulkhead.tryAcquire();
+			if (permit == null) {
+				rejectRequest(resp, bulkhead.getRetryAfter());
+				return;
+			}
+		}
+		final ConcurrencyLimiter limiter = concurrencyLimiter;
+		if (limiter != null) {
+			final ConcurrencyLimiter.Permit shared = limiter.tryAcquire();
+			if (shared == null) {
+				if (permit != null)
+					permit.ignore();
+				rejectRequest(resp, limiter.getRetryAfter());
+				return;
+			}
+			permit = shared.chain(permit);
+		}
+
+		final RequestTrace trace = new RequestTrace(sample(allocationSampling));
+		RequestTrace.attach(trace);
+		trace.enter(RequestTrace.Phase.SESSION);
+		final Session session;
+		try {
+			session = this.getSession(req, resp);
+		} catch (IOException | RuntimeException e) {
+			RequestTrace.detach();
+			if (permit != null)
+				permit.ignore();
+			throw e;
+		}
 		final Request request = new Request(resp, req, session);
 		request.setRequestType(method);
-		request.session.setRemoteAddress(req.getRemoteAddr());
+		request.permit = permit;
+		request.trace = trace;
 
-		// If not logged in, check if the request provides login informations
-		if (!request.session.isLoggedIn()) {
-			try {
-				if (request.hasParameter("username")
-						&& request.hasParameter("password")) {
-					final String username = request.getParameter("username");
-					final String password = request.getParameter("password");
-					if (this.checkLogin(username, password)) {
-						final User user = createUser(username);
-						if (user != null)
-							request.session.setUser(user);
+		// From here on, completeRequest releases the permit and the trace
+		boolean async = false;
+		try {
+			if (session.isExpired())
+				session.logout();
+			session.doActivity();
+			request.session.setRemoteAddress(req.getRemoteAddr());
+
+			// If not logged in, check if the request provides login
+			// informations
+			trace.enter(RequestTrace.Phase.LOGIN);
+			boolean loginBusy = false;
+			if (!request.session.isLoggedIn()) {
+				try {
+					if (request.hasParameter("username")
+							&& request.hasParameter("password")) {
+						final String username = request
+								.getParameter("username");
+						final String password = request
+								.getParameter("password");
+						final LoginVerifier verifier = loginVerifier;
+						final boolean valid;
+						if (verifier == null)
+							valid = this.checkLogin(username, password);
+						else {
+							final LoginVerifier.Result result = verifier
+									.verify(this, session, username, password);
+							valid = result == LoginVerifier.Result.VALID;
+							loginBusy = result == LoginVerifier.Result.BUSY;
+						}
+						if (valid) {
+							final UserCache cache = userCache;
+							final User user = cache == null ? createUser(username)
+									: cache.get(username, this);
+							if (user != null) {
+								request.session.setUser(user);
+								storeStatelessSession(session, req, resp);
+							}
+						}
 					}
+				} catch (SQLException e) {
+					// Report error, but continue without info
+					reportDatabaseException(e);
 				}
-			} catch (SQLException e) {
-				// Report error, but continue without info
-				reportDatabaseException(e);
 			}
-		}
 
-		// Handle request
-		try {
+			// Handle request
+			final AdmissionScheduler scheduler = admissionScheduler;
+			if (scheduler != null) {
+				trace.enter(RequestTrace.Phase.ADMISSION);
+				try {
+					request.ticket = scheduler.admit(getRequestPriority(request));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (request.ticket == null) {
+					rejectRequest(resp, scheduler.getRetryAfter());
+					return;
+				}
+			}
+
+			trace.enter(RequestTrace.Phase.CHECK);
+			if (loginBusy) {
+				resp.setHeader("Retry-After", "5");
+				request.printErrorPage(
+						"Too many logins at the moment. Please try again", 503);
+				return;
+			}
+
 			if (!checkRequest(request))
 				throw new IllegalAccessException();
 
+			if (method == REQUEST_HEAD) {
+				final HeadMetadata metadata = getHeadMetadata(request);
+				if (metadata != null) {
+					metadata.apply(resp);
+					return;
+				}
+			}
+
 			final Page page = request.initPage();
 
-			if (method == REQUEST_GET)
+			trace.enter(RequestTrace.Phase.HANDLER);
+			final PageCompletion completion = doAsync(request, page);
+			if (completion != null) {
+				async = processAsync(request, completion);
+				return;
+			}
+
+			final Router router = this.router;
+			Router.Match route = router == null ? null : router.match(method,
+					request.getPath());
+			if (route == null && router != null && method == REQUEST_HEAD)
+				route = router.match(REQUEST_GET, request.getPath());
+			if (route != null) {
+				request.setPathVariables(route.getVariables());
+				route.getHandler().handle(request, page);
+			} else if (method == REQUEST_GET)
 				this.doGet(request, page);
 			else if (method == REQUEST_POST)
 				this.doPost(request, page);
@@ -786,31 +1433,352 @@ public abstract class HttpSessionServlet extends HttpServlet {
 			else if (method == REQUEST_DELETE)
 				this.doDelete(request, page);
 
-			if (page.isEnabled()) {
-				// final int statusCode = page.getStatusCode();
-				// request.response.setStatus(statusCode);
-				page.print(request.getWriter());
+			printPage(request, page);
+		} catch (IllegalArgumentException | SQLException
+				| IllegalAccessException e) {
+			handleRequestError(request, e);
+		} finally {
+			if (!async)
+				completeRequest(request);
+			RequestTrace.detach();
+		}
+	}
+
+	/**
+	 * Get the priority of a request for the {@link AdmissionScheduler}.
+	 * Logged-in users get {@link AdmissionScheduler#PRIORITY_USER}, guests
+	 * {@link AdmissionScheduler#PRIORITY_GUEST}. Override to prioritize by
+	 * servlet or by user
+	 * 
+	 * @param request
+	 *            {@link Request} instance containing all data
+	 * @return one of the PRIORITY_* constants of {@link AdmissionScheduler}
+	 */
+	protected int getRequestPriority(final Request request) {
+		if (request.isLoggedIn())
+			return AdmissionScheduler.PRIORITY_USER;
+		return AdmissionScheduler.PRIORITY_GUEST;
+	}
+
+	/**
+	 * Hook for asynchronous processing. If a completion is returned, the
+	 * request is not passed to the do* methods. Instead, the page of the
+	 * completion is printed once it is done. Blocking work should run on the
+	 * executor of {@link Request#async(Callable)}, so that the container
+	 * thread is released.
+	 * 
+	 * Asynchronous processing requires the servlet to be declared with
+	 * async-supported. Otherwise the container thread waits for the
+	 * completion
+	 * 
+	 * @param request
+	 *            {@link Request} instance containing all data
+	 * @param page
+	 *            Initialized page
+	 * @return completion of the request or null, to process the request
+	 *         synchronously
+	 */
+	protected PageCompletion doAsync(final Request request, final Page page)
+			throws ServletException, IOException, SQLException,
+			IllegalAccessException {
+		return null;
+	}
+
+	/**
+	 * Finish a request, whose page is produced by the given completion
+	 * 
+	 * @return true if the request has been put into asynchronous mode and is
+	 *         completed by the completion
+	 */
+	private boolean processAsync(final Request request,
+			final PageCompletion completion) throws IOException {
+		final HttpServletRequest req = request.request;
+		if (req.isAsyncSupported()) {
+			final AsyncContext context = req.startAsync(req, request.response);
+			context.setTimeout(asyncTimeout);
+			context.addListener(new AsyncListener() {
+				@Override
+				public void onTimeout(final AsyncEvent event) {
+					completion.completeExceptionally(new TimeoutException(
+							"Asynchronous request timed out"));
+				}
+
+				@Override
+				public void onStartAsync(final AsyncEvent event) {
+				}
+
+				@Override
+				public void onError(final AsyncEvent event) {
+					final Throwable error = event.getThrowable();
+					completion.completeExceptionally(error != null ? error
+							: new IOException("Asynchronous request failed"));
+				}
+
+				@Override
+				public void onComplete(final AsyncEvent event) {
+				}
+			});
+			completion.addListener(new PageCompletion.Listener() {
+				@Override
+				public void completed(final Page page, final Throwable error) {
+					try {
+						finishCompletion(request, page, error);
+					} catch (IOException e) {
+						System.err.println("Cannot complete asynchronous request: "
+								+ e.getMessage());
+					} finally {
+						// Release the permit and the ticket, even if printing
+						// the page failed
+						try {
+							completeRequest(request);
+						} catch (IOException e) {
+							System.err.println("Cannot complete asynchronous request: "
+									+ e.getMessage());
+						} finally {
+							context.complete();
+						}
+					}
+				}
+			});
+			return true;
+		}
+
+		// Container without async support. Wait on the request thread
+		try {
+			if (!completion.await(asyncTimeout))
+				completion.completeExceptionally(new TimeoutException(
+						"Asynchronous request timed out"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			completion.completeExceptionally(e);
+		}
+		completion.addListener(new PageCompletion.Listener() {
+			@Override
+			public void completed(final Page page, final Throwable error) {
+				try {
+					finishCompletion(request, page, error);
+				} catch (IOException e) {
+					System.err.println("Cannot complete request: "
+							+ e.getMessage());
+				}
 			}
-		} catch (IllegalArgumentException e) {
+		});
+		return false;
+	}
+
+	/**
+	 * Print the result of a completion
+	 */
+	private void finishCompletion(final Request request, final Page page,
+			final Throwable error) throws IOException {
+		if (error == null) {
+			if (page != null)
+				printPage(request, page);
+		} else if (error instanceof Exception)
+			handleRequestError(request, (Exception) error);
+		else {
+			request.printErrorPage("Internal error");
+			error.printStackTrace(System.err);
+			onRequestError(request, error);
+		}
+	}
+
+	/**
+	 * Store the session cookie and print the page of a request
+	 */
+	private void printPage(final Request request, final Page page)
+			throws IOException {
+		request.trace.enter(RequestTrace.Phase.RENDER);
+		storeStatelessSession(request.session, request.request,
+				request.response);
+		if (request.getRequestType() == REQUEST_HEAD)
+			printHead(request, page);
+		else if (page.isEnabled()) {
+			// final int statusCode = page.getStatusCode();
+			// request.response.setStatus(statusCode);
+			final CharCountingWriter writer = new CharCountingWriter(
+					request.getWriter());
+			RenderProfile profile = null;
+			if (sample(renderProfiling)) {
+				profile = new RenderProfile();
+				profile.attach();
+			}
+			try {
+				page.print(writer);
+			} finally {
+				if (profile != null)
+					profile.detach();
+			}
+			writer.flush();
+			request.trace.addRenderedChars(writer.getCount());
+			if (profile != null)
+				request.trace.setRenderProfile(profile);
+		}
+	}
+
+	/**
+	 * Set the headers of a HEAD request. The page is rendered into a writer
+	 * that only counts the bytes, so the body is neither buffered nor sent
+	 */
+	private void printHead(final Request request, final Page page) {
+		if (!page.isEnabled())
+			return;
+		final HttpServletResponse response = request.response;
+		final CountingWriter counter = new CountingWriter(
+				response.getCharacterEncoding());
+		final PrintWriter writer = new PrintWriter(counter);
+		page.print(writer);
+		writer.flush();
+		final HeadMetadata metadata = new HeadMetadata(
+				counter.getByteCount(), counter.getETag(), -1L);
+		metadata.apply(response);
+
+		final HeadCache cache = this.headCache;
+		if (cache != null && response.getStatus() == HttpServletResponse.SC_OK)
+			cache.put(request.getRequestURI(true), metadata);
+	}
+
+	/**
+	 * Get the headers of a HEAD request without rendering the page. The
+	 * default implementation looks the request up in the {@link HeadCache},
+	 * if one is assigned. Override to supply metadata from the data model,
+	 * e.g. the modification time of a database row
+	 * 
+	 * @param request
+	 *            {@link Request} instance containing all data
+	 * @return metadata of the page or null, to process the request and
+	 *         render the page
+	 */
+	protected HeadMetadata getHeadMetadata(final Request request)
+			throws SQLException {
+		final HeadCache cache = this.headCache;
+		if (cache == null)
+			return null;
+		return cache.get(request.getRequestURI(true));
+	}
+
+	/**
+	 * Print the error page for an error that occurred while handling a
+	 * request
+	 */
+	private void handleRequestError(final Request request, final Exception e)
+			throws IOException {
+		request.trace.enter(RequestTrace.Phase.RENDER);
+		if (e instanceof IllegalArgumentException) {
 			request.printErrorPage("Illegal request (Illegal argument)");
 			onRequestError(request, e);
 
-		} catch (SQLException e) {
-			request.printErrorPage("Database error (" + e.getErrorCode() + ")");
+		} else if (e instanceof SQLException) {
+			request.printErrorPage("Database error ("
+					+ ((SQLException) e).getErrorCode() + ")");
 			reportDatabaseException(e);
 			onRequestError(request, e);
 
-		} catch (LoginRequiredException e) {
+		} else if (e instanceof LoginRequiredException) {
 			printLoginRequiredPage(request, request.getRequestURI(true));
 
-		} catch (IllegalAccessException e) {
+		} else if (e instanceof IllegalAccessException) {
 			request.printErrorPage("Access denied");
 			onRequestError(request, e);
-		} finally {
+
+		} else if (e instanceof TimeoutException
+				|| e instanceof RejectedExecutionException) {
+			request.printErrorPage("Server busy, please try again later", 503);
+			onRequestError(request, e);
+
+		} else {
+			request.printErrorPage("Internal error");
+			e.printStackTrace(System.err);
+			onRequestError(request, e);
+		}
+	}
+
+	/**
+	 * Close the request, store its session and release its permit
+	 */
+	private void completeRequest(final Request request) throws IOException {
+		final Session session = request.session;
+		try {
 			request.close();
+		} finally {
+			request.trace.addResponseBytes(request.getWrittenBytes());
+			if (request.ticket != null)
+				request.ticket.release();
+			if (request.permit != null)
+				request.permit.release();
+			if (session != staticGuestSession && !session.isStateless())
+				sessions.update(session);
+			finishTrace(request);
 		}
 	}
 
+	/**
+	 * End the trace of a request, log it if slow and notify the
+	 * {@link RequestListener}s
+	 */
+	private void finishTrace(final Request request) {
+		final RequestTrace trace = request.trace;
+		// The raw query string, getRequestURI(true) would add POST parameters
+		// like passwords
+		final String query = request.request.getQueryString();
+		final String uri = query == null ? request.request.getRequestURI()
+				: request.request.getRequestURI() + "?" + query;
+		trace.finish(request.request.getMethod(), uri, request.session,
+				request.response.getStatus());
+
+		final long threshold = slowRequestThreshold;
+		if (threshold >= 0L
+				&& trace.getTotalNanos() >= threshold * 1000L * 1000L)
+			System.err.println("Slow request - " + trace.format());
+
+		for (final RequestListener listener : requestListeners) {
+			try {
+				listener.requestCompleted(request, trace);
+			} catch (RuntimeException e) {
+				System.err.println("Request listener failed: " + e);
+				e.printStackTrace(System.err);
+			}
+		}
+	}
+
+	/**
+	 * Reject a request that exceeds the concurrency limit or has been shed by
+	 * the {@link AdmissionScheduler} with the pre-rendered overload page
+	 */
+	private void rejectRequest(final HttpServletResponse resp,
+			final int retryAfter) throws IOException {
+		byte[] page = overloadPage;
+		if (page == null) {
+			final StringWriter buffer = new StringWriter();
+			final PrintWriter writer = new PrintWriter(buffer);
+			createOverloadPage().print(writer);
+			writer.flush();
+			page = buffer.toString().getBytes(StandardCharsets.UTF_8);
+			overloadPage = page;
+		}
+		resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		resp.setHeader("Retry-After", Integer.toString(retryAfter));
+		resp.setContentType("text/html;charset=UTF-8");
+		resp.setContentLength(page.length);
+		final OutputStream out = resp.getOutputStream();
+		out.write(page);
+		out.flush();
+	}
+
+	/**
+	 * Create the page for requests rejected by the concurrency limit. The
+	 * page is rendered once and reused, so it must not depend on the request
+	 * 
+	 * @return overload page
+	 */
+	protected Page createOverloadPage() {
+		final Page page = new Page();
+		page.setTitle(TITLE);
+		page.addHeadline("Server busy", 2);
+		page.addParagraph("Too many requests at the moment. Please try again");
+		return page;
+	}
+
 	/**
 	 * Is called whenever a request caused an error
 	 * 
@@ -922,10 +1890,17 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		super.doOptions(request.getRequest(), request.getResponse());
 	}
 
+	/**
+	 * Head request. Processed like a GET request by default. Only the headers
+	 * of the page are sent
+	 * 
+	 * @param request
+	 *            {@link Request} instance containing all data
+	 */
 	protected void doHead(Request request, final Page page)
 			throws ServletException, IOException, SQLException,
 			IllegalAccessException {
-		super.doHead(request.getRequest(), request.getResponse());
+		this.doGet(request, page);
 	}
 
 	protected void doPost(Request request, final Page page)
@@ -949,20 +1924,66 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	/**
 	 * @return number of currently active sessions
 	 */
-	static synchronized int getSessionCount() {
+	public static int getSessionCount() {
 		removeDeadSessions();
 		return sessions.size();
 	}
 
+	/**
+	 * @return number of stored sessions as of the last sweep, adjusted by the
+	 *         sessions created and removed since. Doesn't query the store
+	 */
+	public static int getStoredSessionCount() {
+		return Math.max(0, storedSessions.get());
+	}
+
 	/**
 	 * @return all current sessions
 	 */
-	static synchronized List<Session> getSessions() {
+	static List<Session> getSessions() {
 		removeDeadSessions();
+		return sessions.getSessions(null);
+	}
 
-		final List<Session> result = new ArrayList<Session>(sessions.size());
-		for (final Session session : sessions.values())
-			result.add(session);
+	/**
+	 * @return approximate memory of all current sessions in bytes
+	 */
+	public static long getTotalSessionSize() {
+		long size = 0L;
+		for (final Session session : getSessions())
+			size += session.getApproximateSize();
+		return size;
+	}
+
+	/**
+	 * Finds the sessions that use the most memory
+	 * 
+	 * @param count
+	 *            Maximum number of sessions to return
+	 * @return largest sessions by {@link Session#getApproximateSize()},
+	 *         largest first
+	 */
+	public static List<Session> getLargestSessions(final int count) {
+		if (count <= 0)
+			return new ArrayList<Session>(0);
+		final Comparator<Session> bySize = new Comparator<Session>() {
+			@Override
+			public int compare(final Session s1, final Session s2) {
+				final long size1 = s1.getApproximateSize();
+				final long size2 = s2.getApproximateSize();
+				return size1 < size2 ? -1 : (size1 == size2 ? 0 : 1);
+			}
+		};
+		// Keep the largest sessions in a min-heap of the given size
+		final PriorityQueue<Session> largest = new PriorityQueue<Session>(
+				count + 1, bySize);
+		for (final Session session : getSessions()) {
+			largest.add(session);
+			if (largest.size() > count)
+				largest.poll();
+		}
+		final List<Session> result = new ArrayList<Session>(largest);
+		Collections.sort(result, Collections.reverseOrder(bySize));
 		return result;
 	}
 
@@ -978,10 +1999,8 @@ public abstract class HttpSessionServlet extends HttpServlet {
 		if (id == null || id.isEmpty())
 			return null;
 
-		synchronized (sessions) {
-			removeDeadSessions();
-			return sessions.get(id);
-		}
+		removeDeadSessions();
+		return sessions.get(id, null);
 	}
 
 	public static String formatSeconds(final long deltaSeconds) {
@@ -1005,13 +2024,13 @@ public abstract class HttpSessionServlet extends HttpServlet {
 	 * @param session
 	 *            to be removed
 	 */
-	void removeSession(final Session session) {
+	static void removeSession(final Session session) {
 		if (session == null)
 			return;
-		final String sid = session.getId();
-		synchronized (sessions) {
-			if (sessions.containsKey(sid))
-				sessions.remove(sid);
+		if (sessions.remove(session.getId())) {
+			storedSessions.decrementAndGet();
+			for (final SessionListener listener : sessionListeners)
+				listener.sessionDestroyed(session.getId(), false);
 		}
 	}
 
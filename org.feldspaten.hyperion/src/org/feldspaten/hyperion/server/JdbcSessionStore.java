@@ -0,0 +1,585 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.feldspaten.hyperion.persistence.MySQL;
+
+/**
+ * {@link SessionStore} that keeps the sessions in a MySQL table, so that
+ * several nodes can serve the same sessions without sticky routing.
+ * 
+ * Reads are served from a local cache for a short time. Changes are not
+ * written on each request, but collected and flushed in batches by a
+ * background thread. Activity updates are only written, if the last written
+ * activity is older than the activity resolution
+ * 
+ * Note: Because of the write-behind, a new or changed session becomes visible
+ * to other nodes with a delay of up to the flush interval
+ * 
+ */
+public class JdbcSessionStore implements SessionStore, Closeable {
+
+	/** Default table name */
+	public static final String DEFAULT_TABLE = "hyperion_sessions";
+	/** Default time in milliseconds a session is served from local cache */
+	public static final long DEFAULT_CACHE_TTL = 2L * 1000L;
+	/** Default interval in milliseconds between two flushes */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+	/** Default resolution in milliseconds of written activity updates */
+	public static final long DEFAULT_ACTIVITY_RESOLUTION = 30L * 1000L;
+
+	/** Pending write operation: Update activity only */
+	private static final int OP_TOUCH = 0;
+	/** Pending write operation: Write whole session */
+	private static final int OP_WRITE = 1;
+	/** Pending write operation: Delete session */
+	private static final int OP_DELETE = 2;
+
+	/** Locally cached session */
+	private static class CacheEntry {
+		/** Cached session */
+		final Session session;
+		/** System milliseconds when the entry has been loaded */
+		final long loaded;
+		/** System milliseconds when the session has been used last */
+		long used;
+		/** Modification count of the session when last written */
+		int writtenModCount;
+		/** Activity of the session when last written */
+		long writtenActivity;
+
+		CacheEntry(final Session session) {
+			this.session = session;
+			this.loaded = System.currentTimeMillis();
+			this.used = loaded;
+			this.writtenModCount = session.getModificationCount();
+			this.writtenActivity = session.getLastActivity();
+		}
+	}
+
+	/** Pending write operation */
+	private static class Pending {
+		/** Operation, one of OP_TOUCH, OP_WRITE or OP_DELETE */
+		final int operation;
+		/** Session to be written, null for OP_DELETE */
+		final Session session;
+
+		Pending(final int operation, final Session session) {
+			this.operation = operation;
+			this.session = session;
+		}
+	}
+
+	/** Database connection */
+	private final MySQL mysql;
+	/** Table holding the sessions */
+	private final String tablename;
+
+	/** Time in milliseconds a session is served from local cache */
+	private volatile long cacheTtl = DEFAULT_CACHE_TTL;
+	/** Resolution in milliseconds of written activity updates */
+	private volatile long activityResolution = DEFAULT_ACTIVITY_RESOLUTION;
+
+	/** Local cache, key is the session ID */
+	private final HashMap<String, CacheEntry> cache = new HashMap<String, CacheEntry>();
+	/** Pending writes, key is the hashed session ID */
+	private LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+	/** Background thread that flushes the pending writes */
+	private final ScheduledExecutorService flusher;
+
+	/** SHA-1 digests for hashing the session IDs */
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 not available", e);
+			}
+		}
+	};
+
+	/**
+	 * Create new store in the default table with the default flush interval
+	 * 
+	 * @param mysql
+	 *            Database connection
+	 */
+	public JdbcSessionStore(final MySQL mysql) {
+		this(mysql, DEFAULT_TABLE, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Create new store
+	 * 
+	 * @param mysql
+	 *            Database connection
+	 * @param tablename
+	 *            Table holding the sessions
+	 * @param flushInterval
+	 *            Interval in milliseconds between two flushes
+	 */
+	public JdbcSessionStore(final MySQL mysql, final String tablename,
+			final long flushInterval) {
+		if (tablename == null || tablename.isEmpty())
+			throw new IllegalArgumentException("Empty table name");
+		this.mysql = mysql;
+		this.tablename = MySQL.sqlSafeString(tablename);
+		this.flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"Hyperion session flusher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates the session table, if not yet existing
+	 * 
+	 * @throws SQLException
+	 *             Thrown if occurring on database
+	 */
+	public void initialize() throws SQLException {
+		mysql.execSql("CREATE TABLE IF NOT EXISTS `" + tablename + "` ("
+				+ "`id` CHAR(40) NOT NULL PRIMARY KEY, "
+				+ "`last_activity` BIGINT NOT NULL, "
+				+ "`data` MEDIUMBLOB NOT NULL, "
+				+ "INDEX (`last_activity`));");
+	}
+
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	public void setCacheTtl(long cacheTtl) {
+		this.cacheTtl = cacheTtl;
+	}
+
+	public long getActivityResolution() {
+		return activityResolution;
+	}
+
+	public void setActivityResolution(long activityResolution) {
+		this.activityResolution = activityResolution;
+	}
+
+	@Override
+	public Session get(final String sid, final HttpSessionServlet parent) {
+		synchronized (this) {
+			final CacheEntry entry = cache.get(sid);
+			if (entry != null
+					&& (isFresh(entry) || pending.containsKey(hash(sid)))) {
+				if (entry.session.isExpired())
+					return null;
+				entry.used = System.currentTimeMillis();
+				return entry.session;
+			}
+		}
+
+		final Session session;
+		try {
+			session = load(sid, parent);
+		} catch (SQLException e) {
+			System.err.println("Error loading session: " + e.getMessage());
+			return null;
+		}
+
+		synchronized (this) {
+			if (session == null || session.isExpired()) {
+				cache.remove(sid);
+				return null;
+			}
+			cache.put(sid, new CacheEntry(session));
+			return session;
+		}
+	}
+
+	@Override
+	public Session putIfAbsent(final Session session) {
+		final Session existing = get(session.getId(), null);
+		if (existing != null)
+			return existing;
+		synchronized (this) {
+			// The ID of an expired session is taken until it is swept
+			final CacheEntry entry = cache.get(session.getId());
+			if (entry != null)
+				return entry.session;
+			final CacheEntry created = new CacheEntry(session);
+			cache.put(session.getId(), created);
+			pending.put(hash(session.getId()), new Pending(OP_WRITE, session));
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized void put(final Session session) {
+		cache.put(session.getId(), new CacheEntry(session));
+		pending.put(hash(session.getId()), new Pending(OP_WRITE, session));
+	}
+
+	@Override
+	public synchronized void update(final Session session) {
+		if (session.isExpired())
+			return;
+		final CacheEntry entry = cache.get(session.getId());
+		if (entry == null || entry.session != session) {
+			// Pruned or reloaded while the request was running. Write the
+			// session back, so the changes of the request are not lost
+			final String key = hash(session.getId());
+			final Pending op = pending.get(key);
+			if (op != null && op.operation == OP_DELETE)
+				return;
+			cache.put(session.getId(), new CacheEntry(session));
+			pending.put(key, new Pending(OP_WRITE, session));
+			return;
+		}
+		entry.used = System.currentTimeMillis();
+
+		final int modCount = session.getModificationCount();
+		final long activity = session.getLastActivity();
+		final String key = hash(session.getId());
+		if (modCount != entry.writtenModCount) {
+			pending.put(key, new Pending(OP_WRITE, session));
+			entry.writtenModCount = modCount;
+			entry.writtenActivity = activity;
+		} else if (activity - entry.writtenActivity >= activityResolution) {
+			if (!pending.containsKey(key))
+				pending.put(key, new Pending(OP_TOUCH, session));
+			entry.writtenActivity = activity;
+		}
+	}
+
+	@Override
+	public synchronized boolean remove(final String sid) {
+		final CacheEntry entry = cache.remove(sid);
+		// Requests still holding the session must not write it back
+		if (entry != null)
+			entry.session.expire();
+		pending.put(hash(sid), new Pending(OP_DELETE, null));
+		return entry != null;
+	}
+
+	@Override
+	public boolean contains(final String sid) {
+		synchronized (this) {
+			final CacheEntry entry = cache.get(sid);
+			if (entry != null && isFresh(entry))
+				return true;
+		}
+		try {
+			final PreparedStatement stmt = mysql
+					.createPreparedStatement("SELECT 1 FROM `" + tablename
+							+ "` WHERE `id` = ?;");
+			try {
+				stmt.setString(1, hash(sid));
+				final ResultSet rs = stmt.executeQuery();
+				try {
+					return rs.next();
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("Error querying session: " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public int size() {
+		try {
+			final PreparedStatement stmt = mysql
+					.createPreparedStatement("SELECT COUNT(*) FROM `"
+							+ tablename + "` WHERE `last_activity` >= ?;");
+			try {
+				stmt.setLong(1, expiryThreshold());
+				final ResultSet rs = stmt.executeQuery();
+				try {
+					if (!rs.next())
+						return 0;
+					return rs.getInt(1);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("Error counting sessions: " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Removes all expired sessions. Rows of sessions that are unknown to this
+	 * node are deleted without being reported in the returned list
+	 */
+	@Override
+	public List<String> removeExpired() {
+		final List<String> deadSessions = new LinkedList<String>();
+		synchronized (this) {
+			final Iterator<CacheEntry> iterator = cache.values().iterator();
+			while (iterator.hasNext()) {
+				final Session session = iterator.next().session;
+				if (session.isExpired()) {
+					deadSessions.add(session.getId());
+					pending.put(hash(session.getId()), new Pending(OP_DELETE,
+							null));
+					iterator.remove();
+				}
+			}
+		}
+		try {
+			final PreparedStatement stmt = mysql
+					.createPreparedStatement("DELETE FROM `" + tablename
+							+ "` WHERE `last_activity` < ?;");
+			try {
+				stmt.setLong(1, expiryThreshold());
+				stmt.executeUpdate();
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("Error removing expired sessions: "
+					+ e.getMessage());
+		}
+		return deadSessions;
+	}
+
+	@Override
+	public List<Session> getSessions(final HttpSessionServlet parent) {
+		final List<Session> result = new ArrayList<Session>();
+		try {
+			final PreparedStatement stmt = mysql
+					.createPreparedStatement("SELECT `data` FROM `"
+							+ tablename + "` WHERE `last_activity` >= ?;");
+			try {
+				stmt.setLong(1, expiryThreshold());
+				final ResultSet rs = stmt.executeQuery();
+				try {
+					while (rs.next()) {
+						try {
+							result.add(decode(rs.getBytes(1), parent));
+						} catch (IOException e) {
+							// Skip unreadable session
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("Error loading sessions: " + e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all pending changes to the database. Called periodically by the
+	 * background thread
+	 */
+	public void flush() {
+		final LinkedHashMap<String, Pending> batch;
+		synchronized (this) {
+			pruneCache();
+			if (pending.isEmpty())
+				return;
+			batch = pending;
+			pending = new LinkedHashMap<String, Pending>();
+		}
+
+		try {
+			writeBatch(batch);
+		} catch (SQLException e) {
+			System.err.println("Error writing sessions: " + e.getMessage());
+			// Re-queue the batch, unless newer operations are pending
+			synchronized (this) {
+				for (final Map.Entry<String, Pending> entry : batch.entrySet())
+					if (!pending.containsKey(entry.getKey()))
+						pending.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread and flushes the pending changes
+	 */
+	@Override
+	public void close() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10L, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	private void writeBatch(final Map<String, Pending> batch)
+			throws SQLException {
+		final PreparedStatement write = mysql
+				.createPreparedStatement("INSERT INTO `"
+						+ tablename
+						+ "` (`id`, `last_activity`, `data`) VALUES (?, ?, ?) "
+						+ "ON DUPLICATE KEY UPDATE `last_activity` = VALUES(`last_activity`), "
+						+ "`data` = VALUES(`data`);");
+		final PreparedStatement touch = mysql
+				.createPreparedStatement("UPDATE `" + tablename
+						+ "` SET `last_activity` = ? WHERE `id` = ?;");
+		final PreparedStatement delete = mysql
+				.createPreparedStatement("DELETE FROM `" + tablename
+						+ "` WHERE `id` = ?;");
+		try {
+			for (final Map.Entry<String, Pending> entry : batch.entrySet()) {
+				final Pending op = entry.getValue();
+				if (op.operation == OP_DELETE) {
+					delete.setString(1, entry.getKey());
+					delete.addBatch();
+				} else if (op.operation == OP_TOUCH) {
+					touch.setLong(1, op.session.getLastActivity());
+					touch.setString(2, entry.getKey());
+					touch.addBatch();
+				} else {
+					final byte[] data;
+					try {
+						data = encode(op.session);
+					} catch (IOException e) {
+						System.err.println("Dropping unwritable session: "
+								+ e.getMessage());
+						continue;
+					}
+					write.setString(1, entry.getKey());
+					write.setLong(2, op.session.getLastActivity());
+					write.setBytes(3, data);
+					write.addBatch();
+				}
+			}
+			write.executeBatch();
+			touch.executeBatch();
+			delete.executeBatch();
+		} finally {
+			write.close();
+			touch.close();
+			delete.close();
+		}
+	}
+
+	private Session load(final String sid, final HttpSessionServlet parent)
+			throws SQLException {
+		final PreparedStatement stmt = mysql
+				.createPreparedStatement("SELECT `data` FROM `" + tablename
+						+ "` WHERE `id` = ?;");
+		try {
+			stmt.setString(1, hash(sid));
+			final ResultSet rs = stmt.executeQuery();
+			try {
+				if (!rs.next())
+					return null;
+				final Session session = decode(rs.getBytes(1), parent);
+				// Protect against hash collisions
+				if (!sid.equals(session.getId()))
+					return null;
+				return session;
+			} catch (IOException e) {
+				System.err.println("Dropping unreadable session: "
+						+ e.getMessage());
+				return null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Removes cache entries that are outdated, have not been used within the
+	 * cache TTL and have no pending writes
+	 */
+	private void pruneCache() {
+		final Iterator<Map.Entry<String, CacheEntry>> iterator = cache
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, CacheEntry> entry = iterator.next();
+			final CacheEntry cached = entry.getValue();
+			if (!isFresh(cached)
+					&& System.currentTimeMillis() - cached.used >= cacheTtl
+					&& !pending.containsKey(hash(entry.getKey())))
+				iterator.remove();
+		}
+	}
+
+	private boolean isFresh(final CacheEntry entry) {
+		return System.currentTimeMillis() - entry.loaded < cacheTtl;
+	}
+
+	private static long expiryThreshold() {
+		return System.currentTimeMillis() - Session.getInactiveDelay();
+	}
+
+	private static byte[] encode(final Session session) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		final DataOutputStream out = new DataOutputStream(buffer);
+		session.writeTo(out);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private static Session decode(final byte[] data,
+			final HttpSessionServlet parent) throws IOException {
+		return Session.readFrom(new DataInputStream(new ByteArrayInputStream(
+				data)), parent);
+	}
+
+	/**
+	 * @return hex encoded SHA-1 hash of the given session ID
+	 */
+	private static String hash(final String sid) {
+		final byte[] digest = digests.get().digest(
+				sid.getBytes(StandardCharsets.UTF_8));
+		final char[] hex = new char[digest.length * 2];
+		final String digits = "0123456789abcdef";
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = digits.charAt((digest[i] >> 4) & 0xF);
+			hex[i * 2 + 1] = digits.charAt(digest[i] & 0xF);
+		}
+		return new String(hex);
+	}
+}
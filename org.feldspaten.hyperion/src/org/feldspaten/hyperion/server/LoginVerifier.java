@@ -0,0 +1,413 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies login credentials for the {@link HttpSessionServlet}, so that a
+ * login storm cannot occupy all container threads with password hashing and
+ * database lookups.
+ * 
+ * Credentials are checked by
+ * {@link HttpSessionServlet#checkLogin(String, String)} on a bounded thread
+ * pool with a bounded queue. If the queue is full or the check takes longer
+ * than the timeout, the login is reported as {@link Result#BUSY}. Recently
+ * verified credentials are kept as salted digests for a short time, so
+ * repeated logins with the same credentials don't need to be checked again.
+ * Sessions with repeated failed logins have to wait an exponentially growing
+ * delay before the next attempt is checked.
+ * 
+ * The verifier is enabled by
+ * {@link HttpSessionServlet#setLoginVerifier(LoginVerifier)}
+ * 
+ */
+public class LoginVerifier implements Closeable {
+
+	/** Result of a verification */
+	public enum Result {
+		/** Credentials are valid */
+		VALID,
+		/** Credentials are invalid */
+		INVALID,
+		/** Credentials could not be checked, the verifier is overloaded */
+		BUSY,
+		/** Session has to wait before the next attempt */
+		BLOCKED
+	}
+
+	/** Default time in milliseconds verified credentials are cached */
+	public static final long DEFAULT_CACHE_TTL = 60L * 1000L;
+	/** Default maximum number of cached credentials */
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+	/** Default time in milliseconds to wait for a check */
+	public static final long DEFAULT_TIMEOUT = 5000L;
+	/** Default number of failed logins before the backoff starts */
+	public static final int DEFAULT_FREE_ATTEMPTS = 3;
+	/** Default backoff delay in milliseconds after the first counted failure */
+	public static final long DEFAULT_BACKOFF_DELAY = 1000L;
+	/** Default maximum backoff delay in milliseconds */
+	public static final long DEFAULT_MAX_BACKOFF_DELAY = 60L * 1000L;
+
+	/** Session attribute holding the time of the last failed login */
+	static final String ATTRIBUTE_LAST_FAILURE = "hyperion.login.lastFailure";
+
+	/** Cached verification */
+	private static class CacheEntry {
+		final String username;
+		final long expires;
+
+		CacheEntry(final String username, final long expires) {
+			this.username = username;
+			this.expires = expires;
+		}
+	}
+
+	/** Executes the checks */
+	private final ThreadPoolExecutor executor;
+	/** Random salt of the cached digests */
+	private final byte[] salt = new byte[16];
+	/** Verified credentials, key is the hex digest */
+	private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(
+			64, 0.75f, true);
+
+	private volatile long cacheTtl = DEFAULT_CACHE_TTL;
+	private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+	private volatile long timeout = DEFAULT_TIMEOUT;
+	private volatile int freeAttempts = DEFAULT_FREE_ATTEMPTS;
+	private volatile long backoffDelay = DEFAULT_BACKOFF_DELAY;
+	private volatile long maxBackoffDelay = DEFAULT_MAX_BACKOFF_DELAY;
+
+	/** Logins answered from the cache */
+	private final AtomicLong cacheHits = new AtomicLong();
+	/** Logins rejected because the verifier was overloaded */
+	private final AtomicLong busyRejections = new AtomicLong();
+	/** Logins rejected because of the backoff */
+	private final AtomicLong blockedAttempts = new AtomicLong();
+
+	/**
+	 * Create new verifier
+	 * 
+	 * @param threads
+	 *            Maximum number of concurrent checks
+	 * @param queueCapacity
+	 *            Maximum number of checks waiting for a thread
+	 */
+	public LoginVerifier(final int threads, final int queueCapacity) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Need at least one thread");
+		new SecureRandom().nextBytes(salt);
+		final AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+						queueCapacity)), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"Hyperion login verifier "
+										+ counter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Verify the given credentials
+	 * 
+	 * @param servlet
+	 *            Servlet that checks the credentials
+	 * @param session
+	 *            Session that attempts the login. Failed logins are counted
+	 *            in the session
+	 * @param username
+	 *            to be checked
+	 * @param password
+	 *            to be checked
+	 * @return result of the verification
+	 * @throws SQLException
+	 *             Thrown if the check failed with a database error
+	 */
+	public Result verify(final HttpSessionServlet servlet,
+			final Session session, final String username,
+			final String password) throws SQLException {
+		final long now = System.currentTimeMillis();
+		if (isBlocked(session, now)) {
+			blockedAttempts.incrementAndGet();
+			return Result.BLOCKED;
+		}
+
+		final String digest = digest(servlet, username, password);
+		synchronized (cache) {
+			final CacheEntry entry = cache.get(digest);
+			if (entry != null) {
+				if (entry.expires > now) {
+					cacheHits.incrementAndGet();
+					return Result.VALID;
+				}
+				cache.remove(digest);
+			}
+		}
+
+		final Future<Boolean> future;
+		try {
+			future = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws SQLException {
+					return servlet.checkLogin(username, password);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			busyRejections.incrementAndGet();
+			return Result.BUSY;
+		}
+
+		final boolean valid;
+		try {
+			valid = future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			busyRejections.incrementAndGet();
+			return Result.BUSY;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			return Result.BUSY;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException("Login check failed", cause);
+		}
+
+		if (valid) {
+			synchronized (cache) {
+				cache.put(digest, new CacheEntry(username, now + cacheTtl));
+				final Iterator<CacheEntry> iterator = cache.values()
+						.iterator();
+				while (cache.size() > cacheSize && iterator.hasNext()) {
+					iterator.next();
+					iterator.remove();
+				}
+			}
+			session.removeAttribute(ATTRIBUTE_LAST_FAILURE);
+			return Result.VALID;
+		} else {
+			session.setFailedLogins(session.getFailedLogins() + 1);
+			session.setAttribute(ATTRIBUTE_LAST_FAILURE, now);
+			return Result.INVALID;
+		}
+	}
+
+	/**
+	 * Removes all cached credentials of the given user. Must be called when
+	 * the password of a user changes
+	 * 
+	 * @param username
+	 *            User to be removed from the cache
+	 */
+	public void invalidate(final String username) {
+		synchronized (cache) {
+			final Iterator<CacheEntry> iterator = cache.values().iterator();
+			while (iterator.hasNext())
+				if (iterator.next().username.equals(username))
+					iterator.remove();
+		}
+	}
+
+	/**
+	 * Removes all cached credentials
+	 */
+	public void invalidateAll() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @param session
+	 *            to be checked
+	 * @return Remaining backoff delay of the session in milliseconds, 0 if the
+	 *         session can attempt a login
+	 */
+	public long getRemainingBackoff(final Session session) {
+		final long now = System.currentTimeMillis();
+		final long lastFailure = session.getAttributeLong(
+				ATTRIBUTE_LAST_FAILURE, 0L);
+		if (lastFailure == 0L)
+			return 0L;
+		return Math.max(0L,
+				lastFailure + getBackoffDelay(session.getFailedLogins()) - now);
+	}
+
+	/**
+	 * Stops the executor. Running checks are completed
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	private boolean isBlocked(final Session session, final long now) {
+		final long lastFailure = session.getAttributeLong(
+				ATTRIBUTE_LAST_FAILURE, 0L);
+		if (lastFailure == 0L)
+			return false;
+		return now < lastFailure + getBackoffDelay(session.getFailedLogins());
+	}
+
+	/**
+	 * @return backoff delay in milliseconds after the given number of failed
+	 *         logins
+	 */
+	private long getBackoffDelay(final int failedLogins) {
+		final int counted = failedLogins - freeAttempts;
+		if (counted <= 0)
+			return 0L;
+		if (counted > 30)
+			return maxBackoffDelay;
+		return Math.min(maxBackoffDelay, backoffDelay << (counted - 1));
+	}
+
+	private String digest(final HttpSessionServlet servlet,
+			final String username, final String password) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			digest.update(servlet.getClass().getName()
+					.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(username.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(password.getBytes(StandardCharsets.UTF_8));
+			final byte[] hash = digest.digest();
+			final StringBuilder builder = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {
+				builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+				builder.append(Character.forDigit(b & 0xF, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/**
+	 * @param cacheTtl
+	 *            Time in milliseconds verified credentials are cached, 0 to
+	 *            disable the cache
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		this.cacheTtl = cacheTtl;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            Maximum number of cached credentials
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            Time in milliseconds to wait for a check, before the login is
+	 *            reported as {@link Result#BUSY}
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getFreeAttempts() {
+		return freeAttempts;
+	}
+
+	/**
+	 * @param freeAttempts
+	 *            Number of failed logins of a session before the backoff
+	 *            starts
+	 */
+	public void setFreeAttempts(int freeAttempts) {
+		this.freeAttempts = freeAttempts;
+	}
+
+	public long getBackoffDelay() {
+		return backoffDelay;
+	}
+
+	/**
+	 * @param backoffDelay
+	 *            Delay in milliseconds after the first counted failed login.
+	 *            The delay doubles with every further failure
+	 */
+	public void setBackoffDelay(long backoffDelay) {
+		this.backoffDelay = backoffDelay;
+	}
+
+	public long getMaxBackoffDelay() {
+		return maxBackoffDelay;
+	}
+
+	public void setMaxBackoffDelay(long maxBackoffDelay) {
+		this.maxBackoffDelay = maxBackoffDelay;
+	}
+
+	/**
+	 * @return number of logins answered from the cache
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return number of logins rejected because the verifier was overloaded
+	 */
+	public long getBusyRejections() {
+		return busyRejections.get();
+	}
+
+	/**
+	 * @return number of logins rejected because of the backoff
+	 */
+	public long getBlockedAttempts() {
+		return blockedAttempts.get();
+	}
+
+	/**
+	 * @return number of checks waiting for a thread
+	 */
+	public int getQueuedChecks() {
+		return executor.getQueue().size();
+	}
+}
@@ -0,0 +1,334 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.feldspaten.hyperion.metrics.MonitoredLock;
+
+/**
+ * Default {@link SessionStore} that keeps all sessions as objects on the heap
+ * 
+ * The store can be bounded by a maximum number of sessions and a memory
+ * budget. If a bound is exceeded, guest sessions are evicted, least recently
+ * active first. Logged-in sessions are never evicted. Evicted sessions are
+ * reported to the {@link SessionListener}s as removed
+ * 
+ */
+public class MemorySessionStore implements SessionStore {
+
+	/** Stored session with its accounted size */
+	private static class Entry {
+		final Session session;
+		/** Approximate size in bytes, as accounted in totalBytes */
+		long size;
+
+		Entry(final Session session) {
+			this.session = session;
+			this.size = session.getApproximateSize();
+		}
+	}
+
+	/** Guards the sessions and the counters */
+	private final MonitoredLock lock = new MonitoredLock("MemorySessionStore");
+
+	/** Stored sessions, in access order */
+	private final LinkedHashMap<String, Entry> sessions = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** Maximum number of sessions, 0 if unlimited */
+	private int maxSessions = 0;
+	/** Maximum approximate memory of all sessions in bytes, 0 if unlimited */
+	private long maxBytes = 0L;
+
+	/**
+	 * Approximate memory of all sessions in bytes. Sizes are taken when a
+	 * session is added or updated and re-calculated on each sweep
+	 */
+	private long totalBytes = 0L;
+	/** Number of evicted sessions */
+	private long evictions = 0L;
+
+	/**
+	 * Create new unbounded store
+	 */
+	public MemorySessionStore() {
+		this(0, 0L);
+	}
+
+	/**
+	 * Create new bounded store
+	 * 
+	 * @param maxSessions
+	 *            Maximum number of sessions, 0 if unlimited
+	 * @param maxBytes
+	 *            Maximum approximate memory of all sessions in bytes, 0 if
+	 *            unlimited
+	 */
+	public MemorySessionStore(final int maxSessions, final long maxBytes) {
+		this.maxSessions = maxSessions;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public Session get(final String sid, final HttpSessionServlet parent) {
+		lock.lock();
+		try {
+			final Entry entry = sessions.get(sid);
+			// Expired sessions are left for removeExpired, which reports them
+			if (entry == null || entry.session.isExpired())
+				return null;
+			return entry.session;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Session putIfAbsent(final Session session) {
+		final List<String> evicted;
+		lock.lock();
+		try {
+			// The ID of an expired session is taken until it is swept
+			final Entry existing = sessions.get(session.getId());
+			if (existing != null)
+				return existing.session;
+			final Entry entry = new Entry(session);
+			sessions.put(session.getId(), entry);
+			totalBytes += entry.size;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+		return null;
+	}
+
+	@Override
+	public void put(final Session session) {
+		final List<String> evicted;
+		lock.lock();
+		try {
+			final Entry entry = new Entry(session);
+			final Entry previous = sessions.put(session.getId(), entry);
+			if (previous != null)
+				totalBytes -= previous.size;
+			totalBytes += entry.size;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+	}
+
+	/**
+	 * Sessions live on the heap, only their size is accounted again
+	 */
+	@Override
+	public void update(final Session session) {
+		final long size = session.getApproximateSize();
+		final List<String> evicted;
+		lock.lock();
+		try {
+			final Entry entry = sessions.get(session.getId());
+			if (entry == null || entry.session != session
+					|| entry.size == size)
+				return;
+			totalBytes += size - entry.size;
+			entry.size = size;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+	}
+
+	@Override
+	public boolean remove(final String sid) {
+		lock.lock();
+		try {
+			final Entry entry = sessions.remove(sid);
+			if (entry == null)
+				return false;
+			totalBytes -= entry.size;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(final String sid) {
+		lock.lock();
+		try {
+			return sessions.containsKey(sid);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return sessions.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String> removeExpired() {
+		final List<String> deadSessions = new LinkedList<String>();
+		final List<String> evicted;
+		lock.lock();
+		try {
+			final Iterator<Entry> iterator = sessions.values().iterator();
+			long bytes = 0L;
+			while (iterator.hasNext()) {
+				final Entry entry = iterator.next();
+				if (entry.session.isExpired()) {
+					deadSessions.add(entry.session.getId());
+					iterator.remove();
+				} else {
+					entry.size = entry.session.getApproximateSize();
+					bytes += entry.size;
+				}
+			}
+			totalBytes = bytes;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+		return deadSessions;
+	}
+
+	@Override
+	public List<Session> getSessions(final HttpSessionServlet parent) {
+		lock.lock();
+		try {
+			final List<Session> result = new ArrayList<Session>(
+					sessions.size());
+			for (final Entry entry : sessions.values())
+				result.add(entry.session);
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxSessions() {
+		lock.lock();
+		try {
+			return maxSessions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param maxSessions
+	 *            Maximum number of sessions, 0 if unlimited
+	 */
+	public void setMaxSessions(int maxSessions) {
+		final List<String> evicted;
+		lock.lock();
+		try {
+			this.maxSessions = maxSessions;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+	}
+
+	public long getMaxBytes() {
+		lock.lock();
+		try {
+			return maxBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param maxBytes
+	 *            Maximum approximate memory of all sessions in bytes, 0 if
+	 *            unlimited
+	 */
+	public void setMaxBytes(long maxBytes) {
+		final List<String> evicted;
+		lock.lock();
+		try {
+			this.maxBytes = maxBytes;
+			evicted = evict();
+		} finally {
+			lock.unlock();
+		}
+		HttpSessionServlet.sessionsDestroyed(evicted, false);
+	}
+
+	/**
+	 * @return approximate memory of all sessions in bytes
+	 */
+	public long getTotalBytes() {
+		lock.lock();
+		try {
+			return totalBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of guest sessions that have been evicted because a bound
+	 *         has been exceeded
+	 */
+	public long getEvictions() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isOverLimit() {
+		return (maxSessions > 0 && sessions.size() > maxSessions)
+				|| (maxBytes > 0L && totalBytes > maxBytes);
+	}
+
+	/**
+	 * Evicts the least recently active guest sessions until the bounds are
+	 * satisfied. Logged-in sessions that are passed are moved to the end of
+	 * the access order, so they are not scanned again on the next eviction.
+	 * The listeners must be notified after releasing the lock
+	 * 
+	 * @return IDs of the evicted sessions or null, if none
+	 */
+	private List<String> evict() {
+		if (!isOverLimit())
+			return null;
+
+		final List<String> evicted = new LinkedList<String>();
+		final List<String> protectedSessions = new LinkedList<String>();
+		final Iterator<Entry> iterator = sessions.values().iterator();
+		while (iterator.hasNext() && isOverLimit()) {
+			final Entry entry = iterator.next();
+			if (entry.session.isLoggedIn()) {
+				protectedSessions.add(entry.session.getId());
+				continue;
+			}
+			iterator.remove();
+			totalBytes -= entry.size;
+			evictions++;
+			evicted.add(entry.session.getId());
+		}
+		for (final String sid : protectedSessions)
+			sessions.get(sid);
+		return evicted;
+	}
+}
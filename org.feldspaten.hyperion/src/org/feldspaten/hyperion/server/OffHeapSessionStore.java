@@ -0,0 +1,599 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * {@link SessionStore} that keeps only recently active sessions as objects on
+ * the heap. All other sessions are written in their binary format (see
+ * {@link Session#writeTo(java.io.DataOutput)}) into direct or memory-mapped
+ * buffers outside of the heap, so that millions of idle sessions don't stress
+ * the garbage collector.
+ * 
+ * Off-heap memory is organised in segments, which are divided into blocks of
+ * power-of-two sizes. Freed blocks are re-used for records of the same size
+ * class. Records that are larger than the largest block size are kept as byte
+ * arrays on the heap.
+ * 
+ * The index of the off-heap sessions consists of primitive arrays only, about
+ * 40 bytes per session. It is keyed by a 64-bit hash of the session ID, the ID
+ * itself is compared with the ID at the start of the record.
+ * 
+ */
+public class OffHeapSessionStore implements SessionStore, Closeable {
+
+	/** Default number of sessions that are kept as objects on the heap */
+	public static final int DEFAULT_HOT_CAPACITY = 10000;
+	/** Default size of a single off-heap segment (64 MiB) */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	/** Smallest block size is 2^MIN_BLOCK_SHIFT bytes */
+	private static final int MIN_BLOCK_SHIFT = 6;
+	/** Largest block size is 2^MAX_BLOCK_SHIFT bytes */
+	private static final int MAX_BLOCK_SHIFT = 16;
+
+	/** Initial capacity of the off-heap index */
+	private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+	/** Recently active sessions, in access order */
+	private final LinkedHashMap<String, Session> hot = new LinkedHashMap<String, Session>(
+			16, 0.75f, true);
+
+	/*
+	 * Index of the sessions that are written to off-heap memory. Open
+	 * addressing with linear probing, a hash of 0 marks a free entry
+	 */
+	/** Hashes of the session IDs */
+	private long[] coldHashes = new long[INITIAL_INDEX_CAPACITY];
+	/**
+	 * Block of the record, encoded as segment << 32 | offset, or -1 - id of a
+	 * record in {@link #heapRecords}
+	 */
+	private long[] coldAddresses = new long[INITIAL_INDEX_CAPACITY];
+	/** Length of the record in bytes */
+	private int[] coldLengths = new int[INITIAL_INDEX_CAPACITY];
+	/** Last activity of the session, 0 if the session has been expired */
+	private long[] coldActivities = new long[INITIAL_INDEX_CAPACITY];
+	/** Number of sessions in the index */
+	private int coldCount = 0;
+	/** Seed of the session ID hash */
+	private final long hashSeed = new SecureRandom().nextLong();
+
+	/** Records that are too large for an off-heap block, by id */
+	private final HashMap<Integer, byte[]> heapRecords = new HashMap<Integer, byte[]>();
+	/** Id of the next record in {@link #heapRecords} */
+	private int nextHeapRecord = 0;
+
+	/** Maximum number of sessions in {@link #hot} */
+	private final int hotCapacity;
+	/** Size of a single segment in bytes */
+	private final int segmentSize;
+	/** Channel of the mapped file, or null if using direct buffers */
+	private final FileChannel mappedChannel;
+
+	/** Allocated segments */
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	/** Position of the next unused block in the last segment */
+	private int segmentPosition = 0;
+	/** Free blocks per size class, encoded as segment << 32 | offset */
+	private final long[][] freeBlocks;
+	/** Number of free blocks per size class */
+	private final int[] freeCount;
+	/** Bytes used by records in off-heap blocks */
+	private long usedBytes = 0L;
+
+	/**
+	 * Create new off-heap store using direct buffers
+	 */
+	public OffHeapSessionStore() {
+		this(DEFAULT_HOT_CAPACITY, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Create new off-heap store using direct buffers
+	 * 
+	 * @param hotCapacity
+	 *            Maximum number of sessions kept as objects on the heap
+	 * @param segmentSize
+	 *            Size of a single off-heap segment in bytes
+	 */
+	public OffHeapSessionStore(final int hotCapacity, final int segmentSize) {
+		this(hotCapacity, segmentSize, (FileChannel) null);
+	}
+
+	/**
+	 * Create new off-heap store using a memory-mapped file
+	 * 
+	 * @param hotCapacity
+	 *            Maximum number of sessions kept as objects on the heap
+	 * @param segmentSize
+	 *            Size of a single off-heap segment in bytes
+	 * @param file
+	 *            File that is mapped into memory, or null to use direct
+	 *            buffers
+	 * @throws IOException
+	 *             Thrown if the file cannot be opened
+	 */
+	public OffHeapSessionStore(final int hotCapacity, final int segmentSize,
+			final File file) throws IOException {
+		this(hotCapacity, segmentSize, file == null ? null
+				: new RandomAccessFile(file, "rw").getChannel());
+	}
+
+	private OffHeapSessionStore(final int hotCapacity, final int segmentSize,
+			final FileChannel channel) {
+		if (hotCapacity < 0)
+			throw new IllegalArgumentException("Negative hot capacity");
+		if (segmentSize < (1 << MAX_BLOCK_SHIFT))
+			throw new IllegalArgumentException("Segment size too small");
+		this.hotCapacity = hotCapacity;
+		this.segmentSize = segmentSize;
+		this.mappedChannel = channel;
+		final int classes = MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1;
+		this.freeBlocks = new long[classes][16];
+		this.freeCount = new int[classes];
+	}
+
+	@Override
+	public synchronized Session get(final String sid,
+			final HttpSessionServlet parent) {
+		// Expired sessions are left for removeExpired, which reports them
+		Session session = hot.get(sid);
+		if (session != null)
+			return session.isExpired() ? null : session;
+
+		final int index = find(sid);
+		if (index < 0 || Session.isExpired(coldActivities[index]))
+			return null;
+		try {
+			session = read(index, parent);
+		} catch (IOException e) {
+			System.err.println("Dropping unreadable session: "
+					+ e.getMessage());
+			return null;
+		} finally {
+			removeAt(index);
+		}
+
+		hot.put(sid, session);
+		spill();
+		return session;
+	}
+
+	@Override
+	public synchronized Session putIfAbsent(final Session session) {
+		// The ID of an expired session is taken until it is swept
+		final String sid = session.getId();
+		final Session existing = hot.get(sid);
+		if (existing != null)
+			return existing;
+		final int index = find(sid);
+		if (index >= 0) {
+			// Only on an ID collision the existing session is read, it stays
+			// off-heap
+			try {
+				return read(index, session.getParent());
+			} catch (IOException e) {
+				System.err.println("Dropping unreadable session: "
+						+ e.getMessage());
+				removeAt(index);
+			}
+		}
+		hot.put(sid, session);
+		spill();
+		return null;
+	}
+
+	@Override
+	public synchronized void put(final Session session) {
+		hot.put(session.getId(), session);
+		final int index = find(session.getId());
+		if (index >= 0)
+			removeAt(index);
+		spill();
+	}
+
+	/**
+	 * If the session has been moved off-heap while still in use, a concurrent
+	 * request might have loaded a second instance. The instance of the last
+	 * finished request wins, like in the {@link JdbcSessionStore}
+	 */
+	@Override
+	public synchronized void update(final Session session) {
+		final String sid = session.getId();
+		final Session current = hot.get(sid);
+		if (current == session)
+			return;
+		if (current != null) {
+			hot.put(sid, session);
+			return;
+		}
+		// Session has been moved off-heap while still in use. Rewrite it
+		final int index = find(sid);
+		if (index < 0)
+			return;
+		removeAt(index);
+		write(session);
+	}
+
+	@Override
+	public synchronized boolean remove(final String sid) {
+		if (hot.remove(sid) != null)
+			return true;
+		final int index = find(sid);
+		if (index < 0)
+			return false;
+		removeAt(index);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean contains(final String sid) {
+		return hot.containsKey(sid) || find(sid) >= 0;
+	}
+
+	@Override
+	public synchronized int size() {
+		return hot.size() + coldCount;
+	}
+
+	@Override
+	public synchronized List<String> removeExpired() {
+		final List<String> deadSessions = new LinkedList<String>();
+		final Iterator<Session> hotIterator = hot.values().iterator();
+		while (hotIterator.hasNext()) {
+			final Session session = hotIterator.next();
+			if (session.isExpired()) {
+				deadSessions.add(session.getId());
+				hotIterator.remove();
+			}
+		}
+		// Collect first, removing moves the following entries
+		final List<String> coldDead = new LinkedList<String>();
+		for (int i = 0; i < coldHashes.length; i++) {
+			if (coldHashes[i] == 0L || !Session.isExpired(coldActivities[i]))
+				continue;
+			try {
+				final DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(record(i)));
+				in.readByte();
+				coldDead.add(Session.readString(in));
+			} catch (IOException e) {
+				// Unreadable, dropped on the next access
+			}
+		}
+		for (final String sid : coldDead) {
+			final int index = find(sid);
+			if (index >= 0)
+				removeAt(index);
+		}
+		deadSessions.addAll(coldDead);
+		return deadSessions;
+	}
+
+	@Override
+	public synchronized List<Session> getSessions(
+			final HttpSessionServlet parent) {
+		final List<Session> result = new ArrayList<Session>(size());
+		result.addAll(hot.values());
+		for (int i = 0; i < coldHashes.length; i++) {
+			if (coldHashes[i] == 0L)
+				continue;
+			try {
+				result.add(read(i, parent));
+			} catch (IOException e) {
+				// Skip unreadable session
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of sessions kept as objects on the heap
+	 */
+	public synchronized int getHotCount() {
+		return hot.size();
+	}
+
+	/**
+	 * @return number of sessions kept in serialized form
+	 */
+	public synchronized int getColdCount() {
+		return coldCount;
+	}
+
+	/**
+	 * @return bytes of off-heap memory used by session records
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return bytes of off-heap memory allocated by this store
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) segments.size() * (long) segmentSize;
+	}
+
+	/**
+	 * Releases all sessions and the mapped file, if any
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		hot.clear();
+		Arrays.fill(coldHashes, 0L);
+		coldCount = 0;
+		heapRecords.clear();
+		segments.clear();
+		segmentPosition = 0;
+		usedBytes = 0L;
+		for (int i = 0; i < freeCount.length; i++)
+			freeCount[i] = 0;
+		if (mappedChannel != null)
+			mappedChannel.close();
+	}
+
+	/**
+	 * Moves the least recently active sessions off-heap, until the capacity
+	 * of {@link #hot} is satisfied
+	 */
+	private void spill() {
+		while (hot.size() > hotCapacity) {
+			final Iterator<Session> iterator = hot.values().iterator();
+			final Session eldest = iterator.next();
+			iterator.remove();
+			write(eldest);
+		}
+	}
+
+	/**
+	 * Writes the given session into off-heap memory and registers it in the
+	 * index
+	 */
+	private void write(final Session session) {
+		final byte[] record;
+		try {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+			final DataOutputStream out = new DataOutputStream(buffer);
+			session.writeTo(out);
+			out.close();
+			record = buffer.toByteArray();
+		} catch (IOException e) {
+			System.err.println("Dropping unwritable session: "
+					+ e.getMessage());
+			return;
+		}
+
+		long address = -1L;
+		final int sizeClass = sizeClass(record.length);
+		if (sizeClass >= 0) {
+			try {
+				address = allocate(sizeClass);
+				final ByteBuffer segment = segments.get((int) (address >>> 32));
+				segment.position((int) address);
+				segment.put(record);
+				usedBytes += record.length;
+			} catch (IOException e) {
+				// Cannot allocate more off-heap memory
+				address = -1L;
+			}
+		}
+		if (address < 0L) {
+			final int id = nextHeapRecord++ & Integer.MAX_VALUE;
+			heapRecords.put(id, record);
+			address = -1L - id;
+		}
+		insert(hash(sidBytes(session.getId())), address, record.length,
+				session.isExpired() ? 0L : session.getLastActivity());
+	}
+
+	private Session read(final int index, final HttpSessionServlet parent)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(record(index)));
+		return Session.readFrom(in, parent);
+	}
+
+	/**
+	 * @return copy of the record of the given index entry
+	 */
+	private byte[] record(final int index) {
+		final long address = coldAddresses[index];
+		if (address < 0L)
+			return heapRecords.get((int) (-1L - address));
+		final byte[] record = new byte[coldLengths[index]];
+		final ByteBuffer segment = segments.get((int) (address >>> 32));
+		segment.position((int) address);
+		segment.get(record);
+		return record;
+	}
+
+	/**
+	 * @return index entry of the given session or -1, if not off-heap
+	 */
+	private int find(final String sid) {
+		final byte[] bytes = sidBytes(sid);
+		final long hash = hash(bytes);
+		final int mask = coldHashes.length - 1;
+		for (int i = (int) hash & mask; coldHashes[i] != 0L; i = (i + 1) & mask)
+			if (coldHashes[i] == hash && matches(i, bytes))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Compares the session ID at the start of the record with the given ID.
+	 * A record starts with the format version and the length of the ID, see
+	 * {@link Session#writeTo(java.io.DataOutput)}
+	 */
+	private boolean matches(final int index, final byte[] sid) {
+		final long address = coldAddresses[index];
+		if (address < 0L) {
+			final byte[] record = heapRecords.get((int) (-1L - address));
+			final int length = ((record[1] & 0xFF) << 24)
+					| ((record[2] & 0xFF) << 16) | ((record[3] & 0xFF) << 8)
+					| (record[4] & 0xFF);
+			if (length != sid.length)
+				return false;
+			for (int i = 0; i < sid.length; i++)
+				if (record[5 + i] != sid[i])
+					return false;
+			return true;
+		}
+		final ByteBuffer segment = segments.get((int) (address >>> 32));
+		final int offset = (int) address;
+		if (segment.getInt(offset + 1) != sid.length)
+			return false;
+		for (int i = 0; i < sid.length; i++)
+			if (segment.get(offset + 5 + i) != sid[i])
+				return false;
+		return true;
+	}
+
+	private void insert(final long hash, final long address, final int length,
+			final long activity) {
+		if ((coldCount + 1) * 4 > coldHashes.length * 3)
+			resizeIndex(coldHashes.length * 2);
+		final int mask = coldHashes.length - 1;
+		int i = (int) hash & mask;
+		while (coldHashes[i] != 0L)
+			i = (i + 1) & mask;
+		coldHashes[i] = hash;
+		coldAddresses[i] = address;
+		coldLengths[i] = length;
+		coldActivities[i] = activity;
+		coldCount++;
+	}
+
+	private void resizeIndex(final int capacity) {
+		final long[] hashes = coldHashes;
+		final long[] addresses = coldAddresses;
+		final int[] lengths = coldLengths;
+		final long[] activities = coldActivities;
+		coldHashes = new long[capacity];
+		coldAddresses = new long[capacity];
+		coldLengths = new int[capacity];
+		coldActivities = new long[capacity];
+		coldCount = 0;
+		for (int i = 0; i < hashes.length; i++)
+			if (hashes[i] != 0L)
+				insert(hashes[i], addresses[i], lengths[i], activities[i]);
+	}
+
+	/**
+	 * Frees the record of the given index entry and removes the entry. The
+	 * following entries of the probe sequence are shifted back, so no
+	 * tombstones are needed
+	 */
+	private void removeAt(int index) {
+		free(coldAddresses[index], coldLengths[index]);
+		final int mask = coldHashes.length - 1;
+		int next = index;
+		while (true) {
+			next = (next + 1) & mask;
+			if (coldHashes[next] == 0L)
+				break;
+			final int home = (int) coldHashes[next] & mask;
+			// Move the entry, unless its home lies cyclically in (index, next]
+			final boolean stays = index <= next ? index < home && home <= next
+					: index < home || home <= next;
+			if (stays)
+				continue;
+			coldHashes[index] = coldHashes[next];
+			coldAddresses[index] = coldAddresses[next];
+			coldLengths[index] = coldLengths[next];
+			coldActivities[index] = coldActivities[next];
+			index = next;
+		}
+		coldHashes[index] = 0L;
+		coldCount--;
+	}
+
+	private static byte[] sidBytes(final String sid) {
+		return sid.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return seeded 64-bit hash of the session ID, never 0
+	 */
+	private long hash(final byte[] sid) {
+		long hash = hashSeed ^ 0xcbf29ce484222325L;
+		for (final byte b : sid) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		// Finalizer of MurmurHash3
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0L ? 1L : hash;
+	}
+
+	/**
+	 * @return size class for a record of the given length or -1 if it is too
+	 *         large for an off-heap block
+	 */
+	private static int sizeClass(final int length) {
+		for (int shift = MIN_BLOCK_SHIFT; shift <= MAX_BLOCK_SHIFT; shift++) {
+			if (length <= (1 << shift))
+				return shift - MIN_BLOCK_SHIFT;
+		}
+		return -1;
+	}
+
+	private long allocate(final int sizeClass) throws IOException {
+		if (freeCount[sizeClass] > 0)
+			return freeBlocks[sizeClass][--freeCount[sizeClass]];
+
+		final int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+		if (segments.isEmpty() || segmentPosition + blockSize > segmentSize) {
+			final int index = segments.size();
+			if (mappedChannel == null)
+				segments.add(ByteBuffer.allocateDirect(segmentSize));
+			else
+				segments.add(mappedChannel.map(FileChannel.MapMode.READ_WRITE,
+						(long) index * (long) segmentSize, segmentSize));
+			segmentPosition = 0;
+		}
+		final long address = ((long) (segments.size() - 1) << 32)
+				| segmentPosition;
+		segmentPosition += blockSize;
+		return address;
+	}
+
+	private void free(final long address, final int length) {
+		if (address < 0L) {
+			heapRecords.remove((int) (-1L - address));
+			return;
+		}
+		final int sizeClass = sizeClass(length);
+		if (freeCount[sizeClass] == freeBlocks[sizeClass].length) {
+			final long[] blocks = new long[freeBlocks[sizeClass].length * 2];
+			System.arraycopy(freeBlocks[sizeClass], 0, blocks, 0,
+					freeCount[sizeClass]);
+			freeBlocks[sizeClass] = blocks;
+		}
+		freeBlocks[sizeClass][freeCount[sizeClass]++] = address;
+		usedBytes -= length;
+	}
+}
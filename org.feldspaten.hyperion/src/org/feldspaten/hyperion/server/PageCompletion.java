@@ -0,0 +1,159 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.feldspaten.hyperion.html.Page;
+
+/**
+ * Result of an asynchronously processed request, see
+ * {@link HttpSessionServlet#doAsync(HttpSessionServlet.Request, Page)}.
+ * 
+ * A completion is completed exactly once, either with the page to be printed
+ * or with an error. Further attempts to complete it are ignored
+ * 
+ */
+public class PageCompletion {
+
+	/** Callback for the completion */
+	public interface Listener {
+		/**
+		 * Called once the completion is done
+		 * 
+		 * @param page
+		 *            Page to be printed or null, if failed
+		 * @param error
+		 *            Error or null, if successful
+		 */
+		public void completed(final Page page, final Throwable error);
+	}
+
+	private boolean done = false;
+	private Page page = null;
+	private Throwable error = null;
+	/** Listeners waiting for the completion */
+	private List<Listener> listeners = new ArrayList<Listener>(1);
+
+	/**
+	 * Run the given task on the executor and complete with its result
+	 * 
+	 * @param executor
+	 *            Executor that runs the task
+	 * @param task
+	 *            Task that creates the page
+	 * @return completion of the task
+	 */
+	public static PageCompletion submit(final Executor executor,
+			final Callable<Page> task) {
+		final PageCompletion completion = new PageCompletion();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						completion.complete(task.call());
+					} catch (Throwable e) {
+						completion.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			completion.completeExceptionally(e);
+		}
+		return completion;
+	}
+
+	/**
+	 * @return completion that is already completed with the given page
+	 */
+	public static PageCompletion completed(final Page page) {
+		final PageCompletion completion = new PageCompletion();
+		completion.complete(page);
+		return completion;
+	}
+
+	/**
+	 * Complete with the given page
+	 * 
+	 * @return true if completed by this call, false if already done
+	 */
+	public boolean complete(final Page page) {
+		return finish(page, null);
+	}
+
+	/**
+	 * Complete with the given error
+	 * 
+	 * @return true if completed by this call, false if already done
+	 */
+	public boolean completeExceptionally(final Throwable error) {
+		if (error == null)
+			throw new IllegalArgumentException("Error cannot be null");
+		return finish(null, error);
+	}
+
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Add a listener. If the completion is already done, the listener is
+	 * called immediately on the calling thread, otherwise on the thread that
+	 * completes
+	 */
+	public void addListener(final Listener listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.completed(page, error);
+	}
+
+	/**
+	 * Wait until the completion is done
+	 * 
+	 * @param timeout
+	 *            Maximum time to wait in milliseconds
+	 * @return true if done, false if the timeout elapsed
+	 * @throws InterruptedException
+	 *             Thrown if interrupted while waiting
+	 */
+	public synchronized boolean await(final long timeout)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (!done) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0L)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	private boolean finish(final Page page, final Throwable error) {
+		final List<Listener> listeners;
+		synchronized (this) {
+			if (done)
+				return false;
+			this.done = true;
+			this.page = page;
+			this.error = error;
+			listeners = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+		for (final Listener listener : listeners) {
+			try {
+				listener.completed(page, error);
+			} catch (RuntimeException e) {
+				e.printStackTrace(System.err);
+			}
+		}
+		return true;
+	}
+}
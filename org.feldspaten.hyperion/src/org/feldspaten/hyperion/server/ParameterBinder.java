@@ -0,0 +1,324 @@
+package org.feldspaten.hyperion.server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Fills the fields of a form class from the parameters of a request.
+ * 
+ * The binder of a class is created once and cached. It holds a
+ * {@link MethodHandle} for each bound field, so binding a request only
+ * iterates once over the request parameters and doesn't use reflection.
+ * Supported field types are the primitives int, long, double and boolean,
+ * their wrappers, {@link String} and enums.
+ * 
+ * Missing, empty and invalid parameters leave the field unchanged, so field
+ * initialisers serve as default values. Numbers are parsed by the
+ * {@link ParameterParser} without throwing exceptions
+ * 
+ * @param <T>
+ *            Bound class
+ */
+public final class ParameterBinder<T> {
+
+	/** Binders of all classes bound so far */
+	private static final ConcurrentHashMap<Class<?>, ParameterBinder<?>> binders = new ConcurrentHashMap<Class<?>, ParameterBinder<?>>();
+
+	/** Binding of a single field */
+	private static abstract class FieldBinding {
+		/** Setter with the type (Object, field type)void */
+		final MethodHandle setter;
+
+		FieldBinding(final MethodHandle setter) {
+			this.setter = setter;
+		}
+
+		/**
+		 * Set the field from the given non-empty parameter value
+		 */
+		abstract void bind(Object target, String value) throws Throwable;
+	}
+
+	/** Bound class */
+	private final Class<T> type;
+	/** Default constructor with the type ()Object */
+	private final MethodHandle constructor;
+	/** Field bindings, key is the parameter name */
+	private final Map<String, FieldBinding> fields;
+
+	private ParameterBinder(final Class<T> type) {
+		this.type = type;
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle constructor = null;
+		try {
+			final Constructor<T> ctor = type.getDeclaredConstructor();
+			ctor.setAccessible(true);
+			constructor = lookup.unreflectConstructor(ctor).asType(
+					MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException e) {
+			// Can only bind to existing instances
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot access constructor of "
+					+ type.getName(), e);
+		}
+		this.constructor = constructor;
+		this.fields = createBindings(type, lookup);
+	}
+
+	/**
+	 * Get the binder of the given class
+	 * 
+	 * @param type
+	 *            Class to be bound
+	 * @return cached binder of the class
+	 * @throws IllegalArgumentException
+	 *             Thrown if the fields of the class are not accessible
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ParameterBinder<T> forClass(final Class<T> type) {
+		ParameterBinder<?> binder = binders.get(type);
+		if (binder == null) {
+			binder = new ParameterBinder<T>(type);
+			final ParameterBinder<?> existing = binders.putIfAbsent(type,
+					binder);
+			if (existing != null)
+				binder = existing;
+		}
+		return (ParameterBinder<T>) binder;
+	}
+
+	/**
+	 * Create a new instance of the bound class and fill it from the request
+	 * 
+	 * @param request
+	 *            Source request
+	 * @return new, bound instance
+	 * @throws IllegalStateException
+	 *             Thrown if the class has no default constructor or the
+	 *             constructor failed
+	 */
+	public T bind(final ServletRequest request) {
+		if (constructor == null)
+			throw new IllegalStateException(type.getName()
+					+ " has no default constructor");
+		final T target;
+		try {
+			target = type.cast(constructor.invokeExact());
+		} catch (Throwable e) {
+			throw new IllegalStateException("Cannot create "
+					+ type.getName(), e);
+		}
+		return bind(request, target);
+	}
+
+	/**
+	 * Fill the given instance from the request
+	 * 
+	 * @param request
+	 *            Source request
+	 * @param target
+	 *            Instance to be filled
+	 * @return the given instance
+	 */
+	public T bind(final ServletRequest request, final T target) {
+		final Map<String, String[]> parameters = request.getParameterMap();
+		for (final Map.Entry<String, String[]> parameter : parameters
+				.entrySet()) {
+			final FieldBinding field = fields.get(parameter.getKey());
+			if (field == null)
+				continue;
+			final String[] values = parameter.getValue();
+			if (values == null || values.length == 0 || values[0] == null
+					|| values[0].isEmpty())
+				continue;
+			try {
+				field.bind(target, values[0]);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException("Cannot bind parameter "
+						+ parameter.getKey(), e);
+			}
+		}
+		return target;
+	}
+
+	private static Map<String, FieldBinding> createBindings(
+			final Class<?> type, final MethodHandles.Lookup lookup) {
+		boolean annotated = false;
+		for (Class<?> c = type; c != null && c != Object.class; c = c
+				.getSuperclass())
+			for (final Field field : c.getDeclaredFields())
+				if (field.isAnnotationPresent(RequestParameter.class))
+					annotated = true;
+
+		final Map<String, FieldBinding> result = new HashMap<String, FieldBinding>();
+		for (Class<?> c = type; c != null && c != Object.class; c = c
+				.getSuperclass()) {
+			for (final Field field : c.getDeclaredFields()) {
+				final int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)
+						|| field.isSynthetic())
+					continue;
+				final RequestParameter annotation = field
+						.getAnnotation(RequestParameter.class);
+				if (annotated ? annotation == null : Modifier
+						.isTransient(modifiers))
+					continue;
+				String name = field.getName();
+				if (annotation != null && !annotation.value().isEmpty())
+					name = annotation.value();
+				// Fields of subclasses hide fields of superclasses
+				if (result.containsKey(name))
+					continue;
+				final FieldBinding binding = createBinding(field, lookup);
+				if (binding != null)
+					result.put(name, binding);
+			}
+		}
+		return result;
+	}
+
+	private static FieldBinding createBinding(final Field field,
+			final MethodHandles.Lookup lookup) {
+		final Class<?> fieldType = field.getType();
+		final MethodHandle setter;
+		final MethodHandle getter;
+		try {
+			field.setAccessible(true);
+			setter = lookup.unreflectSetter(field).asType(
+					MethodType.methodType(void.class, Object.class, fieldType));
+			getter = lookup.unreflectGetter(field).asType(
+					MethodType.methodType(fieldType, Object.class));
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Cannot access field "
+					+ field.getName(), e);
+		}
+
+		if (fieldType == int.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final int current = (int) getter.invokeExact(target);
+					setter.invokeExact(target,
+							ParameterParser.parseInt(value, current));
+				}
+			};
+		if (fieldType == long.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final long current = (long) getter.invokeExact(target);
+					setter.invokeExact(target,
+							ParameterParser.parseLong(value, current));
+				}
+			};
+		if (fieldType == double.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final double current = (double) getter.invokeExact(target);
+					setter.invokeExact(target,
+							ParameterParser.parseDouble(value, current));
+				}
+			};
+		if (fieldType == boolean.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final boolean current = (boolean) getter
+							.invokeExact(target);
+					setter.invokeExact(target,
+							ParameterParser.parseBoolean(value, current));
+				}
+			};
+		if (fieldType == String.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					setter.invokeExact(target, value);
+				}
+			};
+		if (fieldType == Integer.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					// Invalid values return the default in both calls
+					final int parsed = ParameterParser.parseInt(value, 0);
+					if (parsed == ParameterParser.parseInt(value, 1))
+						setter.invokeExact(target, Integer.valueOf(parsed));
+				}
+			};
+		if (fieldType == Long.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final long parsed = ParameterParser.parseLong(value, 0L);
+					if (parsed == ParameterParser.parseLong(value, 1L))
+						setter.invokeExact(target, Long.valueOf(parsed));
+				}
+			};
+		if (fieldType == Double.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final double parsed = ParameterParser.parseDouble(value,
+							0.0);
+					if (Double.compare(parsed,
+							ParameterParser.parseDouble(value, 1.0)) == 0)
+						setter.invokeExact(target, Double.valueOf(parsed));
+				}
+			};
+		if (fieldType == Boolean.class)
+			return new FieldBinding(setter) {
+				@Override
+				void bind(final Object target, final String value)
+						throws Throwable {
+					final boolean parsed = ParameterParser.parseBoolean(value,
+							false);
+					if (parsed == ParameterParser.parseBoolean(value, true))
+						setter.invokeExact(target, Boolean.valueOf(parsed));
+				}
+			};
+		if (fieldType.isEnum())
+			return createEnumBinding(fieldType, setter);
+
+		// Unsupported type
+		return null;
+	}
+
+	private static FieldBinding createEnumBinding(final Class<?> fieldType,
+			final MethodHandle setter) {
+		final Map<String, Object> constants = new HashMap<String, Object>();
+		for (final Object constant : fieldType.getEnumConstants())
+			constants.put(((Enum<?>) constant).name(), constant);
+		final MethodHandle objectSetter = setter.asType(MethodType.methodType(
+				void.class, Object.class, Object.class));
+		return new FieldBinding(setter) {
+			@Override
+			void bind(final Object target, final String value)
+					throws Throwable {
+				final Object constant = constants.get(value);
+				if (constant != null)
+					objectSetter.invokeExact(target, constant);
+			}
+		};
+	}
+}
@@ -0,0 +1,202 @@
+package org.feldspaten.hyperion.server;
+
+/**
+ * Parsers for request parameters, that return a default value instead of
+ * throwing an exception on invalid input. Invalid input is common for request
+ * parameters, and filling in a stack trace for every invalid value is expensive
+ * 
+ */
+public final class ParameterParser {
+
+	/**
+	 * These Strings are accepted as TRUE values when matching to a boolean
+	 */
+	private static final String[] TRUE_VALUES = new String[] { "1", "true",
+			"on", "yes" };
+	/**
+	 * These Strings are accepted as FALSE values when matching to a boolean
+	 */
+	private static final String[] FALSE_VALUES = new String[] { "0", "false",
+			"off", "no" };
+
+	private ParameterParser() {
+	}
+
+	/**
+	 * Parse a decimal integer, with the same syntax as
+	 * {@link Integer#parseInt(String)}
+	 * 
+	 * @param value
+	 *            to be parsed, may be null
+	 * @param defaultValue
+	 *            Returned if the value is null or invalid
+	 * @return parsed value or the default value
+	 */
+	public static int parseInt(final String value, final int defaultValue) {
+		return (int) parseInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE,
+				defaultValue);
+	}
+
+	/**
+	 * Parse a decimal long, with the same syntax as
+	 * {@link Long#parseLong(String)}
+	 * 
+	 * @param value
+	 *            to be parsed, may be null
+	 * @param defaultValue
+	 *            Returned if the value is null or invalid
+	 * @return parsed value or the default value
+	 */
+	public static long parseLong(final String value, final long defaultValue) {
+		return parseInteger(value, Long.MIN_VALUE, Long.MAX_VALUE, defaultValue);
+	}
+
+	/**
+	 * Parse a double, with the same syntax as
+	 * {@link Double#parseDouble(String)}. Plain decimal numbers are validated
+	 * before parsing, so that invalid input doesn't throw internally
+	 * 
+	 * @param value
+	 *            to be parsed, may be null
+	 * @param defaultValue
+	 *            Returned if the value is null or invalid
+	 * @return parsed value or the default value
+	 */
+	public static double parseDouble(final String value,
+			final double defaultValue) {
+		if (value == null || value.isEmpty())
+			return defaultValue;
+		if (isPlainDecimal(value))
+			return Double.parseDouble(value);
+		if (!mayBeSpecialDouble(value))
+			return defaultValue;
+		// Hexadecimal, NaN, Infinity, type suffixes or whitespace
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Parse a boolean. Accepted values are 1, true, on, yes and 0, false, off,
+	 * no, ignoring case
+	 * 
+	 * @param value
+	 *            to be parsed, may be null
+	 * @param defaultValue
+	 *            Returned if the value is null or invalid
+	 * @return parsed value or the default value
+	 */
+	public static boolean parseBoolean(final String value,
+			final boolean defaultValue) {
+		if (value == null)
+			return defaultValue;
+		for (final String check : TRUE_VALUES)
+			if (value.equalsIgnoreCase(check))
+				return true;
+		for (final String check : FALSE_VALUES)
+			if (value.equalsIgnoreCase(check))
+				return false;
+		return defaultValue;
+	}
+
+	/**
+	 * Parse a decimal number in the given range. The number is accumulated
+	 * negatively, so that the minimum value can be represented
+	 */
+	private static long parseInteger(final String value, final long min,
+			final long max, final long defaultValue) {
+		if (value == null)
+			return defaultValue;
+		final int length = value.length();
+		if (length == 0)
+			return defaultValue;
+
+		int i = 0;
+		boolean negative = false;
+		final char first = value.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (length == 1)
+				return defaultValue;
+			i++;
+		}
+		final long limit = negative ? min : -max;
+		final long multiplyLimit = limit / 10L;
+		long result = 0L;
+		for (; i < length; i++) {
+			final int digit = Character.digit(value.charAt(i), 10);
+			if (digit < 0 || result < multiplyLimit)
+				return defaultValue;
+			result *= 10L;
+			if (result < limit + digit)
+				return defaultValue;
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/**
+	 * @return true if the value is a plain decimal number like -12.5e3
+	 */
+	private static boolean isPlainDecimal(final String value) {
+		final int length = value.length();
+		int i = 0;
+		if (value.charAt(0) == '-' || value.charAt(0) == '+')
+			i++;
+		int digits = 0;
+		while (i < length && isDigit(value.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < length && value.charAt(i) == '.') {
+			i++;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0)
+			return false;
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			if (i < length
+					&& (value.charAt(i) == '-' || value.charAt(i) == '+'))
+				i++;
+			if (i == length)
+				return false;
+			while (i < length && isDigit(value.charAt(i)))
+				i++;
+		}
+		return i == length;
+	}
+
+	/**
+	 * @return true if the value contains characters that are only allowed in
+	 *         the less common forms accepted by
+	 *         {@link Double#parseDouble(String)}
+	 */
+	private static boolean mayBeSpecialDouble(final String value) {
+		if (value.charAt(0) <= ' ' || value.charAt(value.length() - 1) <= ' ')
+			return true;
+		for (int i = 0; i < value.length(); i++) {
+			switch (value.charAt(i)) {
+			case 'N':
+			case 'I':
+			case 'x':
+			case 'X':
+			case 'd':
+			case 'D':
+			case 'f':
+			case 'F':
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isDigit(final char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+}
@@ -0,0 +1,328 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * {@link SessionStore} that replicates session create, update and expire
+ * events to a configured list of peer nodes, so that every node can take over
+ * the sessions of a failed node without sticky routing or a shared database.
+ * 
+ * Sessions are kept in a local {@link SessionStore}. Events are sent in
+ * batches over persistent TCP connections. Requests that only changed the
+ * activity of a session are sent as small touch events, and only if the last
+ * replicated activity is older than the activity resolution.
+ * 
+ * Connections are only accepted from the addresses of the configured peers
+ * and every frame is authenticated with a secret shared by all nodes. The
+ * replication is not encrypted, the nodes should still be in a private
+ * network.
+ * 
+ * Note: Received sessions are never deserialized with Java serialization.
+ * Sessions with a {@link User} subclass or object attributes are rejected by
+ * the peers, use plain users and typed attributes for replicated sessions
+ * 
+ */
+public class ReplicatedSessionStore implements SessionStore, Closeable {
+
+	/** Default resolution in milliseconds of replicated activity updates */
+	public static final long DEFAULT_ACTIVITY_RESOLUTION = 30L * 1000L;
+
+	/** Last replicated state of a session */
+	private static class Replicated {
+		int modCount;
+		long activity;
+
+		Replicated(final Session session) {
+			this.modCount = session.getModificationCount();
+			this.activity = session.getLastActivity();
+		}
+	}
+
+	/** Local sessions */
+	private final SessionStore local;
+	/** Network part */
+	private final SessionReplicator replicator;
+	/** Last replicated state, key is the session ID */
+	private final HashMap<String, Replicated> replicated = new HashMap<String, Replicated>();
+	/** Forgets the state of sessions the local store evicted */
+	private final SessionListener evictionListener = new SessionListener() {
+		@Override
+		public void sessionCreated(final Session session) {
+		}
+
+		@Override
+		public void sessionDestroyed(final String sid, final boolean expired) {
+			synchronized (replicated) {
+				replicated.remove(sid);
+			}
+		}
+	};
+
+	/** Resolution in milliseconds of replicated activity updates */
+	private volatile long activityResolution = DEFAULT_ACTIVITY_RESOLUTION;
+
+	/**
+	 * Create new replicated store, that keeps the sessions in a
+	 * {@link MemorySessionStore}
+	 * 
+	 * @param bindAddress
+	 *            Address to listen for connections from the peers, e.g. the
+	 *            address of the private interface
+	 * @param peers
+	 *            Addresses of the peer nodes
+	 * @param secret
+	 *            Secret shared by all nodes, at least 16 bytes
+	 */
+	public ReplicatedSessionStore(final InetSocketAddress bindAddress,
+			final List<InetSocketAddress> peers, final byte[] secret) {
+		this(new MemorySessionStore(), bindAddress, peers, secret);
+	}
+
+	/**
+	 * Create new replicated store
+	 * 
+	 * @param local
+	 *            Store that keeps the sessions on this node
+	 * @param bindAddress
+	 *            Address to listen for connections from the peers, e.g. the
+	 *            address of the private interface
+	 * @param peers
+	 *            Addresses of the peer nodes
+	 * @param secret
+	 *            Secret shared by all nodes, at least 16 bytes
+	 */
+	public ReplicatedSessionStore(final SessionStore local,
+			final InetSocketAddress bindAddress,
+			final List<InetSocketAddress> peers, final byte[] secret) {
+		this.local = local;
+		this.replicator = new SessionReplicator(this, bindAddress, peers,
+				secret);
+	}
+
+	/**
+	 * Starts listening for peers and sending events
+	 * 
+	 * @throws IOException
+	 *             Thrown if the address cannot be bound
+	 */
+	public void start() throws IOException {
+		HttpSessionServlet.addSessionListener(evictionListener);
+		replicator.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		HttpSessionServlet.removeSessionListener(evictionListener);
+		replicator.close();
+	}
+
+	public long getActivityResolution() {
+		return activityResolution;
+	}
+
+	public void setActivityResolution(long activityResolution) {
+		this.activityResolution = activityResolution;
+	}
+
+	/**
+	 * @return number of events that have been dropped because the send queue
+	 *         was full
+	 */
+	public long getDroppedEvents() {
+		return replicator.getDroppedEvents();
+	}
+
+	/**
+	 * @return number of events sent to the peers
+	 */
+	public long getSentEvents() {
+		return replicator.getSentEvents();
+	}
+
+	/**
+	 * @return number of events received from the peers
+	 */
+	public long getReceivedEvents() {
+		return replicator.getReceivedEvents();
+	}
+
+	/**
+	 * @return number of received sessions that have been rejected, e.g.
+	 *         because they contained serialized objects
+	 */
+	public long getRejectedRecords() {
+		return replicator.getRejectedRecords();
+	}
+
+	@Override
+	public Session get(final String sid, final HttpSessionServlet parent) {
+		return local.get(sid, parent);
+	}
+
+	@Override
+	public Session putIfAbsent(final Session session) {
+		final Session existing = local.putIfAbsent(session);
+		if (existing != null)
+			return existing;
+		synchronized (replicated) {
+			replicated.put(session.getId(), new Replicated(session));
+		}
+		publishRecord(SessionReplicator.EVENT_CREATE, session);
+		return null;
+	}
+
+	@Override
+	public void put(final Session session) {
+		local.put(session);
+		synchronized (replicated) {
+			replicated.put(session.getId(), new Replicated(session));
+		}
+		publishRecord(SessionReplicator.EVENT_UPDATE, session);
+	}
+
+	@Override
+	public void update(final Session session) {
+		local.update(session);
+
+		final int modCount = session.getModificationCount();
+		final long activity = session.getLastActivity();
+		final byte event;
+		synchronized (replicated) {
+			Replicated state = replicated.get(session.getId());
+			if (state == null) {
+				state = new Replicated(session);
+				replicated.put(session.getId(), state);
+				event = SessionReplicator.EVENT_UPDATE;
+			} else if (state.modCount != modCount)
+				event = SessionReplicator.EVENT_UPDATE;
+			else if (activity - state.activity >= activityResolution)
+				event = SessionReplicator.EVENT_TOUCH;
+			else
+				return;
+			state.modCount = modCount;
+			state.activity = activity;
+		}
+
+		if (event == SessionReplicator.EVENT_TOUCH)
+			replicator.publish(event, session.getId(), null, activity);
+		else
+			publishRecord(event, session);
+	}
+
+	@Override
+	public boolean remove(final String sid) {
+		synchronized (replicated) {
+			replicated.remove(sid);
+		}
+		replicator.publish(SessionReplicator.EVENT_EXPIRE, sid, null, 0L);
+		return local.remove(sid);
+	}
+
+	@Override
+	public boolean contains(final String sid) {
+		return local.contains(sid);
+	}
+
+	@Override
+	public int size() {
+		return local.size();
+	}
+
+	/**
+	 * Removes all expired sessions. Expiry is not replicated, because every
+	 * node expires the sessions based on the replicated activity
+	 */
+	@Override
+	public List<String> removeExpired() {
+		final List<String> deadSessions = local.removeExpired();
+		synchronized (replicated) {
+			for (final String sid : deadSessions)
+				replicated.remove(sid);
+		}
+		return deadSessions;
+	}
+
+	@Override
+	public List<Session> getSessions(final HttpSessionServlet parent) {
+		return local.getSessions(parent);
+	}
+
+	/**
+	 * @return records of all local sessions, used to initialise new peers
+	 */
+	List<byte[]> snapshot() {
+		final List<Session> sessions = local.getSessions(null);
+		final List<byte[]> result = new ArrayList<byte[]>(sessions.size());
+		for (final Session session : sessions) {
+			try {
+				result.add(encode(session));
+			} catch (IOException e) {
+				// Skip unwritable session
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Apply a session that has been created or modified on a peer
+	 */
+	void applyRecord(final byte[] record) throws IOException {
+		final Session session = Session.readFrom(new DataInputStream(
+				new ByteArrayInputStream(record)), null, record.length, false);
+		synchronized (replicated) {
+			local.put(session);
+			replicated.put(session.getId(), new Replicated(session));
+		}
+	}
+
+	/**
+	 * Apply an activity update from a peer
+	 */
+	void applyActivity(final String sid, final long activity) {
+		final Session session = local.get(sid, null);
+		if (session == null)
+			return;
+		session.doActivity(activity);
+		synchronized (replicated) {
+			final Replicated state = replicated.get(sid);
+			if (state != null && activity > state.activity)
+				state.activity = activity;
+		}
+		local.update(session);
+	}
+
+	/**
+	 * Apply the removal of a session on a peer
+	 */
+	void applyExpire(final String sid) {
+		synchronized (replicated) {
+			replicated.remove(sid);
+		}
+		local.remove(sid);
+	}
+
+	private void publishRecord(final byte event, final Session session) {
+		try {
+			replicator.publish(event, session.getId(), encode(session), 0L);
+		} catch (IOException e) {
+			System.err.println("Cannot replicate session: " + e.getMessage());
+		}
+	}
+
+	private static byte[] encode(final Session session) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		final DataOutputStream out = new DataOutputStream(buffer);
+		session.writeTo(out);
+		out.close();
+		return buffer.toByteArray();
+	}
+}
@@ -0,0 +1,22 @@
+package org.feldspaten.hyperion.server;
+
+/**
+ * Listener for completed requests, registered by
+ * {@link HttpSessionServlet#addRequestListener(RequestListener)}
+ * 
+ */
+public interface RequestListener {
+
+	/**
+	 * Called once a request is completed, after the response has been written
+	 * and the session has been stored. Called on the request thread or, for
+	 * asynchronous requests, on the thread that completed the request
+	 * 
+	 * @param request
+	 *            Completed request
+	 * @param trace
+	 *            Timing breakdown of the request
+	 */
+	public void requestCompleted(final HttpSessionServlet.Request request,
+			final RequestTrace trace);
+}
@@ -0,0 +1,24 @@
+package org.feldspaten.hyperion.server;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field that is filled by the {@link ParameterBinder}. If a class has
+ * annotated fields, only those are bound. Otherwise all non-static,
+ * non-final and non-transient fields are bound by their name
+ * 
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface RequestParameter {
+
+	/**
+	 * @return name of the request parameter. Defaults to the field name
+	 */
+	String value() default "";
+}
@@ -0,0 +1,443 @@
+package org.feldspaten.hyperion.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.feldspaten.hyperion.html.RenderProfile;
+import org.feldspaten.hyperion.persistence.QueryMonitor;
+
+/**
+ * Timing breakdown of a single request. The servlet measures the stages of
+ * {@link HttpSessionServlet#processRequest(int, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)}
+ * and the statements executed by {@link org.feldspaten.hyperion.persistence.MySQL}
+ * on the request thread.
+ * 
+ * Each trace has an ID, that is unique within the running server and
+ * identifies the request in logs
+ * 
+ */
+public class RequestTrace {
+
+	/** Stage of the request */
+	public enum Phase {
+		/** Session lookup */
+		SESSION,
+		/** Login check, if the request contains credentials */
+		LOGIN,
+		/** Waiting for the {@link AdmissionScheduler} */
+		ADMISSION,
+		/** checkRequest and page initialisation */
+		CHECK,
+		/** Servlet logic, i.e. the do* methods or the route */
+		HANDLER,
+		/** Printing the page or the error page */
+		RENDER,
+		/** Database statements, overlaps the other phases */
+		DATABASE
+	}
+
+	/** Executed statement */
+	public static class Query {
+		private final String sql;
+		private final long nanos;
+
+		Query(final String sql, final long nanos) {
+			this.sql = sql;
+			this.nanos = nanos;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/** Maximum number of recorded statements per request */
+	private static final int MAX_QUERIES = 100;
+	/** Maximum length of a statement in the report */
+	private static final int MAX_SQL_LENGTH = 256;
+	/** Number of component classes and IDs in the report */
+	private static final int REPORTED_COMPONENTS = 5;
+	/** Number of phases */
+	private static final int PHASES = Phase.values().length;
+
+	/** Prefix of the IDs, distinguishes server restarts */
+	private static final String ID_PREFIX = Integer.toHexString(
+			new SecureRandom().nextInt() & 0xffff | 0x10000).substring(1);
+	/** Counter of the IDs */
+	private static final AtomicLong ids = new AtomicLong();
+
+	/** Trace of the request processed by the current thread */
+	private static final ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+
+	static {
+		QueryMonitor.addListener(new QueryMonitor.Listener() {
+			@Override
+			public void queryExecuted(final String sql, final int rows,
+					final long nanos) {
+				final RequestTrace trace = current.get();
+				if (trace != null)
+					trace.addQuery(sql, nanos);
+			}
+		});
+		QueryMonitor.addStartListener(new QueryMonitor.StartListener() {
+			@Override
+			public void queryStarted() {
+				final RequestTrace trace = current.get();
+				if (trace != null && trace.allocations != null)
+					trace.markQuery();
+			}
+		});
+	}
+
+	private final String id;
+	/** System milliseconds of the start */
+	private final long startTime;
+	/** System nanoseconds of the start */
+	private final long start;
+	/** Time per phase in nanoseconds */
+	private final long[] phases = new long[PHASES];
+	private Phase phase = null;
+	private long phaseStart = 0L;
+	/** Total time in nanoseconds, -1 while running */
+	private long total = -1L;
+
+	/** Allocated bytes per phase, null if the request is not sampled */
+	private final long[] allocations;
+	/** Thread that allocated the bytes of the current phase, -1 if none */
+	private long allocationThread = -1L;
+	/** Allocated bytes of that thread at the start of the phase */
+	private long allocationMark = 0L;
+	/** Allocated bytes of the current thread at the start of a statement */
+	private long queryMark = -1L;
+
+	private final List<Query> queries = new ArrayList<Query>(4);
+	private int queryCount = 0;
+	/** Number of rendered characters */
+	private long renderedChars = 0L;
+	/** Number of bytes of the response body */
+	private long responseBytes = 0L;
+	/** Profile of the rendered page, if sampled */
+	private RenderProfile renderProfile = null;
+
+	/* Request data, set on completion */
+	private String method = null;
+	private String uri = null;
+	private String sessionId = null;
+	private String user = null;
+	private int status = 0;
+
+	/**
+	 * @param sampleAllocations
+	 *            Record the allocated bytes per phase. Ignored if the runtime
+	 *            doesn't report allocations
+	 */
+	RequestTrace(final boolean sampleAllocations) {
+		this.id = ID_PREFIX + "-" + Long.toString(ids.incrementAndGet(), 36);
+		this.startTime = System.currentTimeMillis();
+		this.start = System.nanoTime();
+		if (sampleAllocations && ThreadAllocation.isSupported())
+			this.allocations = new long[PHASES];
+		else
+			this.allocations = null;
+	}
+
+	/**
+	 * @return trace of the request processed by the current thread or null,
+	 *         if none
+	 */
+	public static RequestTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Assign the trace to the current thread, so database statements are
+	 * recorded
+	 */
+	static void attach(final RequestTrace trace) {
+		current.set(trace);
+		if (trace.allocations != null)
+			trace.markAllocations(false);
+	}
+
+	static void detach() {
+		final RequestTrace trace = current.get();
+		current.remove();
+		if (trace != null && trace.allocations != null)
+			trace.markAllocations(true);
+	}
+
+	/**
+	 * Enter the given phase, ending the current phase
+	 */
+	synchronized void enter(final Phase phase) {
+		final long now = System.nanoTime();
+		if (this.phase != null)
+			phases[this.phase.ordinal()] += now - phaseStart;
+		if (allocations != null)
+			markAllocations(true);
+		this.phase = phase;
+		this.phaseStart = now;
+	}
+
+	/**
+	 * Set the allocation mark to the current thread. Allocations are only
+	 * credited if the mark was set on the same thread, so the allocations of
+	 * a phase that moves to another thread are partly lost
+	 * 
+	 * @param credit
+	 *            Credit the bytes allocated since the mark to the current
+	 *            phase
+	 */
+	private synchronized void markAllocations(final boolean credit) {
+		final long thread = Thread.currentThread().getId();
+		final long bytes = ThreadAllocation.current();
+		if (credit && phase != null && thread == allocationThread
+				&& bytes >= allocationMark)
+			allocations[phase.ordinal()] += bytes - allocationMark;
+		allocationThread = thread;
+		allocationMark = bytes;
+	}
+
+	private synchronized void markQuery() {
+		queryMark = ThreadAllocation.current();
+	}
+
+	synchronized void addRenderedChars(final long count) {
+		renderedChars += count;
+	}
+
+	synchronized void addResponseBytes(final long count) {
+		responseBytes += count;
+	}
+
+	synchronized void setRenderProfile(final RenderProfile profile) {
+		this.renderProfile = profile;
+	}
+
+	synchronized void addQuery(final String sql, final long nanos) {
+		phases[Phase.DATABASE.ordinal()] += nanos;
+		if (allocations != null && queryMark >= 0L) {
+			// Overlaps the allocations of the current phase, like the time
+			final long bytes = ThreadAllocation.current();
+			if (bytes >= queryMark)
+				allocations[Phase.DATABASE.ordinal()] += bytes - queryMark;
+			queryMark = -1L;
+		}
+		queryCount++;
+		if (queries.size() < MAX_QUERIES)
+			queries.add(new Query(sql, nanos));
+	}
+
+	/**
+	 * End the trace
+	 */
+	synchronized void finish(final String method, final String uri,
+			final Session session, final int status) {
+		if (total >= 0L)
+			return;
+		enter(null);
+		this.total = System.nanoTime() - start;
+		this.method = method;
+		this.uri = uri;
+		this.status = status;
+		if (session != null) {
+			final String sid = session.getId();
+			// Don't expose the whole session ID in logs
+			if (sid != null)
+				this.sessionId = sid.length() > 8 ? sid.substring(0, 8) : sid;
+			if (session.isLoggedIn() && session.getUser() != null)
+				this.user = session.getUser().getUsername();
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return System milliseconds of the start of the request
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return time spent in the given phase in nanoseconds
+	 */
+	public synchronized long getNanos(final Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	/**
+	 * @return total time of the request in nanoseconds, or the elapsed time
+	 *         if still running
+	 */
+	public synchronized long getTotalNanos() {
+		if (total < 0L)
+			return System.nanoTime() - start;
+		return total;
+	}
+
+	/**
+	 * @return true if the allocated bytes of this request are recorded
+	 */
+	public boolean isAllocationSampled() {
+		return allocations != null;
+	}
+
+	/**
+	 * @return bytes allocated in the given phase, or -1 if the request is not
+	 *         sampled
+	 */
+	public synchronized long getAllocatedBytes(final Phase phase) {
+		if (allocations == null)
+			return -1L;
+		return allocations[phase.ordinal()];
+	}
+
+	/**
+	 * @return bytes allocated by the whole request, or -1 if the request is
+	 *         not sampled
+	 */
+	public synchronized long getTotalAllocatedBytes() {
+		if (allocations == null)
+			return -1L;
+		long total = 0L;
+		for (final Phase phase : Phase.values())
+			if (phase != Phase.DATABASE)
+				total += allocations[phase.ordinal()];
+		return total;
+	}
+
+	/**
+	 * @return number of characters of the rendered page
+	 */
+	public synchronized long getRenderedChars() {
+		return renderedChars;
+	}
+
+	/**
+	 * @return number of bytes of the response body written by the servlet,
+	 *         known once the request has completed
+	 */
+	public synchronized long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * @return profile of the rendered page or null, if the page has not been
+	 *         profiled
+	 */
+	public synchronized RenderProfile getRenderProfile() {
+		return renderProfile;
+	}
+
+	/**
+	 * @return number of executed database statements
+	 */
+	public synchronized int getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return recorded database statements, at most the first 100. The
+	 *         statements contain their literal values, use
+	 *         {@link QueryMonitor#shape(String, int)} before logging them
+	 */
+	public synchronized List<Query> getQueries() {
+		return new ArrayList<Query>(queries);
+	}
+
+	public synchronized String getMethod() {
+		return method;
+	}
+
+	public synchronized String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return first characters of the session ID or null
+	 */
+	public synchronized String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * @return name of the logged-in user or null
+	 */
+	public synchronized String getUser() {
+		return user;
+	}
+
+	/**
+	 * @return HTTP status of the response
+	 */
+	public synchronized int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return multi-line report of the breakdown and the statements
+	 */
+	public synchronized String format() {
+		final StringBuilder buffer = new StringBuilder(256);
+		buffer.append("Request ").append(id).append(": ").append(method)
+				.append(' ').append(uri).append(' ')
+				.append(millis(getTotalNanos())).append(" ms (status ")
+				.append(status);
+		if (sessionId != null)
+			buffer.append(", session ").append(sessionId);
+		if (user != null)
+			buffer.append(", user ").append(user);
+		buffer.append(")\n ");
+		for (final Phase phase : Phase.values()) {
+			buffer.append(' ').append(phase.name().toLowerCase(Locale.ENGLISH))
+					.append(' ').append(millis(phases[phase.ordinal()]))
+					.append(" ms");
+			if (phase == Phase.DATABASE)
+				buffer.append(" (").append(queryCount).append(" statements)");
+			else
+				buffer.append(',');
+		}
+		if (allocations != null)
+			buffer.append("\n  allocated ")
+					.append(kib(getTotalAllocatedBytes()))
+					.append(" KiB (render ")
+					.append(kib(allocations[Phase.RENDER.ordinal()]))
+					.append(" KiB, database ")
+					.append(kib(allocations[Phase.DATABASE.ordinal()]))
+					.append(" KiB)");
+		if (renderProfile != null)
+			buffer.append("\n  ").append(
+					renderProfile.format(REPORTED_COMPONENTS));
+		// Only the shape, statements contain the values of the request
+		for (final Query query : queries)
+			buffer.append("\n  ").append(millis(query.nanos)).append(" ms: ")
+					.append(QueryMonitor.shape(query.sql, MAX_SQL_LENGTH));
+		if (queryCount > queries.size())
+			buffer.append("\n  ... ").append(queryCount - queries.size())
+					.append(" more statements");
+		return buffer.toString();
+	}
+
+	private static String millis(final long nanos) {
+		return String.format(Locale.ENGLISH, "%.1f", nanos / 1000000.0);
+	}
+
+	private static String kib(final long bytes) {
+		return String.format(Locale.ENGLISH, "%.1f", bytes / 1024.0);
+	}
+
+	@Override
+	public String toString() {
+		return "RequestTrace " + id;
+	}
+}
@@ -0,0 +1,29 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.servlet.ServletException;
+
+import org.feldspaten.hyperion.html.Page;
+import org.feldspaten.hyperion.server.HttpSessionServlet.Request;
+
+/**
+ * Handler for a route of a {@link Router}
+ * 
+ */
+public interface RouteHandler {
+
+	/**
+	 * Handle a request that matched the route of this handler. Path variables
+	 * are available by {@link Request#getPathVariable(String)}
+	 * 
+	 * @param request
+	 *            {@link Request} instance containing all data
+	 * @param page
+	 *            Page to be printed after the handler returns
+	 */
+	public void handle(final Request request, final Page page)
+			throws ServletException, IOException, SQLException,
+			IllegalAccessException;
+}
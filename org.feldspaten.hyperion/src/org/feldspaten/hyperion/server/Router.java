@@ -0,0 +1,229 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dispatches requests to {@link RouteHandler}s by request method and path.
+ * 
+ * Routes are patterns like <code>/users/{id}/orders</code>. Segments in braces
+ * are variables that match any single segment. The routes are kept in a trie
+ * of path segments, so the cost of matching depends on the length of the path
+ * and not on the number of routes. Literal segments take precedence over
+ * variables.
+ * 
+ * Routes must be added before the router serves requests, usually in
+ * {@link javax.servlet.GenericServlet#init()}. The router is assigned by
+ * {@link HttpSessionServlet#setRouter(Router)}
+ * 
+ */
+public class Router {
+
+	/** Number of supported request methods */
+	private static final int METHODS = 7;
+
+	/** Node of the trie, represents a path segment */
+	private static class Node {
+		/** Children with a literal segment */
+		final Map<String, Node> children = new HashMap<String, Node>();
+		/** Child with a variable segment or null */
+		Node variable = null;
+		/** Name of the variable, if this is a variable node */
+		String variableName = null;
+		/** Handlers by request method, null if none */
+		RouteHandler[] handlers = null;
+	}
+
+	/** Result of a successful match */
+	public static class Match {
+		private final RouteHandler handler;
+		private final Map<String, String> variables;
+
+		Match(final RouteHandler handler, final Map<String, String> variables) {
+			this.handler = handler;
+			this.variables = variables;
+		}
+
+		public RouteHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @return path variables of the matched route
+		 */
+		public Map<String, String> getVariables() {
+			return variables;
+		}
+	}
+
+	/** Root of the trie */
+	private final Node root = new Node();
+	/** Number of routes */
+	private int size = 0;
+
+	/**
+	 * Add a route
+	 * 
+	 * @param method
+	 *            Request method, one of the REQUEST_* constants of
+	 *            {@link HttpSessionServlet}
+	 * @param pattern
+	 *            Path pattern like <code>/users/{id}/orders</code>
+	 * @param handler
+	 *            Handler of the route
+	 * @return this router
+	 * @throws IllegalArgumentException
+	 *             Thrown if the route already exists or the pattern is invalid
+	 */
+	public synchronized Router add(final int method, final String pattern,
+			final RouteHandler handler) {
+		if (method < 0 || method >= METHODS)
+			throw new IllegalArgumentException("Illegal request method: "
+					+ method);
+		if (pattern == null || handler == null)
+			throw new IllegalArgumentException("Pattern and handler required");
+
+		Node node = root;
+		for (final String segment : split(pattern)) {
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				final String name = segment.substring(1, segment.length() - 1);
+				if (name.isEmpty())
+					throw new IllegalArgumentException(
+							"Empty variable name in " + pattern);
+				if (node.variable == null) {
+					node.variable = new Node();
+					node.variable.variableName = name;
+				} else if (!node.variable.variableName.equals(name))
+					throw new IllegalArgumentException("Variable {" + name
+							+ "} conflicts with {"
+							+ node.variable.variableName + "} in " + pattern);
+				node = node.variable;
+			} else {
+				Node child = node.children.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+		}
+
+		if (node.handlers == null)
+			node.handlers = new RouteHandler[METHODS];
+		if (node.handlers[method] != null)
+			throw new IllegalArgumentException("Route already exists: "
+					+ pattern);
+		node.handlers[method] = handler;
+		size++;
+		return this;
+	}
+
+	public Router get(final String pattern, final RouteHandler handler) {
+		return add(HttpSessionServlet.REQUEST_GET, pattern, handler);
+	}
+
+	public Router post(final String pattern, final RouteHandler handler) {
+		return add(HttpSessionServlet.REQUEST_POST, pattern, handler);
+	}
+
+	public Router put(final String pattern, final RouteHandler handler) {
+		return add(HttpSessionServlet.REQUEST_PUT, pattern, handler);
+	}
+
+	public Router delete(final String pattern, final RouteHandler handler) {
+		return add(HttpSessionServlet.REQUEST_DELETE, pattern, handler);
+	}
+
+	/**
+	 * @return number of routes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Find the route for the given request
+	 * 
+	 * @param method
+	 *            Request method, one of the REQUEST_* constants of
+	 *            {@link HttpSessionServlet}
+	 * @param path
+	 *            Path of the request within the application
+	 * @return match or null, if no route matches
+	 */
+	public Match match(final int method, final String path) {
+		if (method < 0 || method >= METHODS || path == null)
+			return null;
+		final List<String> segments = split(path);
+		final List<String> bindings = new ArrayList<String>(4);
+		final Node node = match(root, segments, 0, method, bindings);
+		if (node == null)
+			return null;
+
+		final Map<String, String> variables;
+		if (bindings.isEmpty())
+			variables = Collections.emptyMap();
+		else {
+			variables = new HashMap<String, String>(bindings.size());
+			for (int i = 0; i < bindings.size(); i += 2)
+				variables.put(bindings.get(i), bindings.get(i + 1));
+		}
+		return new Match(node.handlers[method], variables);
+	}
+
+	/**
+	 * Match the remaining segments, starting at the given node. Literal
+	 * children are tried first, the variable child if they don't match
+	 * 
+	 * @param bindings
+	 *            Variable names and values of the current path
+	 * @return matched node or null
+	 */
+	private static Node match(final Node node, final List<String> segments,
+			final int index, final int method, final List<String> bindings) {
+		if (index == segments.size()) {
+			if (node.handlers != null && node.handlers[method] != null)
+				return node;
+			return null;
+		}
+		final String segment = segments.get(index);
+		final Node child = node.children.get(segment);
+		if (child != null) {
+			final Node result = match(child, segments, index + 1, method,
+					bindings);
+			if (result != null)
+				return result;
+		}
+		if (node.variable != null) {
+			bindings.add(node.variable.variableName);
+			bindings.add(segment);
+			final Node result = match(node.variable, segments, index + 1,
+					method, bindings);
+			if (result != null)
+				return result;
+			bindings.remove(bindings.size() - 1);
+			bindings.remove(bindings.size() - 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Split a path into its segments, ignoring empty segments
+	 */
+	private static List<String> split(final String path) {
+		final List<String> segments = new ArrayList<String>(8);
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			if (end > start)
+				segments.add(path.substring(start, end));
+			start = end + 1;
+		}
+		return segments;
+	}
+}
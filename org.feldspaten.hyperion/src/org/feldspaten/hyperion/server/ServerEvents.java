@@ -0,0 +1,100 @@
+package org.feldspaten.hyperion.server;
+
+import org.feldspaten.hyperion.metrics.FlightRecorderEvent;
+import org.feldspaten.hyperion.persistence.QueryMonitor;
+
+/**
+ * Flight recorder events of the servlets, the sessions and the database
+ * statements. Registered when the first servlet is created, if the runtime
+ * has a flight recorder
+ * 
+ */
+final class ServerEvents {
+
+	/** Maximum length of the statement shape in query events */
+	private static final int MAX_SQL_LENGTH = 256;
+
+	private static boolean installed = false;
+
+	private ServerEvents() {
+	}
+
+	/**
+	 * Register the events and the listeners, if not done yet
+	 */
+	static synchronized void install() {
+		if (installed)
+			return;
+		installed = true;
+
+		final FlightRecorderEvent request = new FlightRecorderEvent(
+				"org.feldspaten.hyperion.Request", "HTTP Request",
+				"Request processed by a servlet")
+				.addField(String.class, "servlet", "Servlet")
+				.addField(String.class, "method", "Method")
+				.addField(int.class, "status", "Status")
+				.addTimespan("elapsed", "Elapsed");
+		final FlightRecorderEvent render = new FlightRecorderEvent(
+				"org.feldspaten.hyperion.Render", "Page Render",
+				"Page printed to the response")
+				.addField(String.class, "servlet", "Servlet")
+				.addField(long.class, "chars", "Characters")
+				.addTimespan("elapsed", "Elapsed");
+		final FlightRecorderEvent query = new FlightRecorderEvent(
+				"org.feldspaten.hyperion.Query", "SQL Statement",
+				"Statement executed by MySQL, with literals replaced by ?")
+				.addField(String.class, "sql", "Statement")
+				.addField(int.class, "rows", "Affected Rows")
+				.addTimespan("elapsed", "Elapsed");
+		final FlightRecorderEvent sessionCreated = new FlightRecorderEvent(
+				"org.feldspaten.hyperion.SessionCreated", "Session Created",
+				"New session stored");
+		final FlightRecorderEvent sessionDestroyed = new FlightRecorderEvent(
+				"org.feldspaten.hyperion.SessionDestroyed",
+				"Session Destroyed", "Session removed from the store")
+				.addField(boolean.class, "expired", "Expired");
+		if (!request.register())
+			return;
+		render.register();
+		query.register();
+		sessionCreated.register();
+		sessionDestroyed.register();
+
+		HttpSessionServlet.addRequestListener(new RequestListener() {
+			@Override
+			public void requestCompleted(
+					final HttpSessionServlet.Request req,
+					final RequestTrace trace) {
+				if (!request.isEnabled() && !render.isEnabled())
+					return;
+				final String servlet = req.getServlet().getClass().getName();
+				request.commit(servlet, trace.getMethod(),
+						trace.getStatus(), trace.getTotalNanos());
+				if (trace.getRenderedChars() > 0L)
+					render.commit(servlet, trace.getRenderedChars(),
+							trace.getNanos(RequestTrace.Phase.RENDER));
+			}
+		});
+		QueryMonitor.addListener(new QueryMonitor.Listener() {
+			@Override
+			public void queryExecuted(final String sql, final int rows,
+					final long nanos) {
+				if (query.isEnabled())
+					query.commit(QueryMonitor.shape(sql, MAX_SQL_LENGTH),
+							rows, nanos);
+			}
+		});
+		HttpSessionServlet.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(final Session session) {
+				sessionCreated.commit();
+			}
+
+			@Override
+			public void sessionDestroyed(final String sid,
+					final boolean expired) {
+				sessionDestroyed.commit(expired);
+			}
+		});
+	}
+}
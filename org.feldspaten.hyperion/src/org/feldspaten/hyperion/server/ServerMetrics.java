@@ -0,0 +1,231 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.feldspaten.hyperion.html.RenderProfile;
+import org.feldspaten.hyperion.metrics.Counter;
+import org.feldspaten.hyperion.metrics.Gauge;
+import org.feldspaten.hyperion.metrics.Histogram;
+import org.feldspaten.hyperion.metrics.MetricsRegistry;
+import org.feldspaten.hyperion.persistence.QueryMonitor;
+
+/**
+ * Metrics of the servlets, the sessions and the database statements. Installed
+ * into the default {@link MetricsRegistry} when the first servlet is created
+ * 
+ */
+public final class ServerMetrics {
+
+	/** Scale from nanoseconds to seconds */
+	private static final double SECONDS = 1e-9;
+
+	/** Phases with allocation metrics, total first */
+	private static final RequestTrace.Phase[] ALLOCATION_PHASES = new RequestTrace.Phase[] {
+			null, RequestTrace.Phase.HANDLER, RequestTrace.Phase.RENDER,
+			RequestTrace.Phase.DATABASE };
+
+	/** Metrics of a servlet and request method */
+	private static class RequestMetrics {
+		final MetricsRegistry registry;
+		final String servlet;
+		final String method;
+		final Counter requests;
+		final Counter errors;
+		final Histogram latency;
+		/** Allocations per phase, created with the first sampled request */
+		private Histogram[] allocations = null;
+
+		RequestMetrics(final MetricsRegistry registry, final String servlet,
+				final String method) {
+			this.registry = registry;
+			this.servlet = servlet;
+			this.method = method;
+			requests = registry.counter("hyperion_requests_total",
+					"Completed requests", "servlet", servlet, "method", method);
+			errors = registry.counter("hyperion_request_errors_total",
+					"Requests answered with a 5xx status", "servlet", servlet,
+					"method", method);
+			latency = registry.histogram("hyperion_request_duration_seconds",
+					"Request processing time", SECONDS, "s", "servlet",
+					servlet, "method", method);
+		}
+
+		synchronized Histogram[] getAllocations() {
+			if (allocations == null) {
+				allocations = new Histogram[ALLOCATION_PHASES.length];
+				for (int i = 0; i < allocations.length; i++) {
+					final RequestTrace.Phase phase = ALLOCATION_PHASES[i];
+					allocations[i] = registry.histogram(
+							"hyperion_request_allocated_bytes",
+							"Bytes allocated by sampled requests", 1.0, "B",
+							"servlet", servlet, "method", method, "phase",
+							phase == null ? "total" : phase.name()
+									.toLowerCase(Locale.ENGLISH));
+				}
+			}
+			return allocations;
+		}
+	}
+
+	/** Statement types of the SQL metrics */
+	private static final String[] STATEMENTS = new String[] { "select",
+			"insert", "update", "delete", "other" };
+
+	private static boolean installed = false;
+
+	private ServerMetrics() {
+	}
+
+	/**
+	 * Install the metrics into the default registry, if not done yet
+	 */
+	static synchronized void install() {
+		if (installed)
+			return;
+		installed = true;
+		install(MetricsRegistry.getDefault());
+	}
+
+	private static void install(final MetricsRegistry registry) {
+		// Requests and rendering
+		final ConcurrentHashMap<String, RequestMetrics> requests = new ConcurrentHashMap<String, RequestMetrics>();
+		final Histogram renderTime = registry.histogram(
+				"hyperion_render_duration_seconds",
+				"Time to render pages, including error pages", SECONDS, "s");
+		final Histogram renderSize = registry.histogram(
+				"hyperion_render_size_chars",
+				"Size of rendered pages in characters", 1.0, "chars");
+		HttpSessionServlet.addRequestListener(new RequestListener() {
+			@Override
+			public void requestCompleted(
+					final HttpSessionServlet.Request request,
+					final RequestTrace trace) {
+				final Class<?> type = request.getServlet().getClass();
+				final String servlet = type.getSimpleName().isEmpty() ? type
+						.getName() : type.getSimpleName();
+				final String method = trace.getMethod();
+				final String key = servlet + ' ' + method;
+				RequestMetrics metrics = requests.get(key);
+				if (metrics == null) {
+					metrics = new RequestMetrics(registry, servlet, method);
+					final RequestMetrics existing = requests.putIfAbsent(key,
+							metrics);
+					if (existing != null)
+						metrics = existing;
+				}
+				metrics.requests.inc();
+				metrics.latency.record(trace.getTotalNanos());
+				if (trace.getStatus() >= 500)
+					metrics.errors.inc();
+				if (trace.isAllocationSampled()) {
+					final Histogram[] allocations = metrics.getAllocations();
+					for (int i = 0; i < allocations.length; i++) {
+						final RequestTrace.Phase phase = ALLOCATION_PHASES[i];
+						allocations[i].record(phase == null ? trace
+								.getTotalAllocatedBytes() : trace
+								.getAllocatedBytes(phase));
+					}
+				}
+
+				final long rendered = trace.getRenderedChars();
+				if (rendered > 0L) {
+					renderTime.record(trace
+							.getNanos(RequestTrace.Phase.RENDER));
+					renderSize.record(rendered);
+				}
+				final RenderProfile profile = trace.getRenderProfile();
+				if (profile != null)
+					record(registry, profile);
+			}
+		});
+
+		// Sessions. The gauge doesn't query the store, which might run a
+		// database query and a sweep for expired sessions on each scrape
+		registry.gauge("hyperion_sessions_active", "Sessions in the store",
+				new Gauge.Source() {
+					@Override
+					public long get() {
+						return HttpSessionServlet.getStoredSessionCount();
+					}
+				});
+		final Counter created = registry.counter(
+				"hyperion_sessions_created_total", "Created sessions");
+		final Counter expired = registry.counter(
+				"hyperion_sessions_expired_total", "Expired sessions");
+		final Counter removed = registry.counter(
+				"hyperion_sessions_removed_total",
+				"Sessions removed before expiry");
+		HttpSessionServlet.addSessionListener(new SessionListener() {
+			@Override
+			public void sessionCreated(final Session session) {
+				created.inc();
+			}
+
+			@Override
+			public void sessionDestroyed(final String sid,
+					final boolean isExpired) {
+				if (isExpired)
+					expired.inc();
+				else
+					removed.inc();
+			}
+		});
+
+		// Database
+		final Counter[] statements = new Counter[STATEMENTS.length];
+		for (int i = 0; i < STATEMENTS.length; i++)
+			statements[i] = registry.counter("hyperion_sql_statements_total",
+					"Executed SQL statements", "statement", STATEMENTS[i]);
+		final Histogram sqlTime = registry.histogram(
+				"hyperion_sql_duration_seconds",
+				"Execution time of SQL statements", SECONDS, "s");
+		QueryMonitor.addListener(new QueryMonitor.Listener() {
+			@Override
+			public void queryExecuted(final String sql, final int rows,
+					final long nanos) {
+				statements[statementType(sql)].inc();
+				sqlTime.record(nanos);
+			}
+		});
+	}
+
+	/**
+	 * Aggregate the profile of a page per component class. Profiled pages are
+	 * sampled, so the metrics are only looked up for those
+	 */
+	private static void record(final MetricsRegistry registry,
+			final RenderProfile profile) {
+		for (final RenderProfile.Entry entry : profile.getClasses()) {
+			final String component = entry.getName();
+			registry.histogram("hyperion_render_component_seconds",
+					"Render time per component class of profiled pages, "
+							+ "without subcomponents", SECONDS, "s",
+					"component", component).record(entry.getSelfNanos());
+			registry.counter("hyperion_render_component_calls_total",
+					"Rendered components of profiled pages", "component",
+					component).add(entry.getCount());
+			registry.counter("hyperion_render_component_chars_total",
+					"Characters generated by the components of profiled "
+							+ "pages, including subcomponents", "component",
+					component).add(entry.getChars());
+		}
+	}
+
+	/**
+	 * @return index of the statement type in {@link #STATEMENTS}
+	 */
+	private static int statementType(final String sql) {
+		int start = 0;
+		while (start < sql.length() && !Character.isLetter(sql.charAt(start)))
+			start++;
+		if (sql.length() - start < 6)
+			return STATEMENTS.length - 1;
+		final String keyword = sql.substring(start, start + 6).toLowerCase(
+				Locale.ENGLISH);
+		for (int i = 0; i < STATEMENTS.length - 1; i++)
+			if (keyword.equals(STATEMENTS[i]))
+				return i;
+		return STATEMENTS.length - 1;
+	}
+}
@@ -1,26 +1,59 @@
 package org.feldspaten.hyperion.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 public class Session implements Closeable, Serializable {
 
 	/** Serialisation ID for writing to file */
 	private static final long serialVersionUID = 8173870806961293135L;
 
-	/** Delay for inactive sessions */
-	private static final long INACTIVE_DELAY = 10L * 60L * 1000L;
+	/** Default delay in milliseconds for inactive sessions */
+	public static final long DEFAULT_INACTIVE_DELAY = 10L * 60L * 1000L;
+
+	/** Delay in milliseconds for inactive sessions */
+	private static volatile long inactiveDelay = DEFAULT_INACTIVE_DELAY;
+
+	/** Version of the binary format written by {@link #writeTo(DataOutput)} */
+	private static final byte FORMAT_VERSION = 2;
+	/** Previous binary format, with string properties only */
+	private static final byte FORMAT_VERSION_PROPERTIES = 1;
+
+	/** Binary format: No user assigned */
+	private static final byte FORMAT_NO_USER = 0;
+	/** Binary format: Plain {@link User}, only the username is written */
+	private static final byte FORMAT_PLAIN_USER = 1;
+	/** Binary format: {@link User} subclass, written as serialized object */
+	private static final byte FORMAT_SERIALIZED_USER = 2;
+
+	/**
+	 * Maximum approximate size of the attributes of a single session in bytes,
+	 * 0 if unlimited
+	 */
+	private static volatile long maxAttributesSize = 0L;
 
 	private final HttpSessionServlet parent;
 
 	/** Remote address */
 	private String remoteAddress = "";
 
-	/** Session ID */
-	private final String sid;
+	/** Session ID. Only changes when a stateless session is promoted */
+	private volatile String sid;
+
+	/** If the session is only kept in a cookie, see {@link SessionTokenCodec} */
+	private transient boolean stateless = false;
+	/** Activity stored in the cookie of a stateless session */
+	private transient long tokenActivity = 0L;
 
 	/** If the session is expired */
 	private boolean expired = false;
@@ -36,8 +69,14 @@ public class Session implements Closeable, Serializable {
 	/** Last login (only accurate when logged in) */
 	private Date lastLogin = null;
 
-	/** Internal properties */
-	protected Map<String, String> properties = new HashMap<>();
+	/** Properties and typed attributes */
+	private final SessionAttributes attributes = new SessionAttributes();
+
+	/**
+	 * Modification counter. Incremented on each change except activity
+	 * updates, so that stores can detect sessions that need to be written
+	 */
+	private transient volatile int modCount = 0;
 
 	/**
 	 * Create new {@link Session} instance
@@ -58,7 +97,9 @@ public class Session implements Closeable, Serializable {
 	}
 
 	/**
-	 * Assign the remoteAddress of the owner client
+	 * Assign the remoteAddress of the owner client. Set on every request, so
+	 * it doesn't count as modification. Stores write it along with the next
+	 * modification
 	 */
 	protected void setRemoteAddress(String remoteAddress) {
 		this.remoteAddress = remoteAddress;
@@ -69,24 +110,157 @@ public class Session implements Closeable, Serializable {
 	}
 
 	public String getProperty(final String key, final String defaultValue) {
-		synchronized (properties) {
-			if (!properties.containsKey(key))
-				return defaultValue;
-			else {
-				final String value = properties.get(key);
-				if (value == null)
-					return defaultValue;
-				return value;
-			}
-		}
+		final String value = attributes.getString(key);
+		if (value == null)
+			return defaultValue;
+		return value;
 	}
 
+	/**
+	 * Set a string property. A null value removes the property
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown if the session would exceed
+	 *             {@link #getMaxAttributesSize()}
+	 */
 	public void setProperty(final String key, final String value) {
 		if (key == null || key.trim().isEmpty())
 			return;
-		synchronized (properties) {
-			properties.put(key, value);
-		}
+		attributes.putString(key, value);
+		modified();
+	}
+
+	public int getAttributeInteger(final String key, final int defaultValue) {
+		return (int) attributes.getLong(key, defaultValue);
+	}
+
+	public long getAttributeLong(final String key, final long defaultValue) {
+		return attributes.getLong(key, defaultValue);
+	}
+
+	public boolean getAttributeBoolean(final String key,
+			final boolean defaultValue) {
+		return attributes.getBoolean(key, defaultValue);
+	}
+
+	/**
+	 * @return byte array attribute or null, if not existing
+	 */
+	public byte[] getAttributeBytes(final String key) {
+		return attributes.getBytes(key);
+	}
+
+	/**
+	 * @return attribute of any type or null, if not existing. Primitive
+	 *         attributes are boxed
+	 */
+	public Object getAttribute(final String key) {
+		return attributes.getObject(key);
+	}
+
+	/**
+	 * @return names of all properties and attributes
+	 */
+	public List<String> getAttributeNames() {
+		return attributes.getNames();
+	}
+
+	public void setAttribute(final String key, final int value) {
+		if (key == null || key.trim().isEmpty())
+			return;
+		attributes.putInt(key, value);
+		modified();
+	}
+
+	public void setAttribute(final String key, final long value) {
+		if (key == null || key.trim().isEmpty())
+			return;
+		attributes.putLong(key, value);
+		modified();
+	}
+
+	public void setAttribute(final String key, final boolean value) {
+		if (key == null || key.trim().isEmpty())
+			return;
+		attributes.putBoolean(key, value);
+		modified();
+	}
+
+	/**
+	 * Set a byte array attribute. The array is stored without copying. A null
+	 * value removes the attribute
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown if the session would exceed
+	 *             {@link #getMaxAttributesSize()}
+	 */
+	public void setAttribute(final String key, final byte[] value) {
+		if (key == null || key.trim().isEmpty())
+			return;
+		attributes.putBytes(key, value);
+		modified();
+	}
+
+	/**
+	 * Set an object attribute, that is assumed to use
+	 * {@link SessionAttributes#DEFAULT_OBJECT_SIZE} bytes. Boxed primitives,
+	 * strings and byte arrays are stored with their own type. Objects that are
+	 * not {@link Serializable} are lost when the session is written by a
+	 * {@link SessionStore}. A null value removes the attribute
+	 * 
+	 * @throws IllegalArgumentException
+	 *             Thrown if the session would exceed
+	 *             {@link #getMaxAttributesSize()}
+	 */
+	public void setAttribute(final String key, final Object value) {
+		setAttribute(key, value, SessionAttributes.DEFAULT_OBJECT_SIZE);
+	}
+
+	/**
+	 * Set an object attribute
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @param value
+	 *            Value of the attribute. A null value removes the attribute
+	 * @param approximateSize
+	 *            Approximate size of the object in bytes
+	 * @throws IllegalArgumentException
+	 *             Thrown if the session would exceed
+	 *             {@link #getMaxAttributesSize()}
+	 */
+	public void setAttribute(final String key, final Object value,
+			final long approximateSize) {
+		if (key == null || key.trim().isEmpty())
+			return;
+		if (value instanceof String)
+			attributes.putString(key, (String) value);
+		else if (value instanceof Integer)
+			attributes.putInt(key, (Integer) value);
+		else if (value instanceof Long)
+			attributes.putLong(key, (Long) value);
+		else if (value instanceof Boolean)
+			attributes.putBoolean(key, (Boolean) value);
+		else if (value instanceof byte[])
+			attributes.putBytes(key, (byte[]) value);
+		else
+			attributes.putObject(key, value, approximateSize);
+		modified();
+	}
+
+	/**
+	 * Removes the given property or attribute
+	 */
+	public void removeAttribute(final String key) {
+		if (attributes.remove(key) != 0L)
+			modified();
+	}
+
+	/**
+	 * @return storage of the properties and attributes
+	 */
+	SessionAttributes getAttributes() {
+		return attributes;
 	}
 
 	/**
@@ -102,6 +276,7 @@ public class Session implements Closeable, Serializable {
 
 	public void setFailedLogins(int failedLogins) {
 		this.failedLogins = failedLogins;
+		modified();
 	}
 
 	public Date getLastLogin() {
@@ -110,25 +285,45 @@ public class Session implements Closeable, Serializable {
 
 	public void setLastLogin(Date lastLogin) {
 		this.lastLogin = lastLogin;
+		modified();
 	}
 
 	public String getId() {
 		return sid;
 	}
 
+	/**
+	 * @return servlet that created the session, may be null
+	 */
+	HttpSessionServlet getParent() {
+		return parent;
+	}
+
 	public void doActivity() {
 		lastActivity = System.currentTimeMillis();
 	}
 
+	/**
+	 * Apply an activity that happened on another node
+	 * 
+	 * @param timestamp
+	 *            System milliseconds of the activity
+	 */
+	void doActivity(final long timestamp) {
+		if (timestamp > lastActivity)
+			lastActivity = timestamp;
+	}
+
 	public boolean isExpired() {
 		if (expired)
 			return true;
-		expired = (System.currentTimeMillis()) > (lastActivity + INACTIVE_DELAY);
+		expired = isExpired(lastActivity);
 		return expired;
 	}
 
 	public void expire() {
 		expired = true;
+		modified();
 	}
 
 	public boolean isLoggedIn() {
@@ -150,6 +345,7 @@ public class Session implements Closeable, Serializable {
 	 */
 	public void setUser(final User user) {
 		this.user = user;
+		modified();
 	}
 
 	/**
@@ -160,12 +356,13 @@ public class Session implements Closeable, Serializable {
 	 */
 	public void setExpired(boolean expired) {
 		this.expired = expired;
+		modified();
 	}
 
 	@Override
 	public void close() {
 		expired = true;
-		parent.removeSession(this);
+		HttpSessionServlet.removeSession(this);
 	}
 
 	public void logout() {
@@ -177,4 +374,275 @@ public class Session implements Closeable, Serializable {
 			return "";
 		return user.getUsername();
 	}
+
+	/**
+	 * Estimates the heap memory used by this session. The estimation covers
+	 * the session object, its id, remote address and attributes, but not the
+	 * assigned {@link User}. The size of the attributes is tracked when they
+	 * are set, so this method is cheap
+	 * 
+	 * @return approximate size of the session in bytes
+	 */
+	public long getApproximateSize() {
+		// Object headers and fields
+		long size = 96L;
+		size += 40L + 2L * sid.length();
+		final String remoteAddress = this.remoteAddress;
+		if (remoteAddress != null)
+			size += 40L + 2L * remoteAddress.length();
+		return size + attributes.getApproximateSize();
+	}
+
+	/**
+	 * @return Maximum approximate size of the attributes of a single session
+	 *         in bytes, 0 if unlimited
+	 */
+	public static long getMaxAttributesSize() {
+		return maxAttributesSize;
+	}
+
+	/**
+	 * Set the maximum approximate size of the attributes of a single session.
+	 * Setting a property or attribute that exceeds the limit throws an
+	 * {@link IllegalArgumentException}. Existing sessions are not truncated
+	 * 
+	 * @param maxAttributesSize
+	 *            Size limit in bytes, 0 if unlimited
+	 */
+	public static void setMaxAttributesSize(long maxAttributesSize) {
+		Session.maxAttributesSize = maxAttributesSize;
+	}
+
+	/**
+	 * @return true if the session is not stored on the server, but only in a
+	 *         signed cookie
+	 */
+	public boolean isStateless() {
+		return stateless;
+	}
+
+	/**
+	 * Marks the session as stateless session
+	 * 
+	 * @param activity
+	 *            Activity stored in the cookie
+	 */
+	void markStateless(final long activity) {
+		this.stateless = true;
+		this.tokenActivity = activity;
+		this.lastActivity = activity;
+	}
+
+	/**
+	 * @return Activity stored in the cookie of a stateless session
+	 */
+	long getTokenActivity() {
+		return tokenActivity;
+	}
+
+	/**
+	 * Turns a stateless session into a session stored on the server
+	 * 
+	 * @param sid
+	 *            New session ID
+	 */
+	void promote(final String sid) {
+		this.sid = sid;
+		this.stateless = false;
+		modified();
+	}
+
+	/**
+	 * @return modification counter of the session. The counter changes on
+	 *         every modification except activity updates
+	 */
+	public int getModificationCount() {
+		return modCount;
+	}
+
+	/**
+	 * Marks the session as modified. Subclasses must call this method when
+	 * changing their own state
+	 */
+	protected void modified() {
+		modCount++;
+	}
+
+	/**
+	 * @return Delay in milliseconds after which inactive sessions expire
+	 */
+	public static long getInactiveDelay() {
+		return inactiveDelay;
+	}
+
+	/**
+	 * Set the delay after which inactive sessions expire. Applies to all
+	 * existing sessions on their next expiry check
+	 * 
+	 * @param delay
+	 *            Delay in milliseconds
+	 */
+	public static void setInactiveDelay(final long delay) {
+		if (delay <= 0L)
+			throw new IllegalArgumentException("Delay must be positive");
+		inactiveDelay = delay;
+	}
+
+	/**
+	 * @param lastActivity
+	 *            System milliseconds of the last activity of a session
+	 * @return true if a session with the given last activity is expired
+	 */
+	static boolean isExpired(final long lastActivity) {
+		return System.currentTimeMillis() > (lastActivity + inactiveDelay);
+	}
+
+	/**
+	 * Write the session in a compact binary format. The session can be
+	 * re-created using {@link #readFrom(DataInput, HttpSessionServlet)}
+	 * 
+	 * @param out
+	 *            Output to write to
+	 * @throws IOException
+	 *             Thrown if occurring while writing
+	 */
+	public void writeTo(final DataOutput out) throws IOException {
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, sid);
+		writeString(out, remoteAddress);
+		out.writeBoolean(expired);
+		out.writeLong(lastActivity);
+		out.writeInt(failedLogins);
+		out.writeLong(lastLogin == null ? -1L : lastLogin.getTime());
+
+		final User user = this.user;
+		if (user == null)
+			out.writeByte(FORMAT_NO_USER);
+		else if (user.getClass() == User.class) {
+			out.writeByte(FORMAT_PLAIN_USER);
+			writeString(out, user.getUsername());
+		} else {
+			out.writeByte(FORMAT_SERIALIZED_USER);
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			final ObjectOutputStream objOut = new ObjectOutputStream(buffer);
+			objOut.writeObject(user);
+			objOut.close();
+			out.writeInt(buffer.size());
+			out.write(buffer.toByteArray());
+		}
+
+		attributes.writeTo(out);
+	}
+
+	/**
+	 * Re-create a session that has been written by {@link #writeTo(DataOutput)}
+	 * 
+	 * @param in
+	 *            Input to read from
+	 * @param parent
+	 *            Parent servlet of the re-created session
+	 * @return re-created session
+	 * @throws IOException
+	 *             Thrown if occurring while reading or if the data is invalid
+	 */
+	public static Session readFrom(final DataInput in,
+			final HttpSessionServlet parent) throws IOException {
+		return readFrom(in, parent, Integer.MAX_VALUE, true);
+	}
+
+	/**
+	 * Re-create a session from untrusted input
+	 * 
+	 * @param maxLength
+	 *            Maximum length of a string or byte array, longer fields are
+	 *            rejected before being allocated
+	 * @param objects
+	 *            Accept serialized users and object attributes. If false,
+	 *            sessions containing them are rejected, so no Java
+	 *            deserialization happens
+	 */
+	static Session readFrom(final DataInput in,
+			final HttpSessionServlet parent, final int maxLength,
+			final boolean objects) throws IOException {
+		final byte version = in.readByte();
+		if (version != FORMAT_VERSION && version != FORMAT_VERSION_PROPERTIES)
+			throw new IOException("Unsupported session format: " + version);
+
+		final Session session = new Session(parent, readString(in, maxLength));
+		session.remoteAddress = readString(in, maxLength);
+		session.expired = in.readBoolean();
+		session.lastActivity = in.readLong();
+		session.failedLogins = in.readInt();
+		final long lastLogin = in.readLong();
+		if (lastLogin >= 0L)
+			session.lastLogin = new Date(lastLogin);
+
+		final byte userFormat = in.readByte();
+		if (userFormat == FORMAT_PLAIN_USER)
+			session.user = new User(readString(in, maxLength));
+		else if (userFormat == FORMAT_SERIALIZED_USER) {
+			if (!objects)
+				throw new IOException("Serialized user not accepted");
+			final byte[] data = readBytes(in, maxLength);
+			final ObjectInputStream objIn = new ObjectInputStream(
+					new ByteArrayInputStream(data));
+			try {
+				session.user = (User) objIn.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Cannot restore user", e);
+			} finally {
+				objIn.close();
+			}
+		} else if (userFormat != FORMAT_NO_USER)
+			throw new IOException("Illegal user format: " + userFormat);
+
+		if (version == FORMAT_VERSION_PROPERTIES) {
+			final int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				final String key = readString(in, maxLength);
+				final String value = readString(in, maxLength);
+				if (value != null)
+					session.attributes.putString(key, value);
+			}
+		} else
+			session.attributes.readFrom(in, maxLength, objects);
+		return session;
+	}
+
+	static void writeString(final DataOutput out, final String string)
+			throws IOException {
+		if (string == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(final DataInput in) throws IOException {
+		return readString(in, Integer.MAX_VALUE);
+	}
+
+	static String readString(final DataInput in, final int maxLength)
+			throws IOException {
+		final int length = in.readInt();
+		if (length < 0)
+			return null;
+		if (length > maxLength)
+			throw new IOException("String too long: " + length);
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static byte[] readBytes(final DataInput in, final int maxLength)
+			throws IOException {
+		final int length = in.readInt();
+		if (length < 0 || length > maxLength)
+			throw new IOException("Illegal length: " + length);
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
 }
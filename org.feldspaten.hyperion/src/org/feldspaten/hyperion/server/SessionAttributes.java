@@ -0,0 +1,473 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, typed attribute storage of a {@link Session}.
+ * 
+ * Attributes are kept in parallel arrays. Numbers and flags are stored as
+ * primitives, so they are neither boxed nor converted to strings. Sessions
+ * usually have only a few attributes, so a linear search is faster and
+ * smaller than a hash map. The storage keeps track of its approximate size in
+ * bytes, which can be capped by {@link Session#setMaxAttributesSize(long)}.
+ * 
+ * All methods are thread-safe
+ * 
+ */
+public class SessionAttributes implements Serializable {
+
+	/** Serialisation ID for writing to file */
+	private static final long serialVersionUID = -2893104417425367012L;
+
+	/** Attribute type: {@link String} */
+	public static final byte TYPE_STRING = 0;
+	/** Attribute type: int */
+	public static final byte TYPE_INT = 1;
+	/** Attribute type: long */
+	public static final byte TYPE_LONG = 2;
+	/** Attribute type: boolean */
+	public static final byte TYPE_BOOLEAN = 3;
+	/** Attribute type: byte array */
+	public static final byte TYPE_BYTES = 4;
+	/** Attribute type: Arbitrary object */
+	public static final byte TYPE_OBJECT = 5;
+
+	/** Assumed size in bytes of an object attribute, if not given */
+	public static final long DEFAULT_OBJECT_SIZE = 64L;
+
+	/** Approximate size of an empty storage */
+	private static final long BASE_SIZE = 96L;
+
+	/** Attribute names */
+	private String[] keys = new String[4];
+	/** Attribute types */
+	private byte[] types = new byte[4];
+	/** Values of primitive attributes */
+	private long[] primitives = new long[4];
+	/** Values of reference attributes */
+	private Object[] references = new Object[4];
+	/** Approximate size of each attribute */
+	private long[] sizes = new long[4];
+	/** Number of attributes */
+	private int count = 0;
+	/** Approximate size of all attributes */
+	private long totalSize = 0L;
+
+	/**
+	 * @return number of attributes
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return approximate memory used by the storage in bytes
+	 */
+	public synchronized long getApproximateSize() {
+		return BASE_SIZE + totalSize;
+	}
+
+	/**
+	 * @return names of all attributes
+	 */
+	public synchronized List<String> getNames() {
+		return new ArrayList<String>(Arrays.asList(keys).subList(0, count));
+	}
+
+	/**
+	 * @param key
+	 *            Name of the attribute
+	 * @return type of the attribute or -1, if not existing
+	 */
+	public synchronized byte getType(final String key) {
+		final int index = indexOf(key);
+		return index < 0 ? -1 : types[index];
+	}
+
+	public synchronized boolean contains(final String key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Get an attribute as {@link String}. Primitive attributes are converted
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @return value or null, if not existing or not convertible
+	 */
+	public synchronized String getString(final String key) {
+		final int index = indexOf(key);
+		if (index < 0)
+			return null;
+		switch (types[index]) {
+		case TYPE_STRING:
+			return (String) references[index];
+		case TYPE_INT:
+		case TYPE_LONG:
+			return Long.toString(primitives[index]);
+		case TYPE_BOOLEAN:
+			return primitives[index] != 0L ? "true" : "false";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Get an attribute as long. String attributes are parsed
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @param defaultValue
+	 *            Returned if not existing or not convertible
+	 * @return value of the attribute
+	 */
+	public synchronized long getLong(final String key, final long defaultValue) {
+		final int index = indexOf(key);
+		if (index < 0)
+			return defaultValue;
+		switch (types[index]) {
+		case TYPE_INT:
+		case TYPE_LONG:
+		case TYPE_BOOLEAN:
+			return primitives[index];
+		case TYPE_STRING:
+			return ParameterParser.parseLong((String) references[index],
+					defaultValue);
+		default:
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get an attribute as boolean. String attributes are parsed
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @param defaultValue
+	 *            Returned if not existing or not convertible
+	 * @return value of the attribute
+	 */
+	public synchronized boolean getBoolean(final String key,
+			final boolean defaultValue) {
+		final int index = indexOf(key);
+		if (index < 0)
+			return defaultValue;
+		switch (types[index]) {
+		case TYPE_INT:
+		case TYPE_LONG:
+		case TYPE_BOOLEAN:
+			return primitives[index] != 0L;
+		case TYPE_STRING:
+			final String value = (String) references[index];
+			if ("true".equalsIgnoreCase(value) || "1".equals(value))
+				return true;
+			if ("false".equalsIgnoreCase(value) || "0".equals(value))
+				return false;
+			return defaultValue;
+		default:
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Name of the attribute
+	 * @return byte array attribute or null, if not existing or of another
+	 *         type
+	 */
+	public synchronized byte[] getBytes(final String key) {
+		final int index = indexOf(key);
+		if (index < 0 || types[index] != TYPE_BYTES)
+			return null;
+		return (byte[]) references[index];
+	}
+
+	/**
+	 * @param key
+	 *            Name of the attribute
+	 * @return attribute as object, primitives are boxed. Null if not existing
+	 */
+	public synchronized Object getObject(final String key) {
+		final int index = indexOf(key);
+		if (index < 0)
+			return null;
+		switch (types[index]) {
+		case TYPE_INT:
+			return Integer.valueOf((int) primitives[index]);
+		case TYPE_LONG:
+			return Long.valueOf(primitives[index]);
+		case TYPE_BOOLEAN:
+			return Boolean.valueOf(primitives[index] != 0L);
+		default:
+			return references[index];
+		}
+	}
+
+	/**
+	 * Set a string attribute. A null value removes the attribute
+	 */
+	public synchronized long putString(final String key, final String value) {
+		if (value == null)
+			return remove(key);
+		return put(key, TYPE_STRING, 0L, value, 40L + 2L * value.length());
+	}
+
+	public synchronized long putInt(final String key, final int value) {
+		return put(key, TYPE_INT, value, null, 8L);
+	}
+
+	public synchronized long putLong(final String key, final long value) {
+		return put(key, TYPE_LONG, value, null, 8L);
+	}
+
+	public synchronized long putBoolean(final String key, final boolean value) {
+		return put(key, TYPE_BOOLEAN, value ? 1L : 0L, null, 8L);
+	}
+
+	/**
+	 * Set a byte array attribute. A null value removes the attribute
+	 */
+	public synchronized long putBytes(final String key, final byte[] value) {
+		if (value == null)
+			return remove(key);
+		return put(key, TYPE_BYTES, 0L, value, 16L + value.length);
+	}
+
+	/**
+	 * Set an object attribute. A null value removes the attribute
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @param value
+	 *            Value of the attribute
+	 * @param approximateSize
+	 *            Approximate size of the object in bytes
+	 * @return change of the approximate size in bytes
+	 */
+	public synchronized long putObject(final String key, final Object value,
+			final long approximateSize) {
+		if (value == null)
+			return remove(key);
+		return put(key, TYPE_OBJECT, 0L, value, approximateSize);
+	}
+
+	/**
+	 * Removes the given attribute
+	 * 
+	 * @param key
+	 *            Name of the attribute
+	 * @return change of the approximate size in bytes
+	 */
+	public synchronized long remove(final String key) {
+		final int index = indexOf(key);
+		if (index < 0)
+			return 0L;
+		final long delta = -sizes[index];
+		totalSize += delta;
+		count--;
+		// Move last attribute into the gap
+		keys[index] = keys[count];
+		types[index] = types[count];
+		primitives[index] = primitives[count];
+		references[index] = references[count];
+		sizes[index] = sizes[count];
+		keys[count] = null;
+		references[count] = null;
+		return delta;
+	}
+
+	/**
+	 * @return number of byte array and object attributes
+	 */
+	synchronized int countReferences() {
+		int result = 0;
+		for (int i = 0; i < count; i++)
+			if (types[i] == TYPE_BYTES || types[i] == TYPE_OBJECT)
+				result++;
+		return result;
+	}
+
+	/**
+	 * Write all attributes. Object attributes that are not
+	 * {@link Serializable} are skipped
+	 * 
+	 * @param out
+	 *            Output to write to
+	 * @throws IOException
+	 *             Thrown if occurring while writing
+	 */
+	public synchronized void writeTo(final DataOutput out) throws IOException {
+		int written = 0;
+		for (int i = 0; i < count; i++)
+			if (types[i] != TYPE_OBJECT || references[i] instanceof Serializable)
+				written++;
+		out.writeInt(written);
+		for (int i = 0; i < count; i++) {
+			switch (types[i]) {
+			case TYPE_STRING:
+				out.writeByte(TYPE_STRING);
+				Session.writeString(out, keys[i]);
+				Session.writeString(out, (String) references[i]);
+				break;
+			case TYPE_INT:
+			case TYPE_LONG:
+			case TYPE_BOOLEAN:
+				out.writeByte(types[i]);
+				Session.writeString(out, keys[i]);
+				out.writeLong(primitives[i]);
+				break;
+			case TYPE_BYTES:
+				out.writeByte(TYPE_BYTES);
+				Session.writeString(out, keys[i]);
+				final byte[] bytes = (byte[]) references[i];
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				break;
+			case TYPE_OBJECT:
+				if (!(references[i] instanceof Serializable))
+					break;
+				out.writeByte(TYPE_OBJECT);
+				Session.writeString(out, keys[i]);
+				out.writeLong(sizes[i] - entrySize(keys[i], 0L));
+				final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				final ObjectOutputStream objOut = new ObjectOutputStream(buffer);
+				objOut.writeObject(references[i]);
+				objOut.close();
+				out.writeInt(buffer.size());
+				out.write(buffer.toByteArray());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Read attributes that have been written by {@link #writeTo(DataOutput)}.
+	 * The size limit is not applied to the read attributes
+	 * 
+	 * @param in
+	 *            Input to read from
+	 * @throws IOException
+	 *             Thrown if occurring while reading or if the data is invalid
+	 */
+	public void readFrom(final DataInput in) throws IOException {
+		readFrom(in, Integer.MAX_VALUE, true);
+	}
+
+	/**
+	 * Read attributes from untrusted input
+	 * 
+	 * @param maxLength
+	 *            Maximum length of a string or byte array
+	 * @param objects
+	 *            Accept object attributes. If false, they are rejected, so no
+	 *            Java deserialization happens
+	 */
+	synchronized void readFrom(final DataInput in, final int maxLength,
+			final boolean objects) throws IOException {
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			final byte type = in.readByte();
+			final String key = Session.readString(in, maxLength);
+			switch (type) {
+			case TYPE_STRING:
+				final String value = Session.readString(in, maxLength);
+				if (value != null)
+					put(key, TYPE_STRING, 0L, value, 40L + 2L * value.length(),
+							false);
+				break;
+			case TYPE_INT:
+			case TYPE_LONG:
+			case TYPE_BOOLEAN:
+				put(key, type, in.readLong(), null, 8L, false);
+				break;
+			case TYPE_BYTES:
+				final byte[] bytes = Session.readBytes(in, maxLength);
+				put(key, TYPE_BYTES, 0L, bytes, 16L + bytes.length, false);
+				break;
+			case TYPE_OBJECT:
+				if (!objects)
+					throw new IOException("Object attribute not accepted: "
+							+ key);
+				final long size = in.readLong();
+				final byte[] data = Session.readBytes(in, maxLength);
+				final ObjectInputStream objIn = new ObjectInputStream(
+						new ByteArrayInputStream(data));
+				try {
+					put(key, TYPE_OBJECT, 0L, objIn.readObject(), size, false);
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Cannot restore attribute " + key, e);
+				} finally {
+					objIn.close();
+				}
+				break;
+			default:
+				throw new IOException("Illegal attribute type: " + type);
+			}
+		}
+	}
+
+	private long put(final String key, final byte type, final long primitive,
+			final Object reference, final long valueSize) {
+		return put(key, type, primitive, reference, valueSize, true);
+	}
+
+	private long put(final String key, final byte type, final long primitive,
+			final Object reference, final long valueSize,
+			final boolean enforceLimit) {
+		int index = indexOf(key);
+		final long size = entrySize(key, valueSize);
+		if (enforceLimit) {
+			final long limit = Session.getMaxAttributesSize();
+			final long delta = size - (index < 0 ? 0L : sizes[index]);
+			if (limit > 0L && delta > 0L && totalSize + delta > limit)
+				throw new IllegalArgumentException("Attribute '" + key
+						+ "' exceeds the session size limit of " + limit
+						+ " bytes");
+		}
+		if (index < 0) {
+			if (count == keys.length)
+				grow();
+			index = count++;
+			keys[index] = key;
+			sizes[index] = 0L;
+		}
+		types[index] = type;
+		primitives[index] = primitive;
+		references[index] = reference;
+		final long delta = size - sizes[index];
+		sizes[index] = size;
+		totalSize += delta;
+		return delta;
+	}
+
+	private static long entrySize(final String key, final long valueSize) {
+		// Array slots of the entry, key string and value
+		return 32L + 40L + 2L * key.length() + valueSize;
+	}
+
+	private int indexOf(final String key) {
+		for (int i = 0; i < count; i++)
+			if (keys[i].equals(key))
+				return i;
+		return -1;
+	}
+
+	private void grow() {
+		final int capacity = keys.length * 2;
+		keys = Arrays.copyOf(keys, capacity);
+		types = Arrays.copyOf(types, capacity);
+		primitives = Arrays.copyOf(primitives, capacity);
+		references = Arrays.copyOf(references, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+	}
+}
@@ -0,0 +1,30 @@
+package org.feldspaten.hyperion.server;
+
+/**
+ * Listener for the lifecycle of the sessions in the {@link SessionStore},
+ * registered by
+ * {@link HttpSessionServlet#addSessionListener(SessionListener)}. Stateless
+ * sessions are not reported
+ * 
+ */
+public interface SessionListener {
+
+	/**
+	 * Called after a new session has been stored
+	 * 
+	 * @param session
+	 *            Created session
+	 */
+	public void sessionCreated(final Session session);
+
+	/**
+	 * Called after a session has been removed from the store
+	 * 
+	 * @param sid
+	 *            ID of the session
+	 * @param expired
+	 *            true if the session expired, false if it has been removed,
+	 *            e.g. on logout or by the eviction from a bounded store
+	 */
+	public void sessionDestroyed(final String sid, final boolean expired);
+}
@@ -0,0 +1,520 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Network part of the {@link ReplicatedSessionStore}. Sends session events in
+ * batches over persistent TCP connections to all peers and applies the events
+ * received from the peers to the store.
+ * 
+ * Wire format: The accepting node starts a connection with a magic number and
+ * a random challenge. The connecting node answers with the magic number,
+ * followed by frames of the form <i>length</i>, <i>payload</i>, <i>MAC</i>.
+ * The MAC is the HMAC-SHA256 of the challenge, the sequence number of the
+ * frame and the payload with the shared secret, so frames can neither be
+ * forged nor replayed on another connection. A payload is the <i>event
+ * count</i> followed by the events. An event starts with its type, followed by
+ * the session record (create, update) or the session ID and optionally the
+ * activity timestamp (touch, expire)
+ * 
+ */
+class SessionReplicator implements Closeable {
+
+	/** Event: Session has been created */
+	static final byte EVENT_CREATE = 1;
+	/** Event: Session has been modified */
+	static final byte EVENT_UPDATE = 2;
+	/** Event: Only the activity of the session changed */
+	static final byte EVENT_TOUCH = 3;
+	/** Event: Session has been removed */
+	static final byte EVENT_EXPIRE = 4;
+
+	/** Magic number at the start of each connection */
+	private static final int MAGIC = 0x48595053;
+	/** Maximum number of events in a single frame */
+	private static final int MAX_BATCH = 512;
+	/** Maximum length in bytes of a session record */
+	static final int MAX_RECORD = 1024 * 1024;
+	/** Maximum length in bytes of a frame payload */
+	private static final int MAX_FRAME = 4 * MAX_RECORD;
+	/** Maximum length in bytes of a session ID */
+	private static final int MAX_SID = HttpSessionServlet.SID_LENGTH;
+	/** Length in bytes of the connection challenge */
+	private static final int CHALLENGE_LENGTH = 16;
+	/** Length in bytes of the frame MAC */
+	private static final int MAC_LENGTH = 32;
+	/** Minimum length in bytes of the shared secret */
+	static final int MIN_SECRET_LENGTH = 16;
+	/** Maximum number of queued events */
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	/** Delay in milliseconds before reconnecting to a failed peer */
+	private static final long RECONNECT_DELAY = 1000L;
+	/** Connect timeout in milliseconds */
+	private static final int CONNECT_TIMEOUT = 2000;
+
+	/** Single session event */
+	private static class Event {
+		final byte type;
+		final String sid;
+		final byte[] record;
+		final long activity;
+
+		Event(final byte type, final String sid, final byte[] record,
+				final long activity) {
+			this.type = type;
+			this.sid = sid;
+			this.record = record;
+			this.activity = activity;
+		}
+	}
+
+	/** Outgoing connection to a peer */
+	private static class Peer {
+		final InetSocketAddress address;
+		Socket socket = null;
+		DataOutputStream out = null;
+		/** Challenge of the current connection */
+		byte[] challenge = null;
+		/** Sequence number of the next frame */
+		int sequence = 0;
+		/** System milliseconds of the next connection attempt */
+		long nextAttempt = 0L;
+
+		Peer(final InetSocketAddress address) {
+			this.address = address;
+		}
+
+		void disconnect() {
+			out = null;
+			if (socket != null)
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			socket = null;
+			nextAttempt = System.currentTimeMillis() + RECONNECT_DELAY;
+		}
+	}
+
+	/** Store that applies the received events */
+	private final ReplicatedSessionStore store;
+	/** Address to listen for peer connections */
+	private final InetSocketAddress bindAddress;
+	/** Key of the frame MACs */
+	private final SecretKeySpec key;
+	/** MAC of the sent frames, used only by the sender thread */
+	private final Mac senderMac;
+	private final SecureRandom random = new SecureRandom();
+	/** Outgoing connections */
+	private final List<Peer> peers = new ArrayList<Peer>();
+	/** Queued outgoing events */
+	private final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(
+			QUEUE_CAPACITY);
+
+	/** Events dropped because the queue was full */
+	private final AtomicLong droppedEvents = new AtomicLong();
+	/** Events sent to peers */
+	private final AtomicLong sentEvents = new AtomicLong();
+	/** Events received from peers */
+	private final AtomicLong receivedEvents = new AtomicLong();
+	/** Received records that have been rejected */
+	private final AtomicLong rejectedRecords = new AtomicLong();
+
+	private volatile boolean running = false;
+	private ServerSocket serverSocket = null;
+	private Thread sender = null;
+
+	SessionReplicator(final ReplicatedSessionStore store,
+			final InetSocketAddress bindAddress,
+			final List<InetSocketAddress> peers, final byte[] secret) {
+		if (secret == null || secret.length < MIN_SECRET_LENGTH)
+			throw new IllegalArgumentException(
+					"Replication secret must have at least "
+							+ MIN_SECRET_LENGTH + " bytes");
+		this.store = store;
+		this.bindAddress = bindAddress;
+		this.key = new SecretKeySpec(secret.clone(), "HmacSHA256");
+		this.senderMac = createMac();
+		for (final InetSocketAddress address : peers)
+			this.peers.add(new Peer(address));
+	}
+
+	synchronized void start() throws IOException {
+		if (running)
+			return;
+		serverSocket = new ServerSocket();
+		serverSocket.bind(bindAddress);
+		running = true;
+		final Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "Hyperion replication acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sendLoop();
+			}
+		}, "Hyperion replication sender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		running = false;
+		if (serverSocket != null)
+			serverSocket.close();
+		if (sender != null)
+			sender.interrupt();
+	}
+
+	/**
+	 * Queue an event for all peers. Drops the event, if the queue is full or
+	 * the record is too large
+	 */
+	void publish(final byte type, final String sid, final byte[] record,
+			final long activity) {
+		if (!running)
+			return;
+		if (record != null && record.length > MAX_RECORD) {
+			System.err.println("Session " + sid + " too large to replicate: "
+					+ record.length + " bytes");
+			droppedEvents.incrementAndGet();
+			return;
+		}
+		if (!queue.offer(new Event(type, sid, record, activity)))
+			droppedEvents.incrementAndGet();
+	}
+
+	long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	long getSentEvents() {
+		return sentEvents.get();
+	}
+
+	long getReceivedEvents() {
+		return receivedEvents.get();
+	}
+
+	long getRejectedRecords() {
+		return rejectedRecords.get();
+	}
+
+	private void sendLoop() {
+		final List<Event> batch = new ArrayList<Event>(MAX_BATCH);
+		while (running) {
+			try {
+				final Event first = queue.poll(1L, TimeUnit.SECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+				final List<byte[]> frames = encode(batch);
+				for (final Peer peer : peers)
+					send(peer, frames);
+				sentEvents.addAndGet(batch.size());
+				batch.clear();
+			} catch (InterruptedException e) {
+				break;
+			} catch (IOException e) {
+				// Encoding into memory doesn't fail
+				batch.clear();
+			}
+		}
+		for (final Peer peer : peers)
+			peer.disconnect();
+	}
+
+	/**
+	 * Send frames to the given peer. Connects to the peer, if not connected.
+	 * A new connection is initialised with a snapshot of all sessions
+	 * 
+	 * @param frames
+	 *            Payloads to be sent, empty to only check the connection
+	 */
+	private void send(final Peer peer, final List<byte[]> frames) {
+		try {
+			if (peer.out == null) {
+				if (System.currentTimeMillis() < peer.nextAttempt)
+					return;
+				connect(peer);
+			}
+			if (!frames.isEmpty()) {
+				for (final byte[] frame : frames)
+					writeFrame(peer, frame);
+				peer.out.flush();
+			}
+		} catch (IOException e) {
+			peer.disconnect();
+		}
+	}
+
+	private void connect(final Peer peer) throws IOException {
+		final Socket socket = new Socket();
+		peer.socket = socket;
+		socket.connect(peer.address, CONNECT_TIMEOUT);
+		socket.setTcpNoDelay(true);
+		socket.setKeepAlive(true);
+
+		// Receive the challenge of the peer
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		if (in.readInt() != MAGIC)
+			throw new IOException("Illegal replication handshake");
+		final byte[] challenge = new byte[CHALLENGE_LENGTH];
+		in.readFully(challenge);
+		socket.setSoTimeout(0);
+
+		peer.out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream(), 64 * 1024));
+		peer.challenge = challenge;
+		peer.sequence = 0;
+		peer.out.writeInt(MAGIC);
+
+		// Bring the peer up to date
+		final List<Event> snapshot = new ArrayList<Event>(MAX_BATCH);
+		for (final byte[] record : store.snapshot()) {
+			if (record.length > MAX_RECORD)
+				continue;
+			snapshot.add(new Event(EVENT_CREATE, null, record, 0L));
+			if (snapshot.size() == MAX_BATCH) {
+				for (final byte[] frame : encode(snapshot))
+					writeFrame(peer, frame);
+				snapshot.clear();
+			}
+		}
+		for (final byte[] frame : encode(snapshot))
+			writeFrame(peer, frame);
+		peer.out.flush();
+	}
+
+	private void writeFrame(final Peer peer, final byte[] frame)
+			throws IOException {
+		peer.out.writeInt(frame.length);
+		peer.out.write(frame);
+		peer.out.write(mac(senderMac, peer.challenge, peer.sequence++, frame));
+	}
+
+	/**
+	 * Encode the events into payloads of at most {@link #MAX_FRAME} bytes
+	 */
+	private static List<byte[]> encode(final List<Event> events)
+			throws IOException {
+		final List<byte[]> frames = new ArrayList<byte[]>(1);
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				events.size() * 64);
+		final DataOutputStream out = new DataOutputStream(buffer);
+		int count = 0;
+		for (final Event event : events) {
+			final byte[] data = event.record != null ? event.record
+					: event.sid.getBytes(StandardCharsets.UTF_8);
+			if (count > 0 && buffer.size() + data.length + 13 > MAX_FRAME) {
+				frames.add(payload(count, buffer));
+				buffer.reset();
+				count = 0;
+			}
+			out.writeByte(event.type);
+			out.writeInt(data.length);
+			out.write(data);
+			if (event.type == EVENT_TOUCH)
+				out.writeLong(event.activity);
+			count++;
+		}
+		if (count > 0)
+			frames.add(payload(count, buffer));
+		return frames;
+	}
+
+	private static byte[] payload(final int count,
+			final ByteArrayOutputStream events) throws IOException {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				events.size() + 4);
+		final DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(count);
+		events.writeTo(out);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private Mac createMac() {
+		try {
+			final Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(key);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 not available", e);
+		}
+	}
+
+	private static byte[] mac(final Mac mac, final byte[] challenge,
+			final int sequence, final byte[] frame) {
+		mac.update(challenge);
+		mac.update((byte) (sequence >>> 24));
+		mac.update((byte) (sequence >>> 16));
+		mac.update((byte) (sequence >>> 8));
+		mac.update((byte) sequence);
+		mac.update(frame);
+		return mac.doFinal();
+	}
+
+	private void acceptLoop() {
+		final Set<InetAddress> allowed = new HashSet<InetAddress>();
+		for (final Peer peer : peers)
+			if (peer.address.getAddress() != null)
+				allowed.add(peer.address.getAddress());
+
+		while (running) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running)
+					System.err.println("Replication accept failed: "
+							+ e.getMessage());
+				continue;
+			}
+			if (!allowed.contains(socket.getInetAddress())) {
+				System.err.println("Rejecting replication connection from "
+						+ socket.getInetAddress());
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+				continue;
+			}
+
+			final Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receiveLoop(socket);
+				}
+			}, "Hyperion replication reader " + socket.getRemoteSocketAddress());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	private void receiveLoop(final Socket socket) {
+		try {
+			final byte[] challenge = new byte[CHALLENGE_LENGTH];
+			random.nextBytes(challenge);
+			final DataOutputStream out = new DataOutputStream(
+					socket.getOutputStream());
+			out.writeInt(MAGIC);
+			out.write(challenge);
+			out.flush();
+
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			if (in.readInt() != MAGIC)
+				throw new IOException("Illegal replication handshake");
+
+			final Mac mac = createMac();
+			final byte[] received = new byte[MAC_LENGTH];
+			int sequence = 0;
+			while (running) {
+				final int length = in.readInt();
+				if (length < 4 || length > MAX_FRAME)
+					throw new IOException("Illegal frame length: " + length);
+				final byte[] frame = new byte[length];
+				in.readFully(frame);
+				in.readFully(received);
+				if (!MessageDigest.isEqual(received,
+						mac(mac, challenge, sequence++, frame)))
+					throw new IOException("Frame authentication failed");
+				applyFrame(frame);
+			}
+		} catch (EOFException e) {
+			// Peer closed connection
+		} catch (SocketException e) {
+			// Connection lost
+		} catch (IOException e) {
+			System.err.println("Replication connection from "
+					+ socket.getInetAddress() + " failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Apply the events of an authenticated frame
+	 */
+	private void applyFrame(final byte[] frame) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(frame));
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			final byte type = in.readByte();
+			final int length = in.readInt();
+			if (length < 0 || length > in.available())
+				throw new IOException("Illegal event length: " + length);
+			if (type == EVENT_CREATE || type == EVENT_UPDATE) {
+				final byte[] record = new byte[length];
+				in.readFully(record);
+				try {
+					store.applyRecord(record);
+				} catch (IOException e) {
+					// Skip the record, the connection is intact
+					rejectedRecords.incrementAndGet();
+					System.err.println("Rejecting replicated session: "
+							+ e.getMessage());
+				}
+			} else {
+				if (length > MAX_SID)
+					throw new IOException("Illegal session ID length: "
+							+ length);
+				final byte[] sid = new byte[length];
+				in.readFully(sid);
+				final String id = new String(sid, StandardCharsets.UTF_8);
+				if (type == EVENT_TOUCH)
+					store.applyActivity(id, in.readLong());
+				else if (type == EVENT_EXPIRE)
+					store.applyExpire(id);
+				else
+					throw new IOException("Illegal event type: " + type);
+			}
+		}
+		receivedEvents.addAndGet(count);
+	}
+}
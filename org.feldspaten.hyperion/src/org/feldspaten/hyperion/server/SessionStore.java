@@ -0,0 +1,98 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.List;
+
+/**
+ * Registry for the {@link Session} instances of all {@link HttpSessionServlet}
+ * instances.
+ * 
+ * Implementations must be thread-safe. The default store is the
+ * {@link MemorySessionStore}, another store can be assigned with
+ * {@link HttpSessionServlet#setSessionStore(SessionStore)}
+ * 
+ */
+public interface SessionStore {
+
+	/**
+	 * Get the session with the given id
+	 * 
+	 * @param sid
+	 *            Session ID
+	 * @param parent
+	 *            Servlet that requests the session. Used as parent for
+	 *            sessions that need to be re-created by the store. May be
+	 *            null
+	 * @return {@link Session} instance or null, if not existing or expired.
+	 *         Expired sessions stay in the store until
+	 *         {@link #removeExpired()} reports them
+	 */
+	public Session get(final String sid, final HttpSessionServlet parent);
+
+	/**
+	 * Put the given session into the store, if no session with the same id
+	 * exists. The id of an expired session is taken until it is removed
+	 * 
+	 * @param session
+	 *            to be added
+	 * @return the already existing session with the same id, or null if the
+	 *         given session has been added
+	 */
+	public Session putIfAbsent(final Session session);
+
+	/**
+	 * Put the given session into the store, replacing an existing session
+	 * with the same id in one step, so concurrent lookups never miss the id
+	 * 
+	 * @param session
+	 *            to be stored
+	 */
+	public void put(final Session session);
+
+	/**
+	 * Notify the store that a request has finished working with the given
+	 * session. Stores that keep sessions outside of the heap or on other
+	 * machines write back the changes of the session here
+	 * 
+	 * @param session
+	 *            that has been used
+	 */
+	public void update(final Session session);
+
+	/**
+	 * Removes the session with the given id
+	 * 
+	 * @param sid
+	 *            Session ID
+	 * @return true if the session has been found and removed
+	 */
+	public boolean remove(final String sid);
+
+	/**
+	 * @param sid
+	 *            Session ID
+	 * @return true if a session with the given id is stored
+	 */
+	public boolean contains(final String sid);
+
+	/**
+	 * @return number of stored sessions
+	 */
+	public int size();
+
+	/**
+	 * Removes all expired sessions from the store
+	 * 
+	 * @return Session IDs of the removed sessions
+	 */
+	public List<String> removeExpired();
+
+	/**
+	 * Get all stored sessions. Note: This might be an expensive operation for
+	 * stores that don't keep their sessions as objects
+	 * 
+	 * @param parent
+	 *            Servlet that requests the sessions. May be null
+	 * @return List containing all stored sessions
+	 */
+	public List<Session> getSessions(final HttpSessionServlet parent);
+}
@@ -0,0 +1,356 @@
+package org.feldspaten.hyperion.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encodes light guest sessions into HMAC-signed and optionally encrypted
+ * cookie values, so that they don't need to be kept on the server.
+ * 
+ * A session is light, if it has no logged in user, at most
+ * {@link #getMaxProperties()} properties, no byte array or object attributes
+ * and fits into
+ * {@link #getMaxTokenLength()} characters. Sessions that are not light anymore
+ * are promoted to the {@link SessionStore} by the {@link HttpSessionServlet}.
+ * 
+ * Token format: base64url( payload | HMAC-SHA256(payload) ). If encryption is
+ * enabled, the payload is IV | AES-CBC(data) (encrypt-then-MAC)
+ * 
+ */
+public class SessionTokenCodec {
+
+	/** Default maximum number of properties of a light session */
+	public static final int DEFAULT_MAX_PROPERTIES = 8;
+	/** Default maximum length of a token in characters */
+	public static final int DEFAULT_MAX_TOKEN_LENGTH = 1024;
+	/** Default resolution in milliseconds for refreshing the token activity */
+	public static final long DEFAULT_ACTIVITY_RESOLUTION = 60L * 1000L;
+
+	/** Version of the token payload */
+	private static final byte TOKEN_VERSION = 2;
+	/** Previous version of the token payload, with string properties only */
+	private static final byte TOKEN_VERSION_PROPERTIES = 1;
+	/** Length of the HMAC in bytes */
+	private static final int MAC_LENGTH = 32;
+	/** Length of the AES IV in bytes */
+	private static final int IV_LENGTH = 16;
+
+	/** Characters of the base64url alphabet */
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+			.toCharArray();
+	/** Reverse lookup of the base64url alphabet */
+	private static final int[] BASE64_REVERSE = new int[128];
+	static {
+		Arrays.fill(BASE64_REVERSE, -1);
+		for (int i = 0; i < BASE64.length; i++)
+			BASE64_REVERSE[BASE64[i]] = i;
+	}
+
+	/** Key for the HMAC */
+	private final SecretKeySpec macKey;
+	/** Key for the encryption or null, if tokens are only signed */
+	private final SecretKeySpec cipherKey;
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				final Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(macKey);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("HmacSHA256 not available", e);
+			}
+		}
+	};
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/CBC/PKCS5Padding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("AES not available", e);
+			}
+		}
+	};
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile int maxProperties = DEFAULT_MAX_PROPERTIES;
+	private volatile int maxTokenLength = DEFAULT_MAX_TOKEN_LENGTH;
+	private volatile long activityResolution = DEFAULT_ACTIVITY_RESOLUTION;
+
+	/**
+	 * Create new codec
+	 * 
+	 * @param secret
+	 *            Secret of at least 16 bytes. All nodes serving the same
+	 *            sessions must use the same secret
+	 * @param encrypt
+	 *            If true, the tokens are encrypted. Otherwise they are only
+	 *            signed and the properties are readable by the client
+	 */
+	public SessionTokenCodec(final byte[] secret, final boolean encrypt) {
+		if (secret == null || secret.length < 16)
+			throw new IllegalArgumentException(
+					"Secret must have at least 16 bytes");
+		try {
+			// Derive independent keys for signing and encryption
+			final Mac derive = Mac.getInstance("HmacSHA256");
+			derive.init(new SecretKeySpec(secret, "HmacSHA256"));
+			this.macKey = new SecretKeySpec(derive.doFinal("mac"
+					.getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+			if (encrypt)
+				this.cipherKey = new SecretKeySpec(Arrays.copyOf(
+						derive.doFinal("enc".getBytes(StandardCharsets.UTF_8)),
+						16), "AES");
+			else
+				this.cipherKey = null;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 not available", e);
+		}
+	}
+
+	public int getMaxProperties() {
+		return maxProperties;
+	}
+
+	public void setMaxProperties(int maxProperties) {
+		this.maxProperties = maxProperties;
+	}
+
+	public int getMaxTokenLength() {
+		return maxTokenLength;
+	}
+
+	public void setMaxTokenLength(int maxTokenLength) {
+		this.maxTokenLength = maxTokenLength;
+	}
+
+	public long getActivityResolution() {
+		return activityResolution;
+	}
+
+	/**
+	 * Set the resolution of the activity stored in the token. Unmodified
+	 * sessions get a new token only if the stored activity is older than the
+	 * resolution
+	 * 
+	 * @param activityResolution
+	 *            Resolution in milliseconds
+	 */
+	public void setActivityResolution(long activityResolution) {
+		this.activityResolution = activityResolution;
+	}
+
+	/**
+	 * Create a new, empty stateless session
+	 * 
+	 * @param parent
+	 *            Parent servlet of the session
+	 * @return created session
+	 */
+	public Session createSession(final HttpSessionServlet parent) {
+		final Session session = new Session(parent, "");
+		session.markStateless(System.currentTimeMillis());
+		return session;
+	}
+
+	/**
+	 * Decode the given token
+	 * 
+	 * @param token
+	 *            Token to decode
+	 * @param parent
+	 *            Parent servlet of the created session
+	 * @return stateless session or null, if the token is invalid or the
+	 *         session is expired
+	 */
+	public Session decode(final String token, final HttpSessionServlet parent) {
+		if (token == null || token.length() > maxTokenLength)
+			return null;
+		final byte[] raw = base64Decode(token);
+		if (raw == null || raw.length <= MAC_LENGTH)
+			return null;
+
+		final int payloadLength = raw.length - MAC_LENGTH;
+		final Mac mac = macs.get();
+		mac.update(raw, 0, payloadLength);
+		final byte[] expected = mac.doFinal();
+		final byte[] actual = Arrays.copyOfRange(raw, payloadLength,
+				raw.length);
+		if (!MessageDigest.isEqual(expected, actual))
+			return null;
+
+		try {
+			byte[] data = Arrays.copyOf(raw, payloadLength);
+			if (cipherKey != null) {
+				if (data.length <= IV_LENGTH)
+					return null;
+				final Cipher cipher = ciphers.get();
+				cipher.init(Cipher.DECRYPT_MODE, cipherKey,
+						new IvParameterSpec(data, 0, IV_LENGTH));
+				data = cipher.doFinal(data, IV_LENGTH, data.length
+						- IV_LENGTH);
+			}
+
+			final DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(data));
+			final byte version = in.readByte();
+			if (version != TOKEN_VERSION && version != TOKEN_VERSION_PROPERTIES)
+				return null;
+			final long activity = in.readLong();
+			if (Session.isExpired(activity))
+				return null;
+			final Session session = new Session(parent, "");
+			session.markStateless(activity);
+			if (version == TOKEN_VERSION_PROPERTIES) {
+				final int count = in.readUnsignedByte();
+				for (int i = 0; i < count; i++) {
+					final String key = in.readUTF();
+					session.getAttributes().putString(key, in.readUTF());
+				}
+			} else
+				// Tokens never contain object attributes, so nothing is
+				// deserialized even if the key has leaked
+				session.getAttributes().readFrom(in, maxTokenLength, false);
+			return session;
+		} catch (IOException e) {
+			return null;
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode the given session
+	 * 
+	 * @param session
+	 *            to be encoded
+	 * @return token or null, if the session is not light
+	 */
+	public String encode(final Session session) {
+		if (session.isLoggedIn())
+			return null;
+		try {
+			final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+			final DataOutputStream out = new DataOutputStream(buffer);
+			out.writeByte(TOKEN_VERSION);
+			out.writeLong(session.getLastActivity());
+			final SessionAttributes attributes = session.getAttributes();
+			synchronized (attributes) {
+				if (attributes.size() > maxProperties
+						|| attributes.countReferences() > 0)
+					return null;
+				attributes.writeTo(out);
+			}
+			out.close();
+
+			byte[] data = buffer.toByteArray();
+			if (cipherKey != null) {
+				final byte[] iv = new byte[IV_LENGTH];
+				random.nextBytes(iv);
+				final Cipher cipher = ciphers.get();
+				cipher.init(Cipher.ENCRYPT_MODE, cipherKey,
+						new IvParameterSpec(iv));
+				final byte[] encrypted = cipher.doFinal(data);
+				data = new byte[IV_LENGTH + encrypted.length];
+				System.arraycopy(iv, 0, data, 0, IV_LENGTH);
+				System.arraycopy(encrypted, 0, data, IV_LENGTH,
+						encrypted.length);
+			}
+
+			final Mac mac = macs.get();
+			final byte[] signature = mac.doFinal(data);
+			final byte[] raw = Arrays.copyOf(data, data.length + MAC_LENGTH);
+			System.arraycopy(signature, 0, raw, data.length, MAC_LENGTH);
+
+			final String token = base64Encode(raw);
+			if (token.length() > maxTokenLength)
+				return null;
+			return token;
+		} catch (IOException e) {
+			// Not writable into memory
+			return null;
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param session
+	 *            Stateless session
+	 * @return true if the token of the session needs to be re-issued, because
+	 *         the session has been modified or its stored activity is outdated
+	 */
+	public boolean needsRefresh(final Session session) {
+		if (session.getModificationCount() != 0)
+			return true;
+		return session.getLastActivity() - session.getTokenActivity() >= activityResolution;
+	}
+
+	private static String base64Encode(final byte[] data) {
+		final StringBuilder builder = new StringBuilder(
+				(data.length * 4 + 2) / 3);
+		int i = 0;
+		for (; i + 2 < data.length; i += 3) {
+			final int bits = ((data[i] & 0xFF) << 16)
+					| ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+			builder.append(BASE64[(bits >> 18) & 0x3F]);
+			builder.append(BASE64[(bits >> 12) & 0x3F]);
+			builder.append(BASE64[(bits >> 6) & 0x3F]);
+			builder.append(BASE64[bits & 0x3F]);
+		}
+		final int remaining = data.length - i;
+		if (remaining == 1) {
+			final int bits = (data[i] & 0xFF) << 16;
+			builder.append(BASE64[(bits >> 18) & 0x3F]);
+			builder.append(BASE64[(bits >> 12) & 0x3F]);
+		} else if (remaining == 2) {
+			final int bits = ((data[i] & 0xFF) << 16)
+					| ((data[i + 1] & 0xFF) << 8);
+			builder.append(BASE64[(bits >> 18) & 0x3F]);
+			builder.append(BASE64[(bits >> 12) & 0x3F]);
+			builder.append(BASE64[(bits >> 6) & 0x3F]);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return decoded data or null, if the string is not valid base64url
+	 */
+	private static byte[] base64Decode(final String string) {
+		final int length = string.length();
+		if (length % 4 == 1)
+			return null;
+		final byte[] result = new byte[length * 3 / 4];
+		int bits = 0;
+		int count = 0;
+		int pos = 0;
+		for (int i = 0; i < length; i++) {
+			final char ch = string.charAt(i);
+			final int value = ch < 128 ? BASE64_REVERSE[ch] : -1;
+			if (value < 0)
+				return null;
+			bits = (bits << 6) | value;
+			count += 6;
+			if (count >= 8) {
+				count -= 8;
+				result[pos++] = (byte) (bits >> count);
+			}
+		}
+		return pos == result.length ? result : Arrays.copyOf(result, pos);
+	}
+}
@@ -0,0 +1,51 @@
+package org.feldspaten.hyperion.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the bytes allocated by the current thread from the
+ * <code>com.sun.management.ThreadMXBean</code> of HotSpot based runtimes
+ * 
+ */
+final class ThreadAllocation {
+
+	/** Bean of the runtime or null, if not supported */
+	private static final com.sun.management.ThreadMXBean bean = createBean();
+
+	private ThreadAllocation() {
+	}
+
+	private static com.sun.management.ThreadMXBean createBean() {
+		try {
+			final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (!(threads instanceof com.sun.management.ThreadMXBean))
+				return null;
+			final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+			if (!bean.isThreadAllocatedMemorySupported())
+				return null;
+			if (!bean.isThreadAllocatedMemoryEnabled())
+				bean.setThreadAllocatedMemoryEnabled(true);
+			return bean;
+		} catch (LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the runtime reports allocated bytes per thread
+	 */
+	static boolean isSupported() {
+		return bean != null;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread since its start, or -1 if
+	 *         not supported
+	 */
+	static long current() {
+		if (bean == null)
+			return -1L;
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
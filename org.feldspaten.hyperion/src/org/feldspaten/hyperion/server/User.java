@@ -1,12 +1,18 @@
 package org.feldspaten.hyperion.server;
 
+import java.io.Serializable;
+
 /**
  * User instance for the {@link HttpSessionServlet}
  * 
  * @author phoenix
  *
  */
-public class User {
+public class User implements Serializable {
+
+	/** Serialisation ID */
+	private static final long serialVersionUID = -2586383411380529837L;
+
 	/** Username */
 	private String username;
 
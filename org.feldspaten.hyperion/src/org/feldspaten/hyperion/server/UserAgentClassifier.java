@@ -0,0 +1,184 @@
+package org.feldspaten.hyperion.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies User-Agent header values by device class.
+ * 
+ * The browser pattern is compiled once, and the results are kept in a bounded
+ * LRU cache, because clients send the same few User-Agents over and over again
+ * 
+ */
+public class UserAgentClassifier {
+
+	/** Device class of a client */
+	public enum DeviceClass {
+		/** Desktop browser or unknown client */
+		DESKTOP,
+		/** Mobile browser */
+		MOBILE
+	}
+
+	/** Default maximum number of cached User-Agents */
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	/** User-Agents longer than this are classified, but not cached */
+	private static final int MAX_CACHED_LENGTH = 512;
+
+	/** Known mobile browsers */
+	private static final Pattern MOBILE_BROWSERS = Pattern
+			.compile("(android|bb\\d+|meego).+mobile|avantgo|bada\\/|blackberry|blazer|compal|elaine|fennec|hiptop|iemobile|ip(hone|od)|iris|kindle|lge |maemo|midp|mmp|mobile.+firefox|netfront|opera m(ob|in)i|palm( os)?|phone|p(ixi|re)\\/|plucker|pocket|psp|series(4|6)0|symbian|treo|up\\.(browser|link)|vodafone|wap|windows (ce|phone)|xda|xiino");
+
+	/** Shared instance used by the {@link HttpSessionServlet} */
+	private static final UserAgentClassifier instance = new UserAgentClassifier(
+			DEFAULT_CACHE_SIZE);
+
+	/** Classified User-Agents in access order */
+	private final LinkedHashMap<String, DeviceClass> cache;
+
+	private volatile int cacheSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create new classifier
+	 * 
+	 * @param cacheSize
+	 *            Maximum number of cached User-Agents, 0 to disable the cache
+	 */
+	public UserAgentClassifier(final int cacheSize) {
+		this.cacheSize = cacheSize;
+		this.cache = new LinkedHashMap<String, DeviceClass>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, DeviceClass> eldest) {
+				return size() > UserAgentClassifier.this.cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * @return shared instance
+	 */
+	public static UserAgentClassifier getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Classify the given User-Agent
+	 * 
+	 * @param userAgent
+	 *            Value of the User-Agent header, may be null
+	 * @return device class of the client
+	 */
+	public DeviceClass classify(final String userAgent) {
+		if (userAgent == null || userAgent.isEmpty())
+			return DeviceClass.DESKTOP;
+		final boolean cacheable = userAgent.length() <= MAX_CACHED_LENGTH;
+		if (cacheable) {
+			synchronized (cache) {
+				final DeviceClass result = cache.get(userAgent);
+				if (result != null) {
+					hits.incrementAndGet();
+					return result;
+				}
+			}
+		}
+		misses.incrementAndGet();
+
+		final DeviceClass result = isMobile(userAgent) ? DeviceClass.MOBILE
+				: DeviceClass.DESKTOP;
+		if (cacheable) {
+			synchronized (cache) {
+				cache.put(userAgent, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks if the given User-Agent belongs to a mobile browser, without
+	 * using the cache
+	 */
+	private static boolean isMobile(final String userAgent) {
+		if (MOBILE_BROWSERS.matcher(userAgent).matches())
+			return true;
+
+		// Check the system information of Mozilla agents for Android
+		if (userAgent.startsWith("Mozilla/")) {
+			final int start = userAgent.indexOf('(') + 1;
+			final int end = userAgent.indexOf(')', start);
+			if (end < 0)
+				return false;
+			int pos = start;
+			while (pos <= end) {
+				int next = userAgent.indexOf(';', pos);
+				if (next < 0 || next > end)
+					next = end;
+				while (pos < next && userAgent.charAt(pos) <= ' ')
+					pos++;
+				if (next - pos >= 7
+						&& userAgent.regionMatches(true, pos, "android", 0, 7))
+					return true;
+				pos = next + 1;
+			}
+		}
+
+		// All matches have failed. Assume not to be mobile version
+		return false;
+	}
+
+	/**
+	 * @return number of User-Agents answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of User-Agents that had to be classified
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return fraction of User-Agents answered from the cache, between 0 and 1
+	 */
+	public double getHitRate() {
+		final long hits = this.hits.get();
+		final long total = hits + misses.get();
+		return total == 0L ? 0.0 : (double) hits / (double) total;
+	}
+
+	/**
+	 * @return number of cached User-Agents
+	 */
+	public int getCachedCount() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize
+	 *            Maximum number of cached User-Agents, 0 to disable the cache
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		synchronized (cache) {
+			if (cache.size() > cacheSize)
+				cache.clear();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.feldspaten.hyperion.server;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the {@link User} instances created by
+ * {@link HttpSessionServlet#createUser(String)}.
+ * 
+ * Users are kept for a limited time and the number of cached users is bounded,
+ * least recently used users are dropped first. If the same user is requested
+ * concurrently, it is only loaded once and all requests get the same instance.
+ * 
+ * Users must be invalidated when their data or roles change. The cache can be
+ * shared by all servlets, if they create the same users for a username
+ * 
+ */
+public class UserCache {
+
+	/** Default time in milliseconds users are cached */
+	public static final long DEFAULT_TTL = 5L * 60L * 1000L;
+	/** Default maximum number of cached users */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	/** Cached user */
+	private static class Entry {
+		final User user;
+		final long expires;
+
+		Entry(final User user, final long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	/** Cached users in access order */
+	private final LinkedHashMap<String, Entry> users = new LinkedHashMap<String, Entry>(
+			64, 0.75f, true);
+	/** Users currently being loaded */
+	private final ConcurrentHashMap<String, FutureTask<User>> loading = new ConcurrentHashMap<String, FutureTask<User>>();
+	/**
+	 * Incremented on each invalidation, so that users loaded before an
+	 * invalidation are not cached
+	 */
+	private long generation = 0L;
+
+	private volatile long ttl;
+	private volatile int maxSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+
+	/**
+	 * Create new cache with default settings
+	 */
+	public UserCache() {
+		this(DEFAULT_TTL, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Create new cache
+	 * 
+	 * @param ttl
+	 *            Time in milliseconds users are cached
+	 * @param maxSize
+	 *            Maximum number of cached users
+	 */
+	public UserCache(final long ttl, final int maxSize) {
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the given user from the cache, or load it using
+	 * {@link HttpSessionServlet#createUser(String)}
+	 * 
+	 * @param username
+	 *            Name of the user
+	 * @param servlet
+	 *            Servlet that creates the user if not cached
+	 * @return user or null, if the servlet created no user
+	 * @throws SQLException
+	 *             Thrown if loading the user failed
+	 */
+	public User get(final String username, final HttpSessionServlet servlet)
+			throws SQLException {
+		final long startGeneration;
+		synchronized (users) {
+			final Entry entry = users.get(username);
+			if (entry != null) {
+				if (entry.expires > System.currentTimeMillis()) {
+					hits.incrementAndGet();
+					return entry.user;
+				}
+				users.remove(username);
+			}
+			startGeneration = generation;
+		}
+
+		FutureTask<User> task = loading.get(username);
+		if (task == null) {
+			final FutureTask<User> newTask = new FutureTask<User>(
+					new Callable<User>() {
+						@Override
+						public User call() throws SQLException {
+							return servlet.createUser(username);
+						}
+					});
+			task = loading.putIfAbsent(username, newTask);
+			if (task == null) {
+				// This thread loads the user
+				loads.incrementAndGet();
+				try {
+					newTask.run();
+					final User user = get(newTask);
+					if (user != null)
+						put(username, user, startGeneration);
+					return user;
+				} finally {
+					loading.remove(username, newTask);
+				}
+			}
+		}
+		return get(task);
+	}
+
+	/**
+	 * Removes the given user from the cache
+	 * 
+	 * @param username
+	 *            Name of the user
+	 */
+	public void invalidate(final String username) {
+		synchronized (users) {
+			users.remove(username);
+			generation++;
+		}
+	}
+
+	/**
+	 * Removes all users from the cache
+	 */
+	public void invalidateAll() {
+		synchronized (users) {
+			users.clear();
+			generation++;
+		}
+	}
+
+	/**
+	 * @return number of cached users
+	 */
+	public int size() {
+		synchronized (users) {
+			return users.size();
+		}
+	}
+
+	/**
+	 * @return number of users returned from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of users loaded by the servlet
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param ttl
+	 *            Time in milliseconds users are cached
+	 */
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of cached users
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		synchronized (users) {
+			trim();
+		}
+	}
+
+	private void put(final String username, final User user,
+			final long startGeneration) {
+		synchronized (users) {
+			// Don't cache users that have been invalidated while loading
+			if (generation != startGeneration)
+				return;
+			users.put(username, new Entry(user, System.currentTimeMillis()
+					+ ttl));
+			trim();
+		}
+	}
+
+	private void trim() {
+		final Iterator<Entry> iterator = users.values().iterator();
+		while (users.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	private static User get(final FutureTask<User> task) throws SQLException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading user", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException("Loading user failed", cause);
+		}
+	}
+}